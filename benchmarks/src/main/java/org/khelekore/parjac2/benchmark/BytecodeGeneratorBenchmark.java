@@ -0,0 +1,59 @@
+package org.khelekore.parjac2.benchmark;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.khelekore.parjac2.javacompiler.BytecodeGenerator;
+import org.khelekore.parjac2.javacompiler.ClassInformationProvider;
+import org.khelekore.parjac2.javacompiler.ParsedEntry;
+import org.khelekore.parjac2.javacompiler.TypeTraverser;
+import org.khelekore.parjac2.javacompiler.syntaxtree.OrdinaryCompilationUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Measure how long it takes to generate the class files for a checked syntax tree */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class BytecodeGeneratorBenchmark {
+    @Param ({"Arithmetic.java", "Shapes.java", "Text.java"})
+    public String file;
+
+    private CompilerSetup setup;
+    private ParsedEntry entry;
+    private ClassInformationProvider cip;
+
+    @Setup
+    public void setup () throws IOException {
+	setup = new CompilerSetup ();
+	CharBuffer input = Corpus.read (file);
+	entry = setup.parseAndBuild (file, input);
+	cip = setup.classInformation (entry);
+	setup.fillInClasses (file, cip, entry);
+	setup.check (file, cip, entry);
+    }
+
+    @Benchmark
+    public void generate (Blackhole bh) {
+	OrdinaryCompilationUnit ocu = (OrdinaryCompilationUnit)entry.getRoot ();
+	TypeTraverser.forAllTypes (ocu, td -> {
+		BytecodeGenerator g = new BytecodeGenerator (entry.getOrigin (), td, cip,
+							     setup.getJavaTokens (), setup.getGrammar ());
+		bh.consume (g.generate ());
+	    });
+    }
+}
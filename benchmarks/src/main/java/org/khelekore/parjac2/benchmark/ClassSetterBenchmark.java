@@ -0,0 +1,57 @@
+package org.khelekore.parjac2.benchmark;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.khelekore.parjac2.javacompiler.ClassInformationProvider;
+import org.khelekore.parjac2.javacompiler.ParsedEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measure how long it takes to resolve the types and names of a syntax tree.
+ *  The class setter modifies the tree so each invocation gets a newly built tree.
+ *  The classpath is scanned once per trial, as the compile server does.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class ClassSetterBenchmark {
+    @Param ({"Arithmetic.java", "Shapes.java", "Text.java"})
+    public String file;
+
+    private CompilerSetup setup;
+    private CharBuffer input;
+    private ParsedEntry entry;
+    private ClassInformationProvider cip;
+
+    @Setup
+    public void setup () throws IOException {
+	setup = new CompilerSetup ();
+	input = Corpus.read (file);
+    }
+
+    @Setup (Level.Invocation)
+    public void newTree () throws IOException {
+	entry = setup.parseAndBuild (file, input);
+	cip = setup.classInformation (entry);
+    }
+
+    @Benchmark
+    public void fillInClasses () {
+	setup.fillInClasses (file, cip, entry);
+    }
+}
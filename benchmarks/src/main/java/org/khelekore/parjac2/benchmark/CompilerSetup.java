@@ -0,0 +1,116 @@
+package org.khelekore.parjac2.benchmark;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.khelekore.parjac2.javacompiler.CharBufferLexer;
+import org.khelekore.parjac2.javacompiler.ClassInformationProvider;
+import org.khelekore.parjac2.javacompiler.ClassResourceHolder;
+import org.khelekore.parjac2.javacompiler.ClassSetter;
+import org.khelekore.parjac2.javacompiler.CompilationArguments;
+import org.khelekore.parjac2.javacompiler.DirAndPath;
+import org.khelekore.parjac2.javacompiler.DuplicateFinder;
+import org.khelekore.parjac2.javacompiler.JavaGrammarHelper;
+import org.khelekore.parjac2.javacompiler.JavaTokens;
+import org.khelekore.parjac2.javacompiler.NameModifierChecker;
+import org.khelekore.parjac2.javacompiler.ParsedEntry;
+import org.khelekore.parjac2.javacompiler.ReturnChecker;
+import org.khelekore.parjac2.javacompiler.SemanticCheckerBase;
+import org.khelekore.parjac2.javacompiler.SyntaxTreeBuilder;
+import org.khelekore.parjac2.parser.Grammar;
+import org.khelekore.parjac2.parser.Parser;
+import org.khelekore.parjac2.parser.PredictCache;
+import org.khelekore.parjac2.parser.Rule;
+import org.khelekore.parjac2.parsetree.ParseTreeNode;
+
+/** The compiler parts that the benchmarks share, set up the same way as the Compiler does.
+ *  Each step fails if the corpus file has errors, so that we never benchmark error handling.
+ */
+public class CompilerSetup {
+    private final Grammar grammar = new Grammar ();
+    private final JavaTokens javaTokens = new JavaTokens (grammar);
+    private final Rule goalRule;
+    private final PredictCache predictCache;
+    private final CompilerDiagnosticCollector diagnostics = new CompilerDiagnosticCollector ();
+    private final SyntaxTreeBuilder stb;
+    private ClassResourceHolder classPath;
+
+    public CompilerSetup () throws IOException {
+	goalRule = JavaGrammarHelper.readAndValidateRules (grammar, false);
+	predictCache = new PredictCache (grammar);
+	stb = new SyntaxTreeBuilder (diagnostics, javaTokens, grammar);
+    }
+
+    public Grammar getGrammar () {
+	return grammar;
+    }
+
+    public JavaTokens getJavaTokens () {
+	return javaTokens;
+    }
+
+    public CharBufferLexer lexer (String file, CharBuffer input) {
+	return new CharBufferLexer (grammar, javaTokens, input.duplicate (), Corpus.path (file), diagnostics);
+    }
+
+    public ParseTreeNode parse (String file, CharBuffer input) {
+	Parser parser = new Parser (grammar, Corpus.path (file), predictCache, lexer (file, input), diagnostics);
+	ParseTreeNode tree = parser.parse (goalRule);
+	checkNoErrors (file);
+	return tree;
+    }
+
+    public ParseTreeNode buildSyntaxTree (String file, ParseTreeNode parseTree) {
+	ParseTreeNode syntaxTree = stb.build (dirAndPath (file), parseTree);
+	checkNoErrors (file);
+	return syntaxTree;
+    }
+
+    public ParsedEntry parseAndBuild (String file, CharBuffer input) {
+	return new ParsedEntry (dirAndPath (file), buildSyntaxTree (file, parse (file, input)));
+    }
+
+    /** Create a class information provider that has the types of the entry added.
+     *  The classpath is only scanned once.
+     */
+    public ClassInformationProvider classInformation (ParsedEntry pe) throws IOException {
+	if (classPath == null) {
+	    classPath = new ClassResourceHolder (diagnostics, new CompilationArguments (), null);
+	    classPath.scanClassPath ();
+	}
+	ClassInformationProvider cip = new ClassInformationProvider (diagnostics, classPath);
+	cip.addTypes (pe.getRoot (), pe.getOrigin ());
+	return cip;
+    }
+
+    public void fillInClasses (String file, ClassInformationProvider cip, ParsedEntry pe) {
+	ClassSetter.fillInClasses (javaTokens, cip, List.of (pe), diagnostics);
+	checkNoErrors (file);
+    }
+
+    /** Run the semantic checks that the compiler runs before generating code */
+    public void check (String file, ClassInformationProvider cip, ParsedEntry pe) {
+	List<SemanticCheckerBase.SemanticCheckerBaseFactory<?>> checkers =
+	    List.of (DuplicateFinder::new, NameModifierChecker::new, ReturnChecker::new);
+	for (SemanticCheckerBase.SemanticCheckerBaseFactory<?> factory : checkers)
+	    SemanticCheckerBase.checkFile (cip, javaTokens, pe, diagnostics, factory);
+	checkNoErrors (file);
+    }
+
+    private static DirAndPath dirAndPath (String file) {
+	return new DirAndPath (Paths.get ("."), Corpus.path (file));
+    }
+
+    private void checkNoErrors (String file) {
+	if (diagnostics.hasError ()) {
+	    Locale locale = Locale.getDefault ();
+	    StringBuilder sb = new StringBuilder ("Corpus file: " + file + " has errors:");
+	    diagnostics.getDiagnostics ().forEach (d -> sb.append ('\n').append (d.getMessage (locale)));
+	    throw new IllegalStateException (sb.toString ());
+	}
+    }
+}
@@ -0,0 +1,29 @@
+package org.khelekore.parjac2.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/** The source files that the benchmarks run on, stored as resources under corpus/ */
+public class Corpus {
+    private Corpus () {
+	// only static methods
+    }
+
+    /** Get the source of the given corpus file */
+    public static CharBuffer read (String file) throws IOException {
+	try (InputStream is = Corpus.class.getResourceAsStream ("/corpus/" + file)) {
+	    if (is == null)
+		throw new IOException ("No such corpus file: " + file);
+	    return CharBuffer.wrap (new String (is.readAllBytes (), StandardCharsets.UTF_8));
+	}
+    }
+
+    /** Get the path the file is reported as, the package is always corpus */
+    public static Path path (String file) {
+	return Paths.get ("corpus", file);
+    }
+}
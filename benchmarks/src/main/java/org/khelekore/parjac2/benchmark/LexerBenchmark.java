@@ -0,0 +1,50 @@
+package org.khelekore.parjac2.benchmark;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.khelekore.parjac2.javacompiler.CharBufferLexer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Measure how long it takes to split a source file into tokens */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class LexerBenchmark {
+    @Param ({"Arithmetic.java", "Shapes.java", "Text.java"})
+    public String file;
+
+    private CompilerSetup setup;
+    private CharBuffer input;
+    // Nothing in particular is wanted, the parser only uses this for type identifiers
+    private final BitSet wantedTokens = new BitSet ();
+
+    @Setup
+    public void setup () throws IOException {
+	setup = new CompilerSetup ();
+	input = Corpus.read (file);
+    }
+
+    @Benchmark
+    public void lex (Blackhole bh) {
+	CharBufferLexer lexer = setup.lexer (file, input);
+	while (lexer.hasMoreTokens ())
+	    bh.consume (lexer.nextToken (wantedTokens));
+    }
+}
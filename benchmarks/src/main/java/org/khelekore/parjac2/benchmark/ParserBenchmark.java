@@ -0,0 +1,44 @@
+package org.khelekore.parjac2.benchmark;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Measure how long it takes to lex and parse a source file into a parse tree */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class ParserBenchmark {
+    @Param ({"Arithmetic.java", "Shapes.java", "Text.java"})
+    public String file;
+
+    private CompilerSetup setup;
+    private CharBuffer input;
+
+    @Setup
+    public void setup () throws IOException {
+	setup = new CompilerSetup ();
+	input = Corpus.read (file);
+    }
+
+    @Benchmark
+    public void parse (Blackhole bh) {
+	bh.consume (setup.parse (file, input));
+    }
+}
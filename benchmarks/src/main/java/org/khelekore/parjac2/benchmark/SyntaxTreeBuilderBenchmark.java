@@ -0,0 +1,46 @@
+package org.khelekore.parjac2.benchmark;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.khelekore.parjac2.parsetree.ParseTreeNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Measure how long it takes to turn a parse tree into a syntax tree */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class SyntaxTreeBuilderBenchmark {
+    @Param ({"Arithmetic.java", "Shapes.java", "Text.java"})
+    public String file;
+
+    private CompilerSetup setup;
+    private ParseTreeNode parseTree;
+
+    @Setup
+    public void setup () throws IOException {
+	setup = new CompilerSetup ();
+	CharBuffer input = Corpus.read (file);
+	parseTree = setup.parse (file, input);
+    }
+
+    @Benchmark
+    public void build (Blackhole bh) {
+	bh.consume (setup.buildSyntaxTree (file, parseTree));
+    }
+}
@@ -0,0 +1,111 @@
+package corpus;
+
+/** Number crunching: loops, arrays, switch and primitive conversions. */
+public class Arithmetic {
+    private static final int SIZE = 128;
+
+    private final int[] values = new int[SIZE];
+    private long total;
+
+    public Arithmetic (int seed) {
+	int x = seed;
+	for (int i = 0; i < values.length; i++) {
+	    x = x * 1103515245 + 12345;
+	    values[i] = (x >>> 16) & 0x7fff;
+	}
+    }
+
+    public long sum () {
+	long s = 0;
+	for (int v : values)
+	    s += v;
+	total = s;
+	return s;
+    }
+
+    public int max () {
+	int m = Integer.MIN_VALUE;
+	for (int i = 0; i < values.length; i++)
+	    if (values[i] > m)
+		m = values[i];
+	return m;
+    }
+
+    public double average () {
+	return (double)sum () / values.length;
+    }
+
+    public int countBits () {
+	int bits = 0;
+	int i = 0;
+	while (i < values.length) {
+	    int v = values[i++];
+	    do {
+		bits += v & 1;
+		v >>= 1;
+	    } while (v != 0);
+	}
+	return bits;
+    }
+
+    public static int classify (int x) {
+	int r;
+	switch (x % 4) {
+	case 0:
+	    r = 10;
+	    break;
+	case 1:
+	    r = 20;
+	    break;
+	case 2:
+	    r = 30;
+	    break;
+	default:
+	    r = -1;
+	}
+	return r;
+    }
+
+    public static long factorial (int n) {
+	long r = 1;
+	for (int i = 2; i <= n; i++)
+	    r *= i;
+	return r;
+    }
+
+    public static int gcd (int a, int b) {
+	while (b != 0) {
+	    int t = a % b;
+	    a = b;
+	    b = t;
+	}
+	return a;
+    }
+
+    public static float scale (float f, int s, int b) {
+	return f * s + b;
+    }
+
+    public static boolean isPrime (int n) {
+	if (n < 2)
+	    return false;
+	for (int i = 2; i * i <= n; i++) {
+	    if (n % i == 0)
+		return false;
+	}
+	return true;
+    }
+
+    public static int[][] multiply (int[][] a, int[][] b) {
+	int n = a.length;
+	int[][] c = new int[n][n];
+	for (int i = 0; i < n; i++)
+	    for (int j = 0; j < n; j++) {
+		int s = 0;
+		for (int k = 0; k < n; k++)
+		    s += a[i][k] * b[k][j];
+		c[i][j] = s;
+	    }
+	return c;
+    }
+}
@@ -0,0 +1,116 @@
+package corpus;
+
+/** Object oriented code: interfaces, inheritance, inner classes and instance state. */
+public class Shapes {
+    public interface Shape {
+	double area ();
+	String name ();
+    }
+
+    public static abstract class Base implements Shape {
+	private final String name;
+	protected int id;
+
+	protected Base (String name, int id) {
+	    this.name = name;
+	    this.id = id;
+	}
+
+	@Override public String name () {
+	    return name;
+	}
+
+	public int getId () {
+	    return id;
+	}
+    }
+
+    public static class Circle extends Base {
+	private final double radius;
+
+	public Circle (int id, double radius) {
+	    super ("circle", id);
+	    this.radius = radius;
+	}
+
+	@Override public double area () {
+	    return Math.PI * radius * radius;
+	}
+    }
+
+    public static class Rectangle extends Base {
+	private final double width;
+	private final double height;
+
+	public Rectangle (int id, double width, double height) {
+	    super ("rectangle", id);
+	    this.width = width;
+	    this.height = height;
+	}
+
+	@Override public double area () {
+	    return width * height;
+	}
+
+	public boolean isSquare () {
+	    return Double.compare (width, height) == 0;
+	}
+    }
+
+    public static class Square extends Rectangle {
+	public Square (int id, double side) {
+	    super (id, side, side);
+	}
+    }
+
+    private final Shape[] shapes;
+    private int count;
+
+    public Shapes (int capacity) {
+	shapes = new Shape[capacity];
+    }
+
+    public void add (Shape s) {
+	if (count < shapes.length)
+	    shapes[count++] = s;
+    }
+
+    public double totalArea () {
+	double total = 0;
+	for (int i = 0; i < count; i++)
+	    total += shapes[i].area ();
+	return total;
+    }
+
+    public Shape largest () {
+	Shape best = null;
+	double bestArea = -1;
+	for (int i = 0; i < count; i++) {
+	    Shape s = shapes[i];
+	    double area = s.area ();
+	    if (Double.compare (area, bestArea) > 0) {
+		best = s;
+		bestArea = area;
+	    }
+	}
+	return best;
+    }
+
+    public int countSquares () {
+	int n = 0;
+	for (int i = 0; i < count; i++) {
+	    if (shapes[i] instanceof Rectangle r && r.isSquare ())
+		n++;
+	}
+	return n;
+    }
+
+    public static Shapes create () {
+	Shapes s = new Shapes (16);
+	s.add (new Circle (1, 2.5));
+	s.add (new Rectangle (2, 3, 4));
+	s.add (new Square (3, 5));
+	s.add (new Circle (4, 0.5));
+	return s;
+    }
+}
@@ -0,0 +1,62 @@
+package corpus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Library heavy code: strings, collections, exceptions and varargs. */
+public class Text {
+    private final List<String> lines = new ArrayList<> ();
+
+    public void add (String... parts) {
+	String line = String.join (" ", parts);
+	lines.add (line);
+    }
+
+    public int totalLength () {
+	int len = 0;
+	for (String s : lines)
+	    len += s.length ();
+	return len;
+    }
+
+    public String describe (int index) {
+	return "line " + index + " of " + lines.size () + ": " + lines.get (index);
+    }
+
+    public static int parse (String s) {
+	int r = -1;
+	try {
+	    r = Integer.parseInt (s);
+	} catch (NumberFormatException e) {
+	    r = -2;
+	}
+	return r;
+    }
+
+    public static String repeat (String s, int times) {
+	String r = "";
+	for (int i = 0; i < times; i++)
+	    r += s;
+	return r;
+    }
+
+    public static boolean isPalindrome (String s) {
+	return new StringBuilder (s).reverse ().toString ().equals (s);
+    }
+
+    public static String upper (String s) {
+	if (s == null)
+	    throw new IllegalArgumentException ("s may not be null");
+	return s.toUpperCase ();
+    }
+
+    public static int countWords (String s) {
+	String[] words = s.split (" ");
+	int n = 0;
+	for (String w : words) {
+	    if (w.length () > 0)
+		n++;
+	}
+	return n;
+    }
+}
@@ -1,4 +1,5 @@
 module org.khelekore.parjac2 {
     requires transitive java.compiler;
     requires io.github.dmlloyd.classfile;
+    requires jdk.management;
 }
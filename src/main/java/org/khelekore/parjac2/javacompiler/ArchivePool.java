@@ -0,0 +1,257 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/** A pool of open jar files, used so that we only open and read the central directory
+ *  of each archive once per compilation.
+ *  Reading entries is safe to do from many threads at the same time.
+ *  When memory mapping is used the archive is mapped and entries are read without any locking,
+ *  archives that can not be mapped, like zip64 files, are read using JarFile.
+ */
+public class ArchivePool {
+    private final boolean memoryMap;
+    private final Map<Path, Archive> archives = new ConcurrentHashMap<> ();
+
+    public ArchivePool (boolean memoryMap) {
+	this.memoryMap = memoryMap;
+    }
+
+    /** Get the names of all the entries in the given archive */
+    public List<String> getEntryNames (Path archive) throws IOException {
+	return get (archive).getEntryNames ();
+    }
+
+    /** Read the full content of the given entry */
+    public byte[] read (Path archive, String entry) throws IOException {
+	return get (archive).read (entry);
+    }
+
+    /** Check if the given archive is read from a memory mapping or by a JarFile */
+    boolean isMemoryMapped (Path archive) throws IOException {
+	return get (archive) instanceof MappedArchive;
+    }
+
+    private Archive get (Path archive) throws IOException {
+	try {
+	    return archives.computeIfAbsent (archive, this::open);
+	} catch (UncheckedOpenException e) {
+	    throw e.getCause ();
+	}
+    }
+
+    private Archive open (Path archive) {
+	try {
+	    if (memoryMap) {
+		MappedArchive ma = MappedArchive.open (archive);
+		if (ma != null)
+		    return ma;
+	    }
+	    return new JarArchive (new JarFile (archive.toFile ()));
+	} catch (IOException e) {
+	    throw new UncheckedOpenException (e);
+	}
+    }
+
+    /** Close all the open archives, the pool can still be used after this, but will have to reopen files. */
+    public void close () throws IOException {
+	IOException failure = null;
+	for (Archive a : archives.values ()) {
+	    try {
+		a.close ();
+	    } catch (IOException e) {
+		failure = e;
+	    }
+	}
+	archives.clear ();
+	if (failure != null)
+	    throw failure;
+    }
+
+    private static class UncheckedOpenException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public UncheckedOpenException (IOException cause) {
+	    super (cause);
+	}
+
+	@Override public IOException getCause () {
+	    return (IOException)super.getCause ();
+	}
+    }
+
+    private interface Archive {
+	List<String> getEntryNames () throws IOException;
+	byte[] read (String entry) throws IOException;
+	void close () throws IOException;
+    }
+
+    private static class JarArchive implements Archive {
+	private final JarFile jf;
+
+	public JarArchive (JarFile jf) {
+	    this.jf = jf;
+	}
+
+	@Override public List<String> getEntryNames () {
+	    return jf.stream ().map (JarEntry::getName).toList ();
+	}
+
+	@Override public byte[] read (String entry) throws IOException {
+	    JarEntry e = jf.getJarEntry (entry);
+	    if (e == null)
+		throw new IOException ("No such entry: " + entry + " in: " + jf.getName ());
+	    try (InputStream is = jf.getInputStream (e)) {
+		return is.readAllBytes ();
+	    }
+	}
+
+	@Override public void close () throws IOException {
+	    jf.close ();
+	}
+    }
+
+    /** A zip file that has been mapped into memory, only handles the non zip64 format */
+    private static class MappedArchive implements Archive {
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int END_HEADER = 0x06054b50;
+	private static final int ZIP64_END_LOCATOR = 0x07064b50;
+	private static final int END_SIZE = 22;
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	private final Path path;
+	private final ByteBuffer buf;
+	// The entries in central directory order
+	private final List<String> names;
+	private final Map<String, Entry> entries;
+
+	private MappedArchive (Path path, ByteBuffer buf, List<String> names, Map<String, Entry> entries) {
+	    this.path = path;
+	    this.buf = buf;
+	    this.names = names;
+	    this.entries = entries;
+	}
+
+	/** Map the archive and read the central directory.
+	 * @return the archive or null if it can not be handled
+	 */
+	public static MappedArchive open (Path path) throws IOException {
+	    MappedByteBuffer mb;
+	    try (FileChannel fc = FileChannel.open (path, StandardOpenOption.READ)) {
+		long size = fc.size ();
+		if (size > Integer.MAX_VALUE || size < END_SIZE)
+		    return null;
+		mb = fc.map (FileChannel.MapMode.READ_ONLY, 0, size);
+	    }
+	    ByteBuffer buf = mb.order (ByteOrder.LITTLE_ENDIAN);
+	    int end = findEnd (buf);
+	    if (end < 0)
+		return null;
+	    if (end >= 20 && buf.getInt (end - 20) == ZIP64_END_LOCATOR)
+		return null;
+	    int numEntries = buf.getShort (end + 10) & 0xffff;
+	    long cdOffset = buf.getInt (end + 16) & 0xffffffffL;
+	    if (numEntries == 0xffff || cdOffset >= end)
+		return null;
+
+	    List<String> names = new ArrayList<> (numEntries);
+	    Map<String, Entry> entries = new HashMap<> (numEntries * 2);
+	    int pos = (int)cdOffset;
+	    for (int i = 0; i < numEntries; i++) {
+		if (buf.getInt (pos) != CENTRAL_HEADER)
+		    return null;
+		int method = buf.getShort (pos + 10) & 0xffff;
+		long compressedSize = buf.getInt (pos + 20) & 0xffffffffL;
+		long size = buf.getInt (pos + 24) & 0xffffffffL;
+		int nameLength = buf.getShort (pos + 28) & 0xffff;
+		int extraLength = buf.getShort (pos + 30) & 0xffff;
+		int commentLength = buf.getShort (pos + 32) & 0xffff;
+		long localOffset = buf.getInt (pos + 42) & 0xffffffffL;
+		if (compressedSize == 0xffffffffL || size == 0xffffffffL || localOffset == 0xffffffffL)
+		    return null;
+		byte[] nameBytes = new byte[nameLength];
+		buf.get (pos + 46, nameBytes);
+		String name = new String (nameBytes, StandardCharsets.UTF_8);
+		names.add (name);
+		entries.put (name, new Entry ((int)localOffset, (int)compressedSize, (int)size, method));
+		pos += 46 + nameLength + extraLength + commentLength;
+	    }
+	    return new MappedArchive (path, buf, names, entries);
+	}
+
+	private static int findEnd (ByteBuffer buf) {
+	    int limit = Math.max (0, buf.limit () - END_SIZE - 0xffff);
+	    for (int pos = buf.limit () - END_SIZE; pos >= limit; pos--)
+		if (buf.getInt (pos) == END_HEADER)
+		    return pos;
+	    return -1;
+	}
+
+	@Override public List<String> getEntryNames () {
+	    return names;
+	}
+
+	@Override public byte[] read (String name) throws IOException {
+	    Entry e = entries.get (name);
+	    if (e == null)
+		throw new IOException ("No such entry: " + name + " in: " + path);
+	    if (buf.getInt (e.localOffset) != LOCAL_HEADER)
+		throw new IOException ("Bad local header for: " + name + " in: " + path);
+	    int nameLength = buf.getShort (e.localOffset + 26) & 0xffff;
+	    int extraLength = buf.getShort (e.localOffset + 28) & 0xffff;
+	    int dataStart = e.localOffset + 30 + nameLength + extraLength;
+	    ByteBuffer data = buf.slice (dataStart, e.compressedSize);
+	    byte[] ret = new byte[e.size];
+	    switch (e.method) {
+	    case STORED -> data.get (ret);
+	    case DEFLATED -> inflate (name, data, ret);
+	    default -> throw new IOException ("Unhandled compression method: " + e.method + " for: " +
+					      name + " in: " + path);
+	    }
+	    return ret;
+	}
+
+	private void inflate (String name, ByteBuffer data, byte[] ret) throws IOException {
+	    Inflater inflater = new Inflater (true);
+	    try {
+		inflater.setInput (data);
+		int pos = 0;
+		while (pos < ret.length) {
+		    int n = inflater.inflate (ret, pos, ret.length - pos);
+		    if (n == 0 && (inflater.finished () || inflater.needsInput ()))
+			throw new IOException ("Truncated data for: " + name + " in: " + path);
+		    pos += n;
+		}
+	    } catch (DataFormatException e) {
+		throw new IOException ("Failed to inflate: " + name + " in: " + path, e);
+	    } finally {
+		inflater.end ();
+	    }
+	}
+
+	@Override public void close () {
+	    // the mapping is released when the buffer is collected
+	}
+
+	private record Entry (int localOffset, int compressedSize, int size, int method) {
+	}
+    }
+}
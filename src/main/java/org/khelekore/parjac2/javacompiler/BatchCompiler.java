@@ -2,6 +2,7 @@ package org.khelekore.parjac2.javacompiler;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -17,13 +18,18 @@ import org.khelekore.parjac2.parser.Grammar;
 import org.khelekore.parjac2.parser.Rule;
 
 public class BatchCompiler {
+    private static final String INCREMENTAL_STATE_FILE = ".parjac-incremental";
+
     private final CompilerDiagnosticCollector diagnostics;
+    private final Path workingDirectory;
+    private final PrintStream output;
+    private final PrintStream errorOutput;
     private final Grammar grammar = new Grammar ();
     private final JavaTokens javaTokens = new JavaTokens (grammar);
 
     public static void main (String[] args) throws IOException {
 	if (args.length == 0) {
-	    usage ();
+	    usage (System.err);
 	    return;
 	}
 	CompilerDiagnosticCollector collector = new CompilerDiagnosticCollector ();
@@ -37,7 +43,20 @@ public class BatchCompiler {
     }
 
     public BatchCompiler (CompilerDiagnosticCollector diagnostics) {
+	this (diagnostics, Paths.get (""), System.out, System.err);
+    }
+
+    /** Create a compiler that resolves relative paths against the given directory.
+     * @param workingDirectory the directory that relative paths in arguments are relative to
+     * @param output the stream to write timing information to
+     * @param errorOutput the stream to write usage and argument problems to
+     */
+    public BatchCompiler (CompilerDiagnosticCollector diagnostics, Path workingDirectory,
+			  PrintStream output, PrintStream errorOutput) {
 	this.diagnostics = diagnostics;
+	this.workingDirectory = workingDirectory;
+	this.output = output;
+	this.errorOutput = errorOutput;
     }
 
     public void compile (String[] args) throws IOException {
@@ -50,30 +69,41 @@ public class BatchCompiler {
 	    return;
 
 	Rule goalRule = JavaGrammarHelper.readAndValidateRules (grammar, settings.getDebug ());
-	Compiler c = new Compiler (diagnostics, grammar, javaTokens, goalRule, settings);
+	Compiler c = new Compiler (diagnostics, grammar, javaTokens, goalRule, settings,
+				   JavaGrammarHelper.createPredictCache (grammar), null);
 	c.compile ();
 	long endTime = System.nanoTime ();
-	System.out.printf ("Time taken: %.3f seconds\n", ((endTime - startTime) / 1e9));
+	output.printf ("Time taken: %.3f seconds\n", ((endTime - startTime) / 1e9));
     }
 
-    private CompilationArguments parseArgs (String[] args) {
+    /** Parse the command line arguments
+     * @return the arguments or null if they were invalid or only asked for usage
+     */
+    public CompilationArguments parseArgs (String[] args) {
 	List<Path> srcDirs = new ArrayList<> ();
-	BytecodeWriter output = null;
+	BytecodeWriter classWriter = null;
+	Path destination = null;
 	Charset encoding = Charset.forName ("UTF-8");
 	List<Path> classPathEntries = new ArrayList<> ();
 	boolean reportTime = true;
 	boolean debug = false;
+	boolean incremental = false;
+	Path classPathIndexDirectory = null;
+	boolean memoryMapArchives = false;
+	Path metricsOutput = null;
 	for (int i = 0; i < args.length; i++) {
 	    switch (args[i]) {
 	    case "-i":
 	    case "--input":
 		if (hasFollowingArgExists (args, i))
-		    srcDirs.add (Paths.get (args[++i]));
+		    srcDirs.add (workingDirectory.resolve (args[++i]));
 	        break;
 	    case "-d":
 	    case "--destination":
-		if (hasFollowingArgExists (args, i))
-		    output = new FileBytecodeWriter (Paths.get (args[++i]));
+		if (hasFollowingArgExists (args, i)) {
+		    destination = workingDirectory.resolve (args[++i]);
+		    classWriter = new FileBytecodeWriter (destination);
+		}
 	        break;
 	    case "--encoding":
 		if (hasFollowingArgExists (args, i)) {
@@ -91,9 +121,23 @@ public class BatchCompiler {
 	    case "--debug":
 		debug = true;
 		break;
+	    case "--incremental":
+		incremental = true;
+		break;
+	    case "--classpath-index":
+		if (hasFollowingArgExists (args, i))
+		    classPathIndexDirectory = workingDirectory.resolve (args[++i]);
+		break;
+	    case "--mmap-archives":
+		memoryMapArchives = true;
+		break;
+	    case "--metrics-out":
+		if (hasFollowingArgExists (args, i))
+		    metricsOutput = workingDirectory.resolve (args[++i]);
+		break;
 	    case "-h":
 	    case "--help":
-		usage ();
+		usage (errorOutput);
 		return null;
 	    case "-cp":
 	    case "-classpath":
@@ -108,12 +152,26 @@ public class BatchCompiler {
 		return null;
 	    }
 	}
+	if (incremental) {
+	    if (destination == null) {
+		diagnostics.report (new NoSourceDiagnostics ("--incremental requires a destination directory"));
+		return null;
+	    }
+	    // Unchanged types are read from the earlier output
+	    if (Files.isDirectory (destination))
+		classPathEntries.add (destination);
+	}
 	SourceProvider sp = new FileSourceProvider (srcDirs, encoding);
 	CompilationArguments ca =
-	    new CompilationArguments (sp, output, classPathEntries, reportTime, debug);
+	    new CompilationArguments (sp, classWriter, classPathEntries, reportTime, debug, output);
+	if (incremental)
+	    ca.setIncrementalState (IncrementalState.load (destination.resolve (INCREMENTAL_STATE_FILE)));
+	ca.setClassPathIndexDirectory (classPathIndexDirectory);
+	ca.setMemoryMapArchives (memoryMapArchives);
+	ca.setMetricsOutput (metricsOutput);
 	ca.validate (diagnostics);
 	if (diagnostics.hasError ()) {
-	    System.err.println ("Invalid arguments, use \"--help\" for usage.\nProblems found:");
+	    errorOutput.println ("Invalid arguments, use \"--help\" for usage.\nProblems found:");
 	    return null;
 	}
 	return ca;
@@ -139,7 +197,7 @@ public class BatchCompiler {
 								 s, classpath));
 		}
 	    } else {
-		Path p = Paths.get (s);
+		Path p = workingDirectory.resolve (s);
 		if (!Files.exists (p)) {
 		    diagnostics.report (new NoSourceDiagnostics ("Non existing classpath: %s (%s)",
 								 s, classpath));
@@ -151,7 +209,7 @@ public class BatchCompiler {
     }
 
     private void findAllJars (List<Path> classPathEntries, String dir) throws IOException {
-	Path parent = Paths.get (dir).getParent (); // remove the * part
+	Path parent = workingDirectory.resolve (dir).getParent (); // remove the * part
 	Files.list (parent).filter (p -> isJar (p)).forEach (p -> classPathEntries.add (p));
     }
 
@@ -160,11 +218,12 @@ public class BatchCompiler {
 	    p.getFileName ().toString ().toLowerCase ().endsWith (".jar");
     }
 
-    private static void usage () {
-	System.err.println ("usage: java " + BatchCompiler.class.getName () +
+    private static void usage (PrintStream ps) {
+	ps.println ("usage: java " + BatchCompiler.class.getName () +
 			    " [-cp <path>] [-classpath <path>]" + // same thing
 			    " [--encoding encoding]" +
 			    " [-i|--input srcdir]+ [-d|--destination dir]" +
-			    " [--no-timing] [--debug] [-h|--help]");
+			    " [--incremental] [--classpath-index dir] [--mmap-archives]" +
+			    " [--metrics-out file.json|file.csv] [--no-timing] [--debug] [-h|--help]");
     }
 }
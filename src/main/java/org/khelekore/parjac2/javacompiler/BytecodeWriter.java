@@ -12,4 +12,11 @@ public interface BytecodeWriter {
      * @param data the actual bytecode
      */
     void write (String className, Path path, byte[] data) throws IOException;
+
+    /** Remove earlier written bytecode, used by incremental compilation
+     * @param path the relative path
+     */
+    default void delete (Path path) throws IOException {
+	throw new IOException ("Deleting output is not supported by: " + getClass ().getName ());
+    }
 }
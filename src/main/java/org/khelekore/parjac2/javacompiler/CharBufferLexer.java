@@ -1,9 +1,9 @@
 package org.khelekore.parjac2.javacompiler;
 
-import java.math.BigInteger;
 import java.nio.CharBuffer;
 import java.nio.file.Path;
 import java.util.BitSet;
+import java.util.List;
 import java.util.Set;
 
 import org.khelekore.parjac2.CompilerDiagnosticCollector;
@@ -13,6 +13,7 @@ import org.khelekore.parjac2.parser.Lexer;
 import org.khelekore.parjac2.parser.ParsePosition;
 import org.khelekore.parjac2.parser.Token;
 import org.khelekore.parjac2.parsetree.TokenNode;
+import org.khelekore.parjac2.util.SymbolTable;
 
 /** A lexer for the java language */
 public class CharBufferLexer implements Lexer {
@@ -22,6 +23,7 @@ public class CharBufferLexer implements Lexer {
     private final CharBuffer buf;
     private final Path path;
     private final CompilerDiagnosticCollector diagnostics;
+    private final SymbolTable symbols;
     private boolean hasSentEOI = false;
 
     // TODO: add our own CompilerDiagnosticCollector for lexer errors
@@ -37,23 +39,29 @@ public class CharBufferLexer implements Lexer {
     private String errorText;
 
     private BitSet lastScannedTokens;
+    // The tokens that getCurrentValue gives more than a plain TokenNode for
+    private final BitSet valueTokens = new BitSet ();
 
     // The different values we can have
     private char currentCharValue;
     private String currentStringValue;
-    private BigInteger currentIntValue; // for int and long
+    private long currentIntValue; // for int and long
     private float currentFloatValue;
     private double currentDoubleValue;
     private String currentIdentifier;
 
+    // Reused for the chars of each identifier and number
+    private final StringBuilder tokenChars = new StringBuilder ();
+
     // To be able to push back
     private int lastCharStart = 0;
 
-    // Decimal values are always positive, hex, oct and binary may be negative
-    private static final BigInteger MAX_INT_LITERAL = new BigInteger ("80000000", 16);
-    private static final BigInteger MAX_LONG_LITERAL = new BigInteger ("8000000000000000", 16);
-    private static final BigInteger MAX_UINT_LITERAL = new BigInteger  ("FFFFFFFF", 16);
-    private static final BigInteger MAX_ULONG_LITERAL = new BigInteger ("FFFFFFFFFFFFFFFF", 16);
+    // Decimal values are always positive, hex, oct and binary may be negative.
+    // The limits are compared as unsigned values.
+    private static final long MAX_INT_LITERAL = 0x80000000L;
+    private static final long MAX_LONG_LITERAL = 0x8000000000000000L;
+    private static final long MAX_UINT_LITERAL = 0xFFFFFFFFL;
+    private static final long MAX_ULONG_LITERAL = 0xFFFFFFFFFFFFFFFFL;
 
     private final BitSet multiGTTTokens = new BitSet ();
 
@@ -62,18 +70,42 @@ public class CharBufferLexer implements Lexer {
     // TODO let constructor or grammar know what to set to use
     private final Set<String> nonTypeIdentifiers = Set.of ("permits", "record", "sealed", "var", "yield");
     private final Set<String> nonUnqualifiedMethodIdentifier = Set.of ("yield");
+    // The tokens of the nonTypeIdentifiers
+    private final BitSet nonTypeIdentifierTokens = new BitSet ();
+
+    // The ascii chars that can be part of an identifier, the rest have to be checked with Character
+    private static final boolean[] ASCII_IDENTIFIER_PART = new boolean[128];
+    static {
+	for (char c = 0; c < 128; c++)
+	    ASCII_IDENTIFIER_PART[c] = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+		(c >= '0' && c <= '9') || c == '_' || c == '$';
+    }
 
     public CharBufferLexer (Grammar grammar, JavaTokens javaTokens, CharBuffer buf, Path path,
 			    CompilerDiagnosticCollector diagnostics) {
+	this (grammar, javaTokens, buf, path, diagnostics, new SymbolTable ());
+    }
+
+    /** Create a lexer that takes its identifiers and string literals from the given symbol table,
+     *  lexers that share a table also share the strings.
+     */
+    public CharBufferLexer (Grammar grammar, JavaTokens javaTokens, CharBuffer buf, Path path,
+			    CompilerDiagnosticCollector diagnostics, SymbolTable symbols) {
 	this.grammar = grammar;
 	this.javaTokens = javaTokens;
 	this.buf = buf;
 	this.path = path;
 	this.diagnostics = diagnostics;
+	this.symbols = symbols;
 	lastScannedTokens = new BitSet (grammar.getNumberOfTokens ());
 	multiGTTTokens.set (javaTokens.GE.getId ());
 	multiGTTTokens.set (javaTokens.RIGHT_SHIFT_EQUAL.getId ());
 	multiGTTTokens.set (javaTokens.RIGHT_SHIFT_UNSIGNED_EQUAL.getId ());
+	for (Token t : List.of (javaTokens.CHARACTER_LITERAL, javaTokens.STRING_LITERAL,
+				javaTokens.INT_LITERAL, javaTokens.LONG_LITERAL,
+				javaTokens.FLOAT_LITERAL, javaTokens.DOUBLE_LITERAL, javaTokens.IDENTIFIER))
+	    valueTokens.set (t.getId ());
+	nonTypeIdentifiers.forEach (s -> nonTypeIdentifierTokens.set (grammar.getToken (s).getId ()));
     }
 
     @Override public String getError () {
@@ -91,12 +123,12 @@ public class CharBufferLexer implements Lexer {
     public int getIntValue () {
 	// for 2^31 which is the max allowed int literal we get -2^31.
 	// note however that (int)2^31 == (int)(-2^31)
-	return currentIntValue.intValue ();
+	return (int)currentIntValue;
     }
 
     public long getLongValue () {
 	// similar to int handling above
-	return currentIntValue.longValue ();
+	return currentIntValue;
     }
 
     public float getFloatValue () {
@@ -131,6 +163,10 @@ public class CharBufferLexer implements Lexer {
 	return new TokenNode (t, getParsePosition ());
     }
 
+    @Override public boolean hasCurrentValue () {
+	return lastScannedTokens.intersects (valueTokens);
+    }
+
     @Override public TokenNode toCorrectType (TokenNode n, Token wantedActualToken) {
 	if (wantedActualToken == javaTokens.VAR)
 	    return new TokenNode (wantedActualToken, n.position ());
@@ -162,19 +198,19 @@ public class CharBufferLexer implements Lexer {
 				  getTokenStartPos (), getTokenEndPos ());
     }
 
-    public int getLineNumber () {
+    @Override public int getLineNumber () {
 	return currentLine;
     }
 
-    public int getTokenStartPos () {
+    @Override public int getTokenStartPos () {
 	return tokenStartPosition;
     }
 
-    public int getTokenEndPos () {
+    @Override public int getTokenEndPos () {
 	return buf.position ();
     }
 
-    public int getTokenColumn () {
+    @Override public int getTokenColumn () {
 	return tokenStartColumn;
     }
 
@@ -185,7 +221,7 @@ public class CharBufferLexer implements Lexer {
 		continue;
 	    lastScannedTokens.clear ();
 	    lastScannedTokens.set (nextToken.getId ());
-	    if (nonTypeIdentifiers.contains (nextToken.getName ())) {
+	    if (nonTypeIdentifierTokens.get (nextToken.getId ())) {
 		lastScannedTokens.set (javaTokens.IDENTIFIER.getId ());
 	    } else if (nextToken == javaTokens.IDENTIFIER &&
 		       wantedTokens.get (javaTokens.TYPE_IDENTIFIER.getId ()) &&
@@ -295,7 +331,8 @@ public class CharBufferLexer implements Lexer {
 		case '9':
 		    return readDecimalNumber (c);
 		default:
-		    if (Character.isJavaIdentifierStart (c))
+		    // digits are handled above
+		    if (c < 128 ? ASCII_IDENTIFIER_PART[c] : Character.isJavaIdentifierStart (c))
 			return readIdentifierOrKeyword (c, wantedTokens);
 
 		    errorText = "Illegal character: " + c + "(0x" + Integer.toHexString (c) + ")";
@@ -349,7 +386,7 @@ public class CharBufferLexer implements Lexer {
 			return javaTokens.ELLIPSIS;
 		}
 	    } else if (c2 >= '0' && c2 <= '9') {
-		StringBuilder value = new StringBuilder ();
+		StringBuilder value = clearedTokenChars ();
 		value.append ('.');
 		value.append (c2);
 		return readNumber (value, 10, true);
@@ -625,7 +662,7 @@ public class CharBufferLexer implements Lexer {
 	}
 	if (errorText != null)
 	    diagnostics.report (SourceDiagnostics.error (path, currentParsePosition (), errorText));
-	return errorText == null ? sb.toString ().intern () : null;
+	return errorText == null ? symbols.intern (sb) : null;
     }
 
     private char nextTextChar (boolean previousWasBackslash) {
@@ -694,11 +731,11 @@ public class CharBufferLexer implements Lexer {
 	    char c = nextChar ();
 	    c = Character.toLowerCase (c);
 	    if (c == 'x') {
-		return readNumber (new StringBuilder (), 16, false);
+		return readNumber (clearedTokenChars (), 16, false);
 	    } else if (c == 'b') {
-		return readNumber (new StringBuilder (), 2, false);
+		return readNumber (clearedTokenChars (), 2, false);
 	    } else if (c == 'l') {
-		currentIntValue = BigInteger.ZERO;
+		currentIntValue = 0;
 		return javaTokens.LONG_LITERAL;
 	    } else if (c == 'd') {
 		currentDoubleValue = 0.0;
@@ -707,26 +744,26 @@ public class CharBufferLexer implements Lexer {
 		currentDoubleValue = 0.0;
 		return javaTokens.FLOAT_LITERAL;
 	    } else if (c == '_' || (c >= '0' && c <= '7')) {
-		StringBuilder value = new StringBuilder ();
+		StringBuilder value = clearedTokenChars ();
 		value.append (c);
 		return readNumber (value, 8, false);
 	    } else if (c == '.') {
-		StringBuilder value = new StringBuilder ();
+		StringBuilder value = clearedTokenChars ();
 		value.append ('0');
 		value.append (c);
 		return readNumber (value, 10, true);
 	    } else {
-		currentIntValue = BigInteger.ZERO;
+		currentIntValue = 0;
 		pushBack ();
 		return javaTokens.INT_LITERAL;
 	    }
 	}
-	currentIntValue = BigInteger.ZERO;
+	currentIntValue = 0;
 	return javaTokens.INT_LITERAL;
     }
 
     private Token readDecimalNumber (char start) {
-	StringBuilder res = new StringBuilder ();
+	StringBuilder res = clearedTokenChars ();
 	res.append (start);
 	Token t = readNumber (res, 10, false);
 	if (t == grammar.ERROR)
@@ -784,7 +821,7 @@ public class CharBufferLexer implements Lexer {
 	if ((hasSeenDot || hasSeenExponent) && type != javaTokens.FLOAT_LITERAL)
 	    type = javaTokens.DOUBLE_LITERAL;
 	if (type == javaTokens.INT_LITERAL || type == javaTokens.LONG_LITERAL)
-	    return intValue (value.toString (), radix, type);
+	    return intValue (value, radix, type);
 	return doubleValue (value.toString (), radix, type);
     }
 
@@ -837,24 +874,43 @@ public class CharBufferLexer implements Lexer {
 	return true;
     }
 
-    private Token intValue (String text, int radix, Token type) {
-	try {
-	    currentIntValue = new BigInteger (text, radix);
-	    BigInteger maxAllowed;
-	    if (type == javaTokens.INT_LITERAL)
-		maxAllowed = radix == 10 ? MAX_INT_LITERAL : MAX_UINT_LITERAL;
-	    else
-		maxAllowed = radix == 10 ? MAX_LONG_LITERAL : MAX_ULONG_LITERAL;
+    private StringBuilder clearedTokenChars () {
+	tokenChars.setLength (0);
+	return tokenChars;
+    }
 
-	    if (currentIntValue.compareTo (maxAllowed) > 0) {
-		errorText = "Integer literal too large";
+    /** Accumulate the digits as an unsigned long, a value that does not fit in 64 bits is
+     *  too large for any literal so we do not need anything bigger.
+     */
+    private Token intValue (CharSequence text, int radix, Token type) {
+	long maxBeforeMultiply = Long.divideUnsigned (MAX_ULONG_LITERAL, radix);
+	long value = 0;
+	boolean overflow = false;
+	for (int i = 0, s = text.length (); i < s; i++) {
+	    int digit = Character.digit (text.charAt (i), radix);
+	    if (digit < 0) {
+		errorText = "Failed to parse int value: " + text;
 		return grammar.ERROR;
 	    }
-	    return type;
-	} catch (NumberFormatException n) {
-	    errorText = "Failed to parse int value: " + text;
+	    if (Long.compareUnsigned (value, maxBeforeMultiply) > 0)
+		overflow = true;
+	    long next = value * radix + digit;
+	    if (Long.compareUnsigned (next, value * radix) < 0)
+		overflow = true;
+	    value = next;
+	}
+	currentIntValue = value;
+	long maxAllowed;
+	if (type == javaTokens.INT_LITERAL)
+	    maxAllowed = radix == 10 ? MAX_INT_LITERAL : MAX_UINT_LITERAL;
+	else
+	    maxAllowed = radix == 10 ? MAX_LONG_LITERAL : MAX_ULONG_LITERAL;
+
+	if (overflow || Long.compareUnsigned (value, maxAllowed) > 0) {
+	    errorText = "Integer literal too large";
 	    return grammar.ERROR;
 	}
+	return type;
     }
 
     private Token doubleValue (String text, double radix, Token type) {
@@ -873,17 +929,27 @@ public class CharBufferLexer implements Lexer {
     }
 
     private Token readIdentifierOrKeyword (char start, BitSet wantedTokens) {
-	StringBuilder res = new StringBuilder ();
+	StringBuilder res = clearedTokenChars ();
 	res.append (start);
 	boolean tryNonSealed = wantedTokens.get (javaTokens.NON_SEALED.getId ());
 	while (buf.hasRemaining ()) {
+	    // fast path for plain ascii, those can not start unicode escapes or be ignorable
+	    int p = buf.position ();
+	    char a = buf.get (p);
+	    if (a < 128 && ASCII_IDENTIFIER_PART[a]) {
+		lastCharStart = p;
+		buf.position (p + 1);
+		currentColumn++;
+		res.append (a);
+		continue;
+	    }
 	    char c = nextChar ();
 	    if (Character.isIdentifierIgnorable (c)) {
 		// skip it
 	    } else if (Character.isJavaIdentifierPart (c)) {
 		res.append (c);
 	    } else {
-		if (tryNonSealed && c == '-' && res.toString ().equals ("non")) {
+		if (tryNonSealed && c == '-' && "non".contentEquals (res)) {
 		    int cc = currentColumn;
 		    int lcs = lastCharStart;
 		    char nc = nextChar ();
@@ -901,18 +967,13 @@ public class CharBufferLexer implements Lexer {
 		break;
 	    }
 	}
-	String identifier = res.toString ().intern ();
-	Token t = javaTokens.getKeywordFromIdentifier (identifier);
-	if (t != null) {
-	    currentIdentifier = t.getName ();
-	    return t;
-	}
-	t = javaTokens.getContextualKeyWordFromIdentifier (identifier);
-	if (t != null && wantedTokens.get (t.getId ())) {
+	// check the chars for keywords so that we only look up real identifiers in the symbol table
+	Token t = javaTokens.getAnyKeywordFromIdentifier (res);
+	if (t != null && (!javaTokens.isContextualKeyword (t) || wantedTokens.get (t.getId ()))) {
 	    currentIdentifier = t.getName ();
 	    return t;
 	}
-	currentIdentifier = identifier;
+	currentIdentifier = symbols.intern (res);
 	return javaTokens.IDENTIFIER;
     }
 
@@ -34,14 +34,69 @@ public class ClassInformationProvider {
     private final CompiledTypesHolder cth;
     private Map<String, TypeParameter> nameToType;
 
+    // When set we keep track of all the type names each compiled file looks up
+    private Map<Path, Set<String>> lookups;
+    // Lookups done on threads that are not running for a file, they may come from any file
+    private Set<String> unattributedLookups;
+    private final ThreadLocal<Path> currentOrigin = new ThreadLocal<> ();
+
     public ClassInformationProvider (CompilerDiagnosticCollector diagnostics, CompilationArguments settings) {
+	this (diagnostics, new ClassResourceHolder (diagnostics, settings));
+    }
+
+    public ClassInformationProvider (CompilerDiagnosticCollector diagnostics, ClassResourceHolder crh) {
 	this.diagnostics = diagnostics;
-	crh = new ClassResourceHolder (diagnostics, settings);
+	this.crh = crh;
 	cth = new CompiledTypesHolder ();
 	nameToType = new ConcurrentHashMap<> ();
     }
 
+    /** Start recording the type names that are looked up while compiling each file.
+     *  Lookups done inside {@link #runWithOrigin} are attributed to that file, other
+     *  lookups, for example from a parallel stream, are attributed to all files.
+     */
+    public void recordLookups () {
+	lookups = new ConcurrentHashMap<> ();
+	unattributedLookups = ConcurrentHashMap.newKeySet ();
+    }
+
+    /** Run the given action and attribute the lookups it does to the given file */
+    public void runWithOrigin (Path origin, Runnable r) {
+	if (lookups == null) {
+	    r.run ();
+	    return;
+	}
+	// We may be nested if a parallel stream helps out with another task
+	Path previous = currentOrigin.get ();
+	currentOrigin.set (origin);
+	try {
+	    r.run ();
+	} finally {
+	    currentOrigin.set (previous);
+	}
+    }
+
+    /** Get the type names, found or not, that were looked up for the given file */
+    public Set<String> getLookups (Path origin) {
+	if (lookups == null)
+	    return Set.of ();
+	Set<String> ret = new TreeSet<> (unattributedLookups);
+	ret.addAll (lookups.getOrDefault (origin, Set.of ()));
+	return ret;
+    }
+
+    private void recordLookup (String fqn) {
+	if (lookups == null)
+	    return;
+	Path origin = currentOrigin.get ();
+	if (origin != null)
+	    lookups.computeIfAbsent (origin, p -> ConcurrentHashMap.newKeySet ()).add (fqn);
+	else
+	    unattributedLookups.add (fqn);
+    }
+
     public LookupResult hasVisibleType (String dottedName) {
+	recordLookup (dottedName);
 	LookupResult res = cth.hasVisibleType (dottedName);
 	if (res.found ())
 	    return res;
@@ -96,6 +151,7 @@ public class ClassInformationProvider {
     public List<FullNameHandler> getSuperTypes (String fqn, boolean isArray) throws IOException {
 	if (isArray)
 	    return List.of (FullNameHandler.JL_OBJECT);
+	recordLookup (fqn);
 	Optional<List<FullNameHandler>> supers = cth.getSuperTypes (fqn);
 	if (supers.isPresent ())
 	    return supers.get ();
@@ -127,6 +183,26 @@ public class ClassInformationProvider {
 	}
     }
 
+    public void saveClassPathIndex () {
+	try {
+	    crh.saveIndex ();
+	} catch (IOException e) {
+	    diagnostics.report (new NoSourceDiagnostics ("Failed to save classpath index: %s", e.toString ()));
+	}
+    }
+
+    public void closeArchives () {
+	try {
+	    crh.closeArchives ();
+	} catch (IOException e) {
+	    diagnostics.report (new NoSourceDiagnostics ("Failed to close classpath archives: %s", e.toString ()));
+	}
+    }
+
+    public ClassResourceHolder getClassResourceHolder () {
+	return crh;
+    }
+
     public int getClasspathEntrySize () {
 	return crh.getClasspathEntrySize ();
     }
@@ -196,6 +272,7 @@ public class ClassInformationProvider {
     }
 
     public boolean isInterface (String fqn) {
+	recordLookup (fqn);
 	TypeDeclaration td = cth.getType (fqn);
 	if (td == null)
 	    return crh.isInterface (fqn);
@@ -206,6 +283,7 @@ public class ClassInformationProvider {
 	if (fqn == null)
 	    throw new NullPointerException ("null is not a valid class name");
 	String dotName = fqn.getFullDotName ();
+	recordLookup (dotName);
 	TypeDeclaration td = cth.getType (dotName);
 	if (td != null)
 	    return tdFunc.apply (td);
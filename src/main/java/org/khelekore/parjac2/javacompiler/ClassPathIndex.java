@@ -0,0 +1,135 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/** An on disk index for a jar file or ct.sym.
+ *  The index holds the names of the class entries in the archive and the class information
+ *  that has been extracted from the entries that have been loaded.
+ *  Index files are memory mapped when read, class information is decoded when it is needed.
+ */
+class ClassPathIndex {
+    private static final int MAGIC = 0x50434958;
+    private static final int VERSION = 1;
+
+    /** Get the file that holds the index for the given archive */
+    public static Path getIndexFile (Path indexDirectory, Path archive) {
+	String path = archive.toAbsolutePath ().toString ();
+	String name = archive.getFileName () + "-" + Integer.toHexString (path.hashCode ()) + ".idx";
+	return indexDirectory.resolve (name);
+    }
+
+    /** Read the index for the given archive.
+     * @return the index or null if it is missing or does not match the archive
+     */
+    public static Index read (Path indexFile, Path archive, long lastModified, long size) throws IOException {
+	ByteBuffer buf;
+	try (FileChannel fc = FileChannel.open (indexFile, StandardOpenOption.READ)) {
+	    buf = fc.map (FileChannel.MapMode.READ_ONLY, 0, fc.size ());
+	} catch (NoSuchFileException e) {
+	    return null;
+	}
+	try {
+	    if (buf.getInt () != MAGIC || buf.getInt () != VERSION)
+		return null;
+	    if (!archive.toAbsolutePath ().toString ().equals (readString (buf)) ||
+		buf.getLong () != lastModified || buf.getLong () != size)
+		return null;
+	    int numEntries = readCount (buf, 4);
+	    List<String> entryNames = new ArrayList<> (numEntries);
+	    for (int i = 0; i < numEntries; i++)
+		entryNames.add (readString (buf));
+	    ByteBuffer[] infos = new ByteBuffer[numEntries];
+	    int numInfos = readCount (buf, 8);
+	    for (int i = 0; i < numInfos; i++) {
+		int entry = buf.getInt ();
+		int length = readCount (buf, 1);
+		infos[entry] = buf.slice (buf.position (), length);
+		buf.position (buf.position () + length);
+	    }
+	    return new Index (entryNames, infos);
+	} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+	    return null; // truncated or broken, will be rewritten
+	}
+    }
+
+    /** Write the index for the given archive.
+     * @param infos the encoded class information for each entry, null for entries that have not been loaded
+     */
+    public static void write (Path indexFile, Path archive, long lastModified, long size,
+			      List<String> entryNames, List<ByteBuffer> infos) throws IOException {
+	Files.createDirectories (indexFile.getParent ());
+	Path tmp = indexFile.resolveSibling (indexFile.getFileName () + ".tmp");
+	try (DataOutputStream dos = new DataOutputStream (new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+	    dos.writeInt (MAGIC);
+	    dos.writeInt (VERSION);
+	    writeString (dos, archive.toAbsolutePath ().toString ());
+	    dos.writeLong (lastModified);
+	    dos.writeLong (size);
+	    dos.writeInt (entryNames.size ());
+	    for (String name : entryNames)
+		writeString (dos, name);
+	    int numInfos = (int)infos.stream ().filter (b -> b != null).count ();
+	    dos.writeInt (numInfos);
+	    for (int i = 0; i < infos.size (); i++) {
+		ByteBuffer info = infos.get (i);
+		if (info == null)
+		    continue;
+		ByteBuffer b = info.duplicate ();
+		dos.writeInt (i);
+		dos.writeInt (b.remaining ());
+		byte[] data = new byte[b.remaining ()];
+		b.get (data);
+		dos.write (data);
+	    }
+	}
+	// The old index may still be mapped, but that mapping stays valid after the move
+	Files.move (tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public record Index (List<String> entryNames, ByteBuffer[] infos) {
+    }
+
+    public static void writeString (DataOutputStream dos, String s) throws IOException {
+	if (s == null) {
+	    dos.writeInt (-1);
+	    return;
+	}
+	byte[] data = s.getBytes (StandardCharsets.UTF_8);
+	dos.writeInt (data.length);
+	dos.write (data);
+    }
+
+    /** Read a count of items that each use at least minSize bytes.
+     * @throws BufferUnderflowException if the count is negative or the items can not fit in the buffer
+     */
+    public static int readCount (ByteBuffer buf, int minSize) {
+	int count = buf.getInt ();
+	if (count < 0 || (long)count * minSize > buf.remaining ())
+	    throw new BufferUnderflowException ();
+	return count;
+    }
+
+    public static String readString (ByteBuffer buf) {
+	int length = buf.getInt ();
+	if (length < 0)
+	    return null;
+	if (length > buf.remaining ())
+	    throw new BufferUnderflowException ();
+	byte[] data = new byte[length];
+	buf.get (data);
+	return new String (data, StandardCharsets.UTF_8);
+    }
+}
@@ -1,9 +1,14 @@
 package org.khelekore.parjac2.javacompiler;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.constant.ClassDesc;
 import java.lang.constant.MethodTypeDesc;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -12,10 +17,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import org.khelekore.parjac2.CompilerDiagnosticCollector;
 import org.khelekore.parjac2.NoSourceDiagnostics;
@@ -25,8 +33,8 @@ import org.khelekore.parjac2.parser.ParsePosition;
 
 import io.github.dmlloyd.classfile.Attributes;
 import io.github.dmlloyd.classfile.ClassModel;
-import io.github.dmlloyd.classfile.ClassSignature;
 import io.github.dmlloyd.classfile.ClassFile;
+import io.github.dmlloyd.classfile.ClassSignature;
 import io.github.dmlloyd.classfile.FieldModel;
 import io.github.dmlloyd.classfile.MethodModel;
 import io.github.dmlloyd.classfile.attribute.ExceptionsAttribute;
@@ -37,25 +45,94 @@ public class ClassResourceHolder {
     private final CompilerDiagnosticCollector diagnostics;
     private final Path ctSym;
     private final List<Path> classPathEntries;
+    private final List<ScannedEntry> scanKey;
+    private final Path indexDirectory;
+    private final ArchivePool archivePool;
 
     // full class name to information, name only has '.' as separator, no / or $
-    private Map<String, ClasspathClassInformation> foundClasses = new HashMap<> ();
+    // Filled in concurrently, a class from a later classpath entry replaces an earlier one
+    private Map<String, ClasspathClassInformation> foundClasses = new ConcurrentHashMap<> ();
+    private boolean scanned = false;
+    // The scanned jar files and ct.sym, used to write the classpath index
+    private List<ScannedArchive> archives = new ArrayList<> ();
+    // Classes loaded by this compilation, either read from a class file or decoded from the index
+    private final LongAdder classesRead = new LongAdder ();
+    private final LongAdder classesFromIndex = new LongAdder ();
 
     public ClassResourceHolder (CompilerDiagnosticCollector diagnostics, CompilationArguments settings) {
+	this (diagnostics, settings, null);
+    }
+
+    /** Create a new holder that will reuse the scanned classes of the previous holder
+     *  if the classpath and all of its jars are unchanged.
+     * @param previous the holder from an earlier compilation, may be null
+     */
+    public ClassResourceHolder (CompilerDiagnosticCollector diagnostics, CompilationArguments settings,
+				ClassResourceHolder previous) {
 	this.diagnostics = diagnostics;
 	this.classPathEntries = settings.getClassPathEntries ();
 	String javaHome = System.getProperty ("java.home");
 	ctSym = Paths.get (javaHome, "lib", "ct.sym");
+	scanKey = getScanKey ();
+	indexDirectory = settings.getClassPathIndexDirectory ();
+	archivePool = new ArchivePool (settings.getMemoryMapArchives ());
+	if (previous != null && previous.scanned && scanKey != null && scanKey.equals (previous.scanKey)) {
+	    foundClasses = previous.foundClasses;
+	    archives = previous.archives;
+	    scanned = true;
+	}
+    }
+
+    /** Get the things that decide if a scan is still valid.
+     *  Directories may change without their own timestamp changing so they are never reused.
+     */
+    private List<ScannedEntry> getScanKey () {
+	List<ScannedEntry> ret = new ArrayList<> ();
+	try {
+	    ret.add (ScannedEntry.of (ctSym));
+	    if (classPathEntries != null) {
+		for (Path p : classPathEntries) {
+		    if (Files.isDirectory (p))
+			return null;
+		    ret.add (ScannedEntry.of (p));
+		}
+	    }
+	} catch (IOException e) {
+	    return null;
+	}
+	return ret;
+    }
+
+    private record ScannedEntry (Path path, long lastModified, long size) {
+	public static ScannedEntry of (Path p) throws IOException {
+	    return new ScannedEntry (p.toAbsolutePath (), Files.getLastModifiedTime (p).toMillis (), Files.size (p));
+	}
     }
 
     public void scanClassPath () throws IOException {
-	scanCtSym ();
-	if (classPathEntries != null)
-	    for (Path p : classPathEntries)
-		scan (p);
+	if (scanned)
+	    return;
+	// ct.sym has order 0 and the classpath entries are numbered from 1, see storeName
+	int numEntries = classPathEntries == null ? 0 : classPathEntries.size ();
+	ScannedArchive[] scannedArchives = new ScannedArchive[numEntries + 1];
+	try {
+	    IntStream.rangeClosed (0, numEntries).parallel ().forEach (i -> {
+		    try {
+			scannedArchives[i] = i == 0 ? scanCtSym () : scan (i, classPathEntries.get (i - 1));
+		    } catch (IOException e) {
+			throw new UncheckedIOException (e);
+		    }
+		});
+	} catch (UncheckedIOException e) {
+	    throw e.getCause ();
+	}
+	for (ScannedArchive sa : scannedArchives)
+	    if (sa != null)
+		archives.add (sa);
+	scanned = true;
     }
 
-    private void scanCtSym () throws IOException {
+    private ScannedArchive scanCtSym () throws IOException {
 	String javaVersion = System.getProperty ("java.specification.version");
 	int v = Integer.parseInt (javaVersion);
 	if (v < 11)
@@ -64,18 +141,48 @@ public class ClassResourceHolder {
 	if (!Files.exists (ctSym))
 	    throw new IOException ("Failed to find: " + ctSym);
 
-	try (JarFile jf = new JarFile (ctSym.toFile ())) {
-	    jf.stream ().forEach (e -> storeCtSymEntry (ctSym, e, ctSymVersion));
+	return scanArchive (ctSym, e -> storeCtSymEntry (ctSym, e, ctSymVersion));
+    }
+
+    /** Find all the class entries in the archive, the entry names are read from the index if
+     *  we have an up to date index.
+     */
+    private ScannedArchive scanArchive (Path archive, Function<String, ClasspathClassInformation> store)
+	throws IOException {
+	ScannedEntry se = ScannedEntry.of (archive);
+	ClassPathIndex.Index index = null;
+	if (indexDirectory != null)
+	    index = ClassPathIndex.read (ClassPathIndex.getIndexFile (indexDirectory, archive),
+					 archive, se.lastModified (), se.size ());
+	List<String> entryNames = new ArrayList<> ();
+	List<ClasspathClassInformation> entries = new ArrayList<> ();
+	if (index != null) {
+	    List<String> indexedNames = index.entryNames ();
+	    for (int i = 0; i < indexedNames.size (); i++) {
+		ClasspathClassInformation r = store.apply (indexedNames.get (i));
+		r.indexedInfo = index.infos ()[i];
+		entryNames.add (indexedNames.get (i));
+		entries.add (r);
+	    }
+	} else {
+	    for (String name : archivePool.getEntryNames (archive)) {
+		ClasspathClassInformation r = store.apply (name);
+		if (r != null) {
+		    entryNames.add (name);
+		    entries.add (r);
+		}
+	    }
 	}
+	return new ScannedArchive (se, entryNames, entries, index == null);
     }
 
-    private void storeCtSymEntry (Path ctSymFile, JarEntry e, String ctSymVersion) {
-	String name = e.getName ();
+    private ClasspathClassInformation storeCtSymEntry (Path ctSymFile, String entryName, String ctSymVersion) {
+	String name = entryName;
 	String original = name;
 	if (name.startsWith ("meta-inf/"))
-	    return; // skip
+	    return null; // skip
 	if (!name.endsWith (".sig"))
-	    return; // skip
+	    return null; // skip
 	int i = name.indexOf ("/");
 	if (i < 0)
 	    diagnostics.report (new NoSourceDiagnostics ("ct.sym entry: %s does not contain any path, skipping",
@@ -93,39 +200,47 @@ public class ClassResourceHolder {
 	// For now we are going to assume that later version come later in the file so
 	// no need to check ctSymVersion
 	FullNameHandler fullName = getFullName (name, ".sig", '/');
-	storeName (new CtSymResult (fullName, ctSymFile, versions, moduleName, name, e.getName ()));
+	CtSymResult r = new CtSymResult (fullName, ctSymFile, versions, moduleName, name, entryName);
+	storeName (0, r);
+	return r;
     }
 
-    private void scan (Path p) throws IOException {
+    /** Scan a classpath entry
+     * @param order the position in the classpath
+     * @return the scanned archive or null if the entry is a directory or missing
+     */
+    private ScannedArchive scan (int order, Path p) throws IOException {
 	if (Files.isDirectory (p))
-	    scanDirectory (p);
+	    scanDirectory (order, p);
 	else if (Files.isRegularFile (p))
-	    scanJar (p);
+	    return scanJar (order, p);
+	return null;
     }
 
-    private void scanDirectory (final Path start) throws IOException {
-	Files.walk (start).forEach (f -> {
-		if (Files.isRegularFile (f)) {
-		    Path relative = start.relativize (f);
-		    FullNameHandler fullName = getFullName (relative.toString (), ".class", File.separatorChar);
-		    storeName (new PathResult (fullName, f));
-		}
-	    });
+    private void scanDirectory (int order, final Path start) throws IOException {
+	try (Stream<Path> s = Files.walk (start)) {
+	    s.parallel ().forEach (f -> {
+		    // the destination directory may also hold the incremental state
+		    if (Files.isRegularFile (f) && f.getFileName ().toString ().endsWith (".class")) {
+			Path relative = start.relativize (f);
+			FullNameHandler fullName = getFullName (relative.toString (), ".class", File.separatorChar);
+			storeName (order, new PathResult (fullName, f));
+		    }
+		});
+	}
     }
 
-    private void scanJar (Path jarfile) throws IOException {
-	try (JarFile jf = new JarFile (jarfile.toFile ())) {
-	    jf.stream ().forEach (e -> storeClass (jarfile, e));
-	}
+    private ScannedArchive scanJar (int order, Path jarfile) throws IOException {
+	return scanArchive (jarfile, e -> storeClass (order, jarfile, e));
     }
 
-    private void storeClass (Path jarfile, JarEntry e) {
-	String name = e.getName ();
+    private ClasspathClassInformation storeClass (int order, Path jarfile, String name) {
 	String extension = ".class";
 	if (!name.endsWith (extension))
-	    return;
-	JarEntryResult r = new JarEntryResult (getFullName (e.getName (), extension, '/'), jarfile, e.getName ());
-	storeName (r);
+	    return null;
+	JarEntryResult r = new JarEntryResult (getFullName (name, extension, '/'), jarfile, name);
+	storeName (order, r);
+	return r;
     }
 
     private static FullNameHandler getFullName (String name, String extension, char dirSeparator) {
@@ -134,8 +249,58 @@ public class ClassResourceHolder {
 	return FullNameHandler.ofInternalName (slashName);
     }
 
-    private void storeName (ClasspathClassInformation r) {
-	foundClasses.put (r.getFullDotName (), r);
+    /** Store the class, the class from the first classpath entry wins, but any classpath
+     *  entry replaces a class from ct.sym.
+     *  Within one jar the last stored class wins, jars are scanned by only one thread.
+     */
+    private void storeName (int order, ClasspathClassInformation r) {
+	r.classPathOrder = order;
+	foundClasses.merge (r.getFullDotName (), r, (o, n) -> replaces (n.classPathOrder, o.classPathOrder) ? n : o);
+    }
+
+    private static boolean replaces (int newOrder, int oldOrder) {
+	return oldOrder == 0 || (newOrder != 0 && newOrder <= oldOrder);
+    }
+
+    /** Write the classpath index for all archives that have new entries or newly loaded classes.
+     *  Does nothing if no index directory is configured.
+     */
+    public void saveIndex () throws IOException {
+	if (indexDirectory == null)
+	    return;
+	for (ScannedArchive sa : archives) {
+	    boolean changed = sa.newIndex;
+	    List<ByteBuffer> infos = new ArrayList<> (sa.entries.size ());
+	    for (ClasspathClassInformation r : sa.entries) {
+		ByteBuffer info = r.getIndexInfo ();
+		if (info != r.indexedInfo)
+		    changed = true;
+		infos.add (info);
+	    }
+	    if (!changed)
+		continue;
+	    Path archive = sa.entry.path ();
+	    ClassPathIndex.write (ClassPathIndex.getIndexFile (indexDirectory, archive), archive,
+				  sa.entry.lastModified (), sa.entry.size (), sa.entryNames, infos);
+	    for (int i = 0; i < infos.size (); i++)
+		sa.entries.get (i).indexedInfo = infos.get (i);
+	    sa.newIndex = false;
+	}
+    }
+
+    private static class ScannedArchive {
+	private final ScannedEntry entry;
+	private final List<String> entryNames;
+	private final List<ClasspathClassInformation> entries;
+	private boolean newIndex;
+
+	public ScannedArchive (ScannedEntry entry, List<String> entryNames,
+			       List<ClasspathClassInformation> entries, boolean newIndex) {
+	    this.entry = entry;
+	    this.entryNames = entryNames;
+	    this.entries = entries;
+	    this.newIndex = newIndex;
+	}
     }
 
     public LookupResult hasVisibleType (String fqn) {
@@ -195,9 +360,18 @@ public class ClassResourceHolder {
 	return Flags.isInterface (r.accessFlags);
     }
 
+    /** Close the archives that have been opened to load classes */
+    public void closeArchives () throws IOException {
+	archivePool.close ();
+    }
+
     private boolean loadNoCheckedException (ClasspathClassInformation r) {
 	try {
-	    r.ensureNodeIsLoaded ();
+	    switch (r.ensureNodeIsLoaded (archivePool)) {
+	    case READ -> classesRead.increment ();
+	    case FROM_INDEX -> classesFromIndex.increment ();
+	    case ALREADY_LOADED -> { /* nothing */ }
+	    }
 	    return true;
 	} catch (IOException e) {
 	    e.printStackTrace ();
@@ -211,6 +385,18 @@ public class ClassResourceHolder {
 	return foundClasses.size ();
     }
 
+    /** Get the number of classes that were read from class files during this compilation */
+    public long getClassesRead () {
+	return classesRead.sum ();
+    }
+
+    /** Get the number of classes that were decoded from the classpath index during this compilation */
+    public long getClassesFromIndex () {
+	return classesFromIndex.sum ();
+    }
+
+    private enum LoadResult { ALREADY_LOADED, FROM_INDEX, READ }
+
     private static abstract class ClasspathClassInformation {
 	private FullNameHandler fullName;
 	private ClassSignature signature;
@@ -220,6 +406,9 @@ public class ClassResourceHolder {
 	private int accessFlags;
 	private Map<String, VariableInfo> fields;
 	private Map<String, List<MethodInfo>> methods;
+	// Encoded class information from the classpath index, may be null
+	private ByteBuffer indexedInfo;
+	private int classPathOrder;
 
 	private Lock lock = new ReentrantLock ();
 
@@ -235,19 +424,120 @@ public class ClassResourceHolder {
 	    return fullName.getFullDotName ();
 	}
 
-	public void ensureNodeIsLoaded () throws IOException {
+	public LoadResult ensureNodeIsLoaded (ArchivePool archivePool) throws IOException {
 	    lock.lock ();
 	    try {
 		if (loaded)
-		    return;
+		    return LoadResult.ALREADY_LOADED;
 		loaded = true;
-		parse (readNode ());
+		if (indexedInfo != null) {
+		    try {
+			readIndexInfo (indexedInfo.duplicate ());
+			return LoadResult.FROM_INDEX;
+		    } catch (RuntimeException e) {
+			// broken index entry, read the class and have the entry rewritten
+			indexedInfo = null;
+			superClass = null;
+			signature = null;
+		    }
+		}
+		parse (readNode (archivePool));
+		return LoadResult.READ;
+	    } finally {
+		lock.unlock ();
+	    }
+	}
+
+	/** Get the encoded class information to store in the index.
+	 * @return the class information or null if this class has not been loaded
+	 */
+	public ByteBuffer getIndexInfo () throws IOException {
+	    lock.lock ();
+	    try {
+		if (indexedInfo != null || !loaded || superTypes == null)
+		    return indexedInfo;
+		ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+		DataOutputStream dos = new DataOutputStream (bos);
+		dos.writeInt (accessFlags);
+		dos.writeBoolean (superClass != null);
+		dos.writeInt (superTypes.size ());
+		for (FullNameHandler fn : superTypes)
+		    ClassPathIndex.writeString (dos, fn.getSlashName ());
+		ClassPathIndex.writeString (dos, signature == null ? null : signature.signatureString ());
+		dos.writeInt (fields.size ());
+		for (VariableInfo vi : fields.values ()) {
+		    ClassResourceField f = (ClassResourceField)vi;
+		    ClassPathIndex.writeString (dos, f.name ());
+		    dos.writeInt (f.flags ());
+		    ClassPathIndex.writeString (dos, f.typeclass ());
+		    ClassPathIndex.writeString (dos, f.signature ());
+		}
+		dos.writeInt (methods.values ().stream ().mapToInt (List::size).sum ());
+		for (List<MethodInfo> ls : methods.values ()) {
+		    for (MethodInfo mi : ls) {
+			ClassPathIndex.writeString (dos, mi.name ());
+			dos.writeInt (mi.flags ());
+			ClassPathIndex.writeString (dos, mi.methodTypeDesc ().descriptorString ());
+			ClassPathIndex.writeString (dos, mi.signature ());
+			ExceptionsAttribute ea = mi.exceptions ();
+			dos.writeInt (ea == null ? -1 : ea.exceptions ().size ());
+			if (ea != null)
+			    for (ClassEntry ce : ea.exceptions ())
+				ClassPathIndex.writeString (dos, ce.asInternalName ());
+		    }
+		}
+		dos.flush ();
+		return ByteBuffer.wrap (bos.toByteArray ());
 	    } finally {
 		lock.unlock ();
 	    }
 	}
 
-	public abstract byte[] readNode () throws IOException;
+	private void readIndexInfo (ByteBuffer buf) {
+	    accessFlags = buf.getInt ();
+	    boolean hasSuperClass = buf.get () != 0;
+	    int numSuperTypes = ClassPathIndex.readCount (buf, 4);
+	    superTypes = new ArrayList<> (numSuperTypes);
+	    for (int i = 0; i < numSuperTypes; i++)
+		superTypes.add (FullNameHandler.ofInternalName (ClassPathIndex.readString (buf)));
+	    if (hasSuperClass)
+		superClass = superTypes.get (0);
+	    String classSignature = ClassPathIndex.readString (buf);
+	    if (classSignature != null)
+		signature = ClassSignature.parseFrom (classSignature);
+	    int numFields = ClassPathIndex.readCount (buf, 16);
+	    fields = new HashMap<> ();
+	    for (int i = 0; i < numFields; i++) {
+		String name = ClassPathIndex.readString (buf);
+		int flags = buf.getInt ();
+		String typeName = ClassPathIndex.readString (buf);
+		String fieldSignature = ClassPathIndex.readString (buf);
+		fields.put (name, new ClassResourceField (name, flags, typeName, fieldSignature));
+	    }
+	    int numMethods = ClassPathIndex.readCount (buf, 20);
+	    methods = new HashMap<> ();
+	    for (int i = 0; i < numMethods; i++) {
+		String name = ClassPathIndex.readString (buf);
+		int flags = buf.getInt ();
+		MethodTypeDesc md = MethodTypeDesc.ofDescriptor (ClassPathIndex.readString (buf));
+		String methodSignature = ClassPathIndex.readString (buf);
+		// -1 means no exceptions attribute
+		int numExceptions = buf.getInt ();
+		ExceptionsAttribute thrownExceptions = null;
+		if (numExceptions >= 0) {
+		    if ((long)numExceptions * 4 > buf.remaining ())
+			throw new BufferUnderflowException ();
+		    ClassDesc[] exceptions = new ClassDesc[numExceptions];
+		    for (int j = 0; j < numExceptions; j++)
+			exceptions[j] = ClassDesc.ofInternalName (ClassPathIndex.readString (buf));
+		    thrownExceptions = ExceptionsAttribute.ofSymbols (exceptions);
+		}
+		List<MethodInfo> ls = methods.computeIfAbsent (name, n -> new ArrayList<> ());
+		ls.add (new ClassResourceMethod (fullName, name, flags, md, methodSignature, thrownExceptions));
+	    }
+	}
+
+	public abstract byte[] readNode (ArchivePool archivePool) throws IOException;
 
 	private void parse (byte[] data) throws IOException {
 	    try {
@@ -286,13 +576,8 @@ public class ClassResourceHolder {
 	    return getClass ().getName () + "{" + path + "}";
 	}
 
-	@Override public byte[] readNode () throws IOException {
-	    try (JarFile jf = new JarFile (ctSymFile.toFile ())) {
-		JarEntry e = jf.getJarEntry (path);
-		try (InputStream jis = jf.getInputStream (e)) {
-		    return jis.readAllBytes ();
-		}
-	    }
+	@Override public byte[] readNode (ArchivePool archivePool) throws IOException {
+	    return archivePool.read (ctSymFile, path);
 	}
 
 	@Override public String getPath () {
@@ -312,7 +597,7 @@ public class ClassResourceHolder {
 	    return getClass ().getName () + "{" + path + "}";
 	}
 
-	@Override public byte[] readNode () throws IOException {
+	@Override public byte[] readNode (ArchivePool archivePool) throws IOException {
 	    return Files.readAllBytes (path);
 	}
 
@@ -335,15 +620,8 @@ public class ClassResourceHolder {
 	    return getClass ().getName () + "{" + jarfile + "!" + path + "}";
 	}
 
-	@Override public byte[] readNode () throws IOException {
-	    // I tried to cache the jarfiles, but that made things a lot slower
-	    // due to less multi threading. Do if someone can prove it makes sense.
-	    try (JarFile jf = new JarFile (jarfile.toFile ())) {
-		JarEntry e = jf.getJarEntry (path);
-		try (InputStream jis = jf.getInputStream (e)) {
-		    return jis.readAllBytes ();
-		}
-	    }
+	@Override public byte[] readNode (ArchivePool archivePool) throws IOException {
+	    return archivePool.read (jarfile, path);
 	}
 
 	@Override public String getPath () {
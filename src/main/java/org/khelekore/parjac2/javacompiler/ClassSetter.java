@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -53,22 +54,53 @@ public class ClassSetter {
 				      ClassInformationProvider cip,
 				      List<ParsedEntry> trees,
 				      CompilerDiagnosticCollector diagnostics) {
+	List<ClassSetter> classSetters = registerTypes (javaTokens, cip, trees, pe -> diagnostics);
+	if (diagnostics.hasError ())
+	    return;
+
+	// Now that we know what types, fields and methods we have we check the method contents
+	runAll (cip, classSetters, ClassSetter::checkMethodBodies);
+
+	runAll (cip, classSetters, ClassSetter::checkUnusedImport);
+    }
+
+    /** Create the class setters and register the super types, fields and methods of all types.
+     *  After this the method bodies of each file can be checked independently of the other files,
+     *  using {@link #checkBodies}.
+     * @param fileDiagnostics gives the collector to use for each file
+     * @return the class setters, the types are not registered if a setter reported errors
+     */
+    public static List<ClassSetter> registerTypes (JavaTokens javaTokens,
+						   ClassInformationProvider cip,
+						   List<ParsedEntry> trees,
+						   Function<ParsedEntry, CompilerDiagnosticCollector> fileDiagnostics) {
 	List<ClassSetter> classSetters =
 	    trees.stream ()
 	    .filter (pe -> (pe.getRoot () instanceof OrdinaryCompilationUnit))
-	    .map (t -> new ClassSetter (javaTokens, cip, t, diagnostics)).collect (Collectors.toList ());
-	if (diagnostics.hasError ())
-	    return;
-	classSetters.parallelStream ().forEach (ClassSetter::registerSuperTypes);
+	    .map (t -> new ClassSetter (javaTokens, cip, t, fileDiagnostics.apply (t))).collect (Collectors.toList ());
+	if (classSetters.stream ().anyMatch (cs -> cs.diagnostics.hasError ()))
+	    return classSetters;
+	runAll (cip, classSetters, ClassSetter::registerSuperTypes);
 
 	// We add implicit fields and methods during these calls
-	classSetters.parallelStream ().forEach (ClassSetter::registerFields);
-	classSetters.parallelStream ().forEach (ClassSetter::registerMethods);
+	runAll (cip, classSetters, ClassSetter::registerFields);
+	runAll (cip, classSetters, ClassSetter::registerMethods);
+	return classSetters;
+    }
 
-	// Now that we know what types, fields and methods we have we check the method contents
-	classSetters.parallelStream ().forEach (ClassSetter::checkMethodBodies);
+    private static void runAll (ClassInformationProvider cip, List<ClassSetter> classSetters,
+				Consumer<ClassSetter> step) {
+	classSetters.parallelStream ().forEach (cs -> cip.runWithOrigin (cs.tree.getOrigin (), () -> step.accept (cs)));
+    }
+
+    public ParsedEntry getParsedEntry () {
+	return tree;
+    }
 
-	classSetters.parallelStream ().forEach (cs -> cs.checkUnusedImport ());
+    /** Check the method contents and imports of this file, the caller has to set up the origin */
+    public void checkBodies () {
+	checkMethodBodies ();
+	checkUnusedImport ();
     }
 
     public ClassSetter (JavaTokens javaTokens,
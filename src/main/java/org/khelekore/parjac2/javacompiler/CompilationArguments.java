@@ -1,5 +1,6 @@
 package org.khelekore.parjac2.javacompiler;
 
+import java.io.PrintStream;
 import java.nio.file.Path;
 import java.util.List;
 
@@ -13,6 +14,11 @@ public class CompilationArguments {
     private final List<Path> classPathEntries;
     private final boolean reportTime;
     private final boolean debug;
+    private final PrintStream output;
+    private IncrementalState incrementalState;
+    private Path classPathIndexDirectory;
+    private boolean memoryMapArchives;
+    private Path metricsOutput;
 
     public CompilationArguments () {
 	this (null, null, null, false, false);
@@ -21,11 +27,18 @@ public class CompilationArguments {
     public CompilationArguments (SourceProvider sourceProvider, BytecodeWriter classWriter,
 				 List<Path> classPathEntries,
 				 boolean reportTime, boolean debug) {
+	this (sourceProvider, classWriter, classPathEntries, reportTime, debug, System.out);
+    }
+
+    public CompilationArguments (SourceProvider sourceProvider, BytecodeWriter classWriter,
+				 List<Path> classPathEntries,
+				 boolean reportTime, boolean debug, PrintStream output) {
 	this.sourceProvider = sourceProvider;
 	this.classWriter = classWriter;
 	this.classPathEntries = classPathEntries;
 	this.reportTime = reportTime;
 	this.debug = debug;
+	this.output = output;
     }
 
     public SourceProvider getSourceProvider () {
@@ -48,6 +61,49 @@ public class CompilationArguments {
 	return debug;
     }
 
+    /** Get the stream that timing and debug information is written to */
+    public PrintStream getOutput () {
+	return output;
+    }
+
+    /** Set the state to use for incremental compilation, null means compile everything */
+    public void setIncrementalState (IncrementalState incrementalState) {
+	this.incrementalState = incrementalState;
+    }
+
+    public IncrementalState getIncrementalState () {
+	return incrementalState;
+    }
+
+    /** Set the directory to store the classpath index in, null means no index is used */
+    public void setClassPathIndexDirectory (Path classPathIndexDirectory) {
+	this.classPathIndexDirectory = classPathIndexDirectory;
+    }
+
+    public Path getClassPathIndexDirectory () {
+	return classPathIndexDirectory;
+    }
+
+    /** Set if jar files and ct.sym should be memory mapped when classes are read from them */
+    public void setMemoryMapArchives (boolean memoryMapArchives) {
+	this.memoryMapArchives = memoryMapArchives;
+    }
+
+    public boolean getMemoryMapArchives () {
+	return memoryMapArchives;
+    }
+
+    /** Set the file to write compilation metrics to, json or csv depending on the file extension.
+     *  null means no metrics are written.
+     */
+    public void setMetricsOutput (Path metricsOutput) {
+	this.metricsOutput = metricsOutput;
+    }
+
+    public Path getMetricsOutput () {
+	return metricsOutput;
+    }
+
     public void validate (CompilerDiagnosticCollector diagnostics) {
     	if (sourceProvider == null)
 	    diagnostics.report (new NoSourceDiagnostics ("SourceProvider may not be null"));
@@ -0,0 +1,240 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Timings and counters for one compilation, written as a json or csv report.
+ *  Phase times are always collected, lexer times and allocation are only measured
+ *  when detailed metrics are wanted since they cost a bit.
+ *  Without detailed metrics the parse time of a file includes the lexing.
+ *  The tree time of a file is the time the parser spends building the syntax tree,
+ *  the types time is the time spent collecting the types of the tree.
+ */
+public class CompilationMetrics {
+    private final boolean detailed;
+    // null if allocation is not measured
+    private final com.sun.management.ThreadMXBean threads;
+    private final List<Phase> phases = Collections.synchronizedList (new ArrayList<> ());
+    private final Map<Path, FileMetrics> files = new ConcurrentHashMap<> ();
+    private final Map<String, Long> counters = Collections.synchronizedMap (new LinkedHashMap<> ());
+    private long totalNanos;
+
+    public CompilationMetrics (boolean detailed) {
+	this.detailed = detailed;
+	threads = detailed ? getAllocationBean () : null;
+    }
+
+    private static com.sun.management.ThreadMXBean getAllocationBean () {
+	if (ManagementFactory.getThreadMXBean () instanceof com.sun.management.ThreadMXBean tb &&
+	    tb.isThreadAllocatedMemorySupported () && tb.isThreadAllocatedMemoryEnabled ())
+	    return tb;
+	return null;
+    }
+
+    /** Check if lexer times and similar, more expensive, metrics should be collected */
+    public boolean isDetailed () {
+	return detailed;
+    }
+
+    /** Get the number of bytes allocated by all threads, -1 if allocation is not measured.
+     *  Phases run on many threads so the allocation of a phase is the difference of this
+     *  before and after, which includes anything else running at the same time.
+     */
+    public long getAllocatedBytes () {
+	return threads == null ? -1 : threads.getTotalThreadAllocatedBytes ();
+    }
+
+    public void addPhase (String name, long nanos, long allocatedBytes) {
+	phases.add (new Phase (name, nanos, allocatedBytes));
+    }
+
+    public FileMetrics getFile (Path file) {
+	return files.computeIfAbsent (file, FileMetrics::new);
+    }
+
+    public void setCounter (String name, long value) {
+	counters.put (name, value);
+    }
+
+    public void setTotalNanos (long totalNanos) {
+	this.totalNanos = totalNanos;
+    }
+
+    /** Write the report, the format is csv if the file name ends with .csv, otherwise json */
+    public void write (Path output) throws IOException {
+	Path parent = output.toAbsolutePath ().getParent ();
+	if (parent != null)
+	    Files.createDirectories (parent);
+	try (BufferedWriter bw = Files.newBufferedWriter (output, StandardCharsets.UTF_8);
+	     PrintWriter pw = new PrintWriter (bw)) {
+	    if (output.getFileName ().toString ().endsWith (".csv"))
+		writeCsv (pw);
+	    else
+		writeJson (pw);
+	}
+    }
+
+    private List<FileMetrics> sortedFiles () {
+	List<FileMetrics> ret = new ArrayList<> (files.values ());
+	ret.sort (Comparator.comparing (f -> f.file.toString ()));
+	return ret;
+    }
+
+    private void writeJson (PrintWriter pw) {
+	pw.println ("{");
+	pw.format ("  \"totalMillis\": %s,\n", millis (totalNanos));
+	pw.println ("  \"counters\": {");
+	synchronized (counters) {
+	    int i = 0;
+	    for (Map.Entry<String, Long> me : counters.entrySet ())
+		pw.format ("    %s: %d%s\n", jsonString (me.getKey ()), me.getValue (), comma (++i, counters.size ()));
+	}
+	pw.println ("  },");
+	pw.println ("  \"phases\": [");
+	synchronized (phases) {
+	    for (int i = 0; i < phases.size (); i++) {
+		Phase p = phases.get (i);
+		pw.format ("    {\"name\": %s, \"millis\": %s, \"allocatedBytes\": %d}%s\n",
+			   jsonString (p.name), millis (p.nanos), p.allocatedBytes, comma (i + 1, phases.size ()));
+	    }
+	}
+	pw.println ("  ],");
+	pw.println ("  \"files\": [");
+	List<FileMetrics> fms = sortedFiles ();
+	for (int i = 0; i < fms.size (); i++) {
+	    FileMetrics fm = fms.get (i);
+	    pw.format ("    {\"file\": %s", jsonString (fm.file.toString ()));
+	    for (Map.Entry<String, Object> me : fm.values ().entrySet ())
+		pw.format (", \"%s\": %s", me.getKey (), me.getValue ());
+	    pw.format ("}%s\n", comma (i + 1, fms.size ()));
+	}
+	pw.println ("  ]");
+	pw.println ("}");
+    }
+
+    private static String comma (int done, int size) {
+	return done < size ? "," : "";
+    }
+
+    /** One value per row: section, name, metric, value */
+    private void writeCsv (PrintWriter pw) {
+	pw.println ("section,name,metric,value");
+	pw.format ("compilation,total,millis,%s\n", millis (totalNanos));
+	synchronized (counters) {
+	    counters.forEach ((k, v) -> pw.format ("compilation,total,%s,%d\n", csvString (k), v));
+	}
+	synchronized (phases) {
+	    for (Phase p : phases) {
+		String name = csvString (p.name);
+		pw.format ("phase,%s,millis,%s\n", name, millis (p.nanos));
+		pw.format ("phase,%s,allocatedBytes,%d\n", name, p.allocatedBytes);
+	    }
+	}
+	for (FileMetrics fm : sortedFiles ()) {
+	    String name = csvString (fm.file.toString ());
+	    fm.values ().forEach ((k, v) -> pw.format ("file,%s,%s,%s\n", name, k, v));
+	}
+    }
+
+    private static String millis (long nanos) {
+	return String.format (Locale.ROOT, "%.3f", nanos / 1.0e6);
+    }
+
+    private static String jsonString (String s) {
+	StringBuilder sb = new StringBuilder ("\"");
+	for (int i = 0; i < s.length (); i++) {
+	    char c = s.charAt (i);
+	    switch (c) {
+	    case '"' -> sb.append ("\\\"");
+	    case '\\' -> sb.append ("\\\\");
+	    case '\n' -> sb.append ("\\n");
+	    case '\r' -> sb.append ("\\r");
+	    case '\t' -> sb.append ("\\t");
+	    default -> {
+		if (c < 0x20)
+		    sb.append (String.format ("\\u%04x", (int)c));
+		else
+		    sb.append (c);
+	    }
+	    }
+	}
+	return sb.append ('"').toString ();
+    }
+
+    private static String csvString (String s) {
+	if (s.indexOf (',') < 0 && s.indexOf ('"') < 0 && s.indexOf ('\n') < 0)
+	    return s;
+	return "\"" + s.replace ("\"", "\"\"") + "\"";
+    }
+
+    private record Phase (String name, long nanos, long allocatedBytes) {
+    }
+
+    /** The metrics of one source file, each field is only updated by the thread handling the file */
+    public static class FileMetrics {
+	private final Path file;
+	private long lexNanos;
+	private long parseNanos;
+	private long treeNanos;
+	private long typesNanos;
+	private long checkNanos;
+	private long codegenNanos;
+	private int tokens;
+	private int earleyStates;
+
+	public FileMetrics (Path file) {
+	    this.file = file;
+	}
+
+	/** Set the parse result, parse time includes the lexer time and the tree time */
+	public void setParse (long parseNanos, long lexNanos, long treeNanos, int tokens, int earleyStates) {
+	    this.parseNanos = parseNanos - lexNanos - treeNanos;
+	    this.lexNanos = lexNanos;
+	    this.treeNanos = treeNanos;
+	    this.tokens = tokens;
+	    this.earleyStates = earleyStates;
+	}
+
+	public void setTypesNanos (long typesNanos) {
+	    this.typesNanos = typesNanos;
+	}
+
+	public void setCheckNanos (long checkNanos) {
+	    this.checkNanos = checkNanos;
+	}
+
+	public void setCodegenNanos (long codegenNanos) {
+	    this.codegenNanos = codegenNanos;
+	}
+
+	public int getEarleyStates () {
+	    return earleyStates;
+	}
+
+	private Map<String, Object> values () {
+	    Map<String, Object> ret = new LinkedHashMap<> ();
+	    ret.put ("lexMillis", millis (lexNanos));
+	    ret.put ("parseMillis", millis (parseNanos));
+	    ret.put ("treeMillis", millis (treeNanos));
+	    ret.put ("typesMillis", millis (typesNanos));
+	    ret.put ("checkMillis", millis (checkNanos));
+	    ret.put ("codegenMillis", millis (codegenNanos));
+	    ret.put ("tokens", tokens);
+	    ret.put ("earleyStates", earleyStates);
+	    return ret;
+	}
+    }
+}
@@ -0,0 +1,71 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/** Thin client that sends compilation requests to a running {@link CompileServer}.
+ *  Takes the same arguments as {@link BatchCompiler}.
+ */
+public class CompileClient {
+    public static void main (String[] args) throws IOException {
+	Path socket = CompileServer.getDefaultSocket ();
+	int argStart = 0;
+	if (args.length > 1 && args[0].equals ("--socket")) {
+	    socket = Paths.get (args[1]);
+	    argStart = 2;
+	}
+	if (args.length == argStart) {
+	    System.err.println ("usage: java " + CompileClient.class.getName () +
+				" [--socket <path>] (" + CompileServer.STOP + " | <compiler arguments>)");
+	    return;
+	}
+	String[] compilerArgs = Arrays.copyOfRange (args, argStart, args.length);
+	System.exit (run (socket, Paths.get ("").toAbsolutePath (), compilerArgs, System.out, System.err));
+    }
+
+    /** Send one request to the server
+     * @param socket the socket the server listens on
+     * @param workingDirectory the directory that relative paths in the arguments are relative to
+     * @param args the compiler arguments
+     * @param output the stream to write the output of the compiler to
+     * @param errorOutput the stream to write the problems found to
+     * @return the exit code of the compilation
+     */
+    static int run (Path socket, Path workingDirectory, String[] args,
+		    PrintStream output, PrintStream errorOutput) throws IOException {
+	socket = socket.toAbsolutePath ();
+	// Do not send our arguments to a server that someone else may have started
+	CompileServer.checkPrivateDirectory (socket.getParent ());
+	try (SocketChannel s = SocketChannel.open (UnixDomainSocketAddress.of (socket))) {
+	    DataOutputStream dos = new DataOutputStream (new BufferedOutputStream (Channels.newOutputStream (s)));
+	    dos.writeUTF (workingDirectory.toString ());
+	    dos.writeInt (args.length);
+	    for (String a : args)
+		dos.writeUTF (a);
+	    dos.flush ();
+
+	    DataInputStream dis = new DataInputStream (new BufferedInputStream (Channels.newInputStream (s)));
+	    while (true) {
+		int type = dis.readByte ();
+		switch (type) {
+		case CompileServer.OUTPUT -> output.print (dis.readUTF ());
+		case CompileServer.ERROR -> errorOutput.print (dis.readUTF ());
+		case CompileServer.EXIT -> {
+		    return dis.readInt ();
+		}
+		default -> throw new IOException ("Unknown response type: " + type);
+		}
+	    }
+	}
+    }
+}
@@ -0,0 +1,233 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Locale;
+import java.util.Set;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.khelekore.parjac2.DiagnosticsSorter;
+import org.khelekore.parjac2.parser.Grammar;
+import org.khelekore.parjac2.parser.PredictCache;
+import org.khelekore.parjac2.parser.Rule;
+
+/** A long running compiler that keeps the grammar, the predict cache and the
+ *  scanned classpath alive between compilations.
+ *  Requests are sent over a unix domain socket, use {@link CompileClient} to send them.
+ *  The socket is in a directory that only the user running the server may access, since
+ *  a request reads and writes files with the permissions of that user.
+ *  Requests are handled one at a time, each compilation is multi threaded.
+ */
+public class CompileServer {
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString ("rwx------");
+
+    // Request: working directory, number of arguments, the arguments
+    // Response: any number of (OUTPUT|ERROR, text) followed by (EXIT, exit code)
+    static final int OUTPUT = 1;
+    static final int ERROR = 2;
+    static final int EXIT = 3;
+
+    // Sent as the only argument to stop the server
+    static final String STOP = "--stop-server";
+
+    private final Grammar grammar = new Grammar ();
+    private final JavaTokens javaTokens = new JavaTokens (grammar);
+    private final Rule goalRule;
+    private final PredictCache predictCache;
+    private ClassResourceHolder lastClassPath;
+
+    public static void main (String[] args) throws IOException {
+	Path socket = getDefaultSocket ();
+	boolean debug = false;
+	for (int i = 0; i < args.length; i++) {
+	    switch (args[i]) {
+	    case "--socket" -> socket = Paths.get (args[++i]);
+	    case "--debug" -> debug = true;
+	    default -> {
+		System.err.println ("usage: java " + CompileServer.class.getName () + " [--socket <path>] [--debug]");
+		return;
+	    }
+	    }
+	}
+	CompileServer server = new CompileServer (debug);
+	server.serve (socket);
+    }
+
+    /** Get the socket to use when none is given, it is in a per user directory in the temporary directory */
+    public static Path getDefaultSocket () {
+	return Paths.get (System.getProperty ("java.io.tmpdir"), "parjac-" + System.getProperty ("user.name"),
+			  "compile-server.sock");
+    }
+
+    public CompileServer (boolean debug) throws IOException {
+	goalRule = JavaGrammarHelper.readAndValidateRules (grammar, debug);
+	predictCache = JavaGrammarHelper.createPredictCache (grammar);
+    }
+
+    /** Handle requests until a stop request is received.
+     * @param socket the socket to listen on, its directory is created if needed
+     */
+    public void serve (Path socket) throws IOException {
+	socket = socket.toAbsolutePath ();
+	createPrivateDirectory (socket.getParent ());
+	UnixDomainSocketAddress address = UnixDomainSocketAddress.of (socket);
+	if (isServerRunning (address))
+	    throw new IOException ("A compile server is already running on: " + socket);
+	// left by a server that did not stop cleanly
+	Files.deleteIfExists (socket);
+	try (ServerSocketChannel ss = ServerSocketChannel.open (StandardProtocolFamily.UNIX)) {
+	    ss.bind (address);
+	    System.out.println ("Compile server listening on: " + socket);
+	    boolean running = true;
+	    while (running) {
+		try (SocketChannel s = ss.accept ()) {
+		    running = handleRequest (s);
+		} catch (EOFException e) {
+		    // connection closed without a request, someone checking if we are running
+		} catch (IOException e) {
+		    System.err.println ("Failed to handle request: " + e);
+		}
+	    }
+	} finally {
+	    Files.deleteIfExists (socket);
+	}
+    }
+
+    private static boolean isServerRunning (UnixDomainSocketAddress address) {
+	if (!Files.exists (address.getPath ()))
+	    return false;
+	try (SocketChannel s = SocketChannel.open (address)) {
+	    return true;
+	} catch (IOException e) {
+	    return false;
+	}
+    }
+
+    /** Create the directory if it does not exist and check that only the current user can access it */
+    static void createPrivateDirectory (Path dir) throws IOException {
+	if (!isPosix (dir)) {
+	    Files.createDirectories (dir);
+	    return;
+	}
+	Files.createDirectories (dir.getParent ());
+	try {
+	    Files.createDirectory (dir, PosixFilePermissions.asFileAttribute (OWNER_ONLY));
+	} catch (FileAlreadyExistsException e) {
+	    // checked below
+	}
+	checkPrivateDirectory (dir);
+    }
+
+    /** Check that the directory is owned by the current user and that no one else has any access to it.
+     * @throws IOException if the directory is not private
+     */
+    static void checkPrivateDirectory (Path dir) throws IOException {
+	if (!isPosix (dir))
+	    return;
+	if (!Files.isDirectory (dir, LinkOption.NOFOLLOW_LINKS))
+	    throw new IOException ("Socket directory is not a directory: " + dir);
+	UserPrincipal owner = Files.getOwner (dir, LinkOption.NOFOLLOW_LINKS);
+	UserPrincipal user = dir.getFileSystem ().getUserPrincipalLookupService ()
+	    .lookupPrincipalByName (System.getProperty ("user.name"));
+	if (!owner.equals (user))
+	    throw new IOException ("Socket directory: " + dir + " is owned by: " + owner.getName ());
+	Set<PosixFilePermission> permissions = Files.getPosixFilePermissions (dir, LinkOption.NOFOLLOW_LINKS);
+	if (!permissions.equals (OWNER_ONLY))
+	    throw new IOException ("Socket directory: " + dir + " has permissions: " +
+				   PosixFilePermissions.toString (permissions) + ", it should only be accessible by: " +
+				   owner.getName () + " (rwx------)");
+    }
+
+    private static boolean isPosix (Path dir) {
+	return dir.getFileSystem ().supportedFileAttributeViews ().contains ("posix");
+    }
+
+    private boolean handleRequest (SocketChannel s) throws IOException {
+	DataInputStream dis = new DataInputStream (new BufferedInputStream (Channels.newInputStream (s)));
+	DataOutputStream dos = new DataOutputStream (new BufferedOutputStream (Channels.newOutputStream (s)));
+	Path workingDirectory = Paths.get (dis.readUTF ());
+	int numArgs = dis.readInt ();
+	String[] args = new String[numArgs];
+	for (int i = 0; i < numArgs; i++)
+	    args[i] = dis.readUTF ();
+
+	if (numArgs == 1 && args[0].equals (STOP)) {
+	    sendText (dos, OUTPUT, "Compile server stopping\n");
+	    sendExit (dos, 0);
+	    return false;
+	}
+
+	ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+	PrintStream ps = new PrintStream (bos, true, StandardCharsets.UTF_8);
+	ByteArrayOutputStream ebos = new ByteArrayOutputStream ();
+	PrintStream eps = new PrintStream (ebos, true, StandardCharsets.UTF_8);
+	CompilerDiagnosticCollector diagnostics = new CompilerDiagnosticCollector ();
+	compile (diagnostics, workingDirectory, ps, eps, args);
+	ps.flush ();
+	eps.flush ();
+	sendText (dos, OUTPUT, bos.toString (StandardCharsets.UTF_8));
+
+	Locale locale = Locale.getDefault ();
+	StringBuilder sb = new StringBuilder (ebos.toString (StandardCharsets.UTF_8));
+	diagnostics.getDiagnostics ()
+	    .sorted (new DiagnosticsSorter ())
+	    .forEach (d -> sb.append (d.getMessage (locale)).append ('\n'));
+	sendText (dos, ERROR, sb.toString ());
+	sendExit (dos, diagnostics.hasError () ? -1 : 0);
+	return true;
+    }
+
+    private void compile (CompilerDiagnosticCollector diagnostics, Path workingDirectory,
+			  PrintStream output, PrintStream errorOutput, String[] args) {
+	long startTime = System.nanoTime ();
+	BatchCompiler bc = new BatchCompiler (diagnostics, workingDirectory, output, errorOutput);
+	CompilationArguments settings = bc.parseArgs (args);
+	if (settings == null || diagnostics.hasError ())
+	    return;
+	Compiler c = new Compiler (diagnostics, grammar, javaTokens, goalRule, settings,
+				   predictCache, lastClassPath);
+	c.compile ();
+	// Keep the classpath even if compilation failed, the scan is still valid.
+	lastClassPath = c.getClassResourceHolder ();
+	long endTime = System.nanoTime ();
+	output.printf ("Time taken: %.3f seconds\n", ((endTime - startTime) / 1e9));
+    }
+
+    static void sendText (DataOutputStream dos, int type, String text) throws IOException {
+	// writeUTF is limited to 64k so split long output, but never inside a surrogate pair
+	int maxChunk = 16 * 1024;
+	for (int start = 0, end; start < text.length (); start = end) {
+	    end = Math.min (text.length (), start + maxChunk);
+	    if (end < text.length () && Character.isHighSurrogate (text.charAt (end - 1)))
+		end--;
+	    dos.writeByte (type);
+	    dos.writeUTF (text.substring (start, end));
+	}
+    }
+
+    private void sendExit (DataOutputStream dos, int exitCode) throws IOException {
+	dos.writeByte (EXIT);
+	dos.writeInt (exitCode);
+	dos.flush ();
+    }
+}
@@ -6,8 +6,12 @@ import java.nio.CharBuffer;
 import java.nio.charset.MalformedInputException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.khelekore.parjac2.CompilationException;
@@ -16,16 +20,24 @@ import org.khelekore.parjac2.NoSourceDiagnostics;
 import org.khelekore.parjac2.javacompiler.syntaxtree.Flagged;
 import org.khelekore.parjac2.javacompiler.syntaxtree.ModuleDeclaration;
 import org.khelekore.parjac2.javacompiler.syntaxtree.NormalInterfaceDeclaration;
+import org.khelekore.parjac2.javacompiler.syntaxtree.OrdinaryCompilationUnit;
 import org.khelekore.parjac2.javacompiler.syntaxtree.TypeDeclaration;
 import org.khelekore.parjac2.parser.Grammar;
+import org.khelekore.parjac2.parser.Lexer;
 import org.khelekore.parjac2.parser.Parser;
 import org.khelekore.parjac2.parser.PredictCache;
 import org.khelekore.parjac2.parser.Rule;
+import org.khelekore.parjac2.parser.TimedLexer;
 import org.khelekore.parjac2.parsetree.ParseTreeNode;
+import org.khelekore.parjac2.util.SymbolTable;
 
 /** The actual compiler
  */
 public class Compiler {
+    // The checks that are run on each file, in order
+    private static final List<SemanticCheckerBase.SemanticCheckerBaseFactory<?>> CHECKERS =
+	List.of (DuplicateFinder::new, NameModifierChecker::new, ReturnChecker::new);
+
     private final CompilerDiagnosticCollector diagnostics;
     private final Grammar grammar;
     private final JavaTokens javaTokens;
@@ -34,56 +46,172 @@ public class Compiler {
     private final PredictCache predictCache;
     private final SyntaxTreeBuilder stb;
     private final ClassInformationProvider cip;
+    // The generated classes, filled in as soon as the checks of a file are done
+    private final Map<TypeDeclaration, byte[]> generatedClasses = new ConcurrentHashMap<> ();
+    private final CompilationMetrics metrics;
+    // The identifiers and string literals of all the files in this compilation
+    private final SymbolTable symbols = new SymbolTable ();
 
     public Compiler (CompilerDiagnosticCollector diagnostics, Grammar grammar,
 		     JavaTokens javaTokens, Rule goalRule, CompilationArguments settings) {
+	this (diagnostics, grammar, javaTokens, goalRule, settings, new PredictCache (grammar), null);
+    }
+
+    /** Create a compiler that shares state with earlier compilations.
+     * @param predictCache the predict cache to use, may be shared between compilers using the same grammar
+     * @param previousClassPath the classpath of an earlier compilation, reused if nothing in it has changed,
+     *        may be null
+     */
+    public Compiler (CompilerDiagnosticCollector diagnostics, Grammar grammar,
+		     JavaTokens javaTokens, Rule goalRule, CompilationArguments settings,
+		     PredictCache predictCache, ClassResourceHolder previousClassPath) {
 	this.diagnostics = diagnostics;
 	this.grammar = grammar;
 	this.javaTokens = javaTokens;
 	this.goalRule = goalRule;
 	this.settings = settings;
-	this.predictCache = new PredictCache (grammar);
+	this.predictCache = predictCache;
 	stb = new SyntaxTreeBuilder (diagnostics, javaTokens, grammar);
-	cip = new ClassInformationProvider (diagnostics, settings);
+	ClassResourceHolder crh = new ClassResourceHolder (diagnostics, settings, previousClassPath);
+	cip = new ClassInformationProvider (diagnostics, crh);
+	metrics = new CompilationMetrics (settings.getMetricsOutput () != null);
+    }
+
+    /** Get the classpath information, can be given to a later compiler to avoid rescanning */
+    public ClassResourceHolder getClassResourceHolder () {
+	return cip.getClassResourceHolder ();
     }
 
     public void compile () {
+	long start = System.nanoTime ();
+	// The predict cache may be shared with earlier compilations
+	long predictHits = predictCache.getHits ();
+	long predictMisses = predictCache.getMisses ();
+	try {
+	    compileSources ();
+	    // Classes loaded by a failed compilation are still valid to store
+	    if (settings.getClassPathIndexDirectory () != null)
+		runTimed (() -> cip.saveClassPathIndex (), "Saving classpath index");
+	} finally {
+	    cip.closeArchives ();
+	}
+	Path metricsOutput = settings.getMetricsOutput ();
+	if (metricsOutput != null) {
+	    metrics.setTotalNanos (System.nanoTime () - start);
+	    metrics.setCounter ("predictCacheHits", predictCache.getHits () - predictHits);
+	    metrics.setCounter ("predictCacheMisses", predictCache.getMisses () - predictMisses);
+	    writeMetrics (metricsOutput);
+	}
+    }
+
+    private void writeMetrics (Path metricsOutput) {
+	ClassResourceHolder crh = cip.getClassResourceHolder ();
+	metrics.setCounter ("classpathClasses", crh.getClasspathEntrySize ());
+	metrics.setCounter ("classpathClassesRead", crh.getClassesRead ());
+	metrics.setCounter ("classpathClassesFromIndex", crh.getClassesFromIndex ());
+	metrics.setCounter ("compiledClasses", cip.getCompiledClassCount ());
+	try {
+	    metrics.write (metricsOutput);
+	} catch (IOException e) {
+	    diagnostics.report (new NoSourceDiagnostics ("Failed to write metrics: %s: %s", metricsOutput, e));
+	}
+    }
+
+    private void compileSources () {
 	SourceProvider sourceProvider = settings.getSourceProvider ();
 	runTimed (() -> setupSourceProvider (sourceProvider), "Setting up sources");
 	if (diagnostics.hasError ())
 	    return;
+	metrics.setCounter ("sourceFiles", sourceProvider.getSourcePaths ().size ());
 	if (settings.getReportTime ())
-	    System.out.format ("Found %d source files\n", sourceProvider.getSourcePaths ().size ());
+	    settings.getOutput ().format ("Found %d source files\n", sourceProvider.getSourcePaths ().size ());
 
-	List<ParsedEntry> trees = runTimed (() -> parse (sourceProvider), "Parsing");
+	IncrementalState incrementalState = settings.getIncrementalState ();
+	List<DirAndPath> toCompile = new ArrayList<> (incrementalState == null ?
+						      sourceProvider.getSourcePaths () :
+						      runTimed (() -> findFilesToCompile (incrementalState, sourceProvider),
+								"Finding changed files"));
 	if (diagnostics.hasError ())
 	    return;
+	metrics.setCounter ("filesToCompile", toCompile.size ());
+	if (incrementalState != null) {
+	    if (settings.getReportTime ())
+		settings.getOutput ().format ("Found %d files to recompile\n", toCompile.size ());
+	    cip.recordLookups ();
+	}
 
-	runTimed (() -> cip.scanClassPath (), "Scanning classpath");
+	// Parsing does not need the classpath so scan it at the same time.
+	// Each file has its types collected as soon as it is parsed.
+	CompletableFuture<Void> classPathScan =
+	    CompletableFuture.runAsync (() -> runTimed (() -> cip.scanClassPath (), "Scanning classpath"));
+	List<ParsedEntry> trees = runTimed (() -> parse (sourceProvider, toCompile), "Parsing and collecting types");
+	metrics.setCounter ("earleyStates", trees.stream ()
+			    .mapToLong (pe -> metrics.getFile (pe.getOrigin ()).getEarleyStates ()).sum ());
+	// Always wait, we may not close the archives while they are being scanned
+	runTimed (() -> classPathScan.join (), "Waiting for classpath scan");
 	if (diagnostics.hasError ())
 	    return;
+	if (incrementalState != null) {
+	    runTimed (() -> parseDependents (incrementalState, sourceProvider, toCompile, trees),
+		      "Parsing dependents of new types");
+	    metrics.setCounter ("filesToCompile", toCompile.size ());
+	    if (diagnostics.hasError ())
+		return;
+	}
 	if (settings.getReportTime ())
-	    System.out.format ("Found %d classes in classpaths\n", cip.getClasspathEntrySize ());
+	    settings.getOutput ().format ("Found %d classes in classpaths\n", cip.getClasspathEntrySize ());
 
-	runTimed (() -> addTypes (trees), "Collecting compiled types");
-	if (diagnostics.hasError ())
-	    return;
 	if (settings.getReportTime ())
-	    System.out.format ("Found %d classes and %d modules to compile\n",
+	    settings.getOutput ().format ("Found %d classes and %d modules to compile\n",
 			       cip.getCompiledClassCount (), cip.getCompiledModuleCount ());
 
-	checkSemantics (trees);
+	checkAndGenerate (trees);
 	if (diagnostics.hasError ())
 	    return;
 
-	optimize (trees);
-
 	BytecodeWriter bw = settings.getClassWriter ();
 	if (bw != null) {
 	    runTimed (() -> createOutputDirectories (bw), "Creating output directories");
 	    if (diagnostics.hasError ())
 		return;
 	    runTimed (() -> writeClasses (bw), "Writing classes");
+	    if (incrementalState != null && !diagnostics.hasError ())
+		runTimed (() -> saveIncrementalState (incrementalState, toCompile), "Saving incremental state");
+	}
+    }
+
+    private List<DirAndPath> findFilesToCompile (IncrementalState state, SourceProvider sourceProvider) {
+	try {
+	    return state.findFilesToCompile (sourceProvider, settings.getClassWriter ());
+	} catch (IOException e) {
+	    diagnostics.report (new NoSourceDiagnostics ("Failed to check for changed files: %s", e));
+	    return List.of ();
+	}
+    }
+
+    /** The parsed files may declare types that were not known before, so parse the files that
+     *  look up those types as well. The classpath may not be scanned while this is done since
+     *  the old class files of the dependents are removed.
+     */
+    private void parseDependents (IncrementalState state, SourceProvider sourceProvider,
+				  List<DirAndPath> toCompile, List<ParsedEntry> trees) {
+	try {
+	    List<DirAndPath> dependents;
+	    while (!(dependents = state.findDependentsOfNewTypes (cip, settings.getClassWriter ())).isEmpty ()) {
+		toCompile.addAll (dependents);
+		trees.addAll (parse (sourceProvider, dependents));
+	    }
+	} catch (IOException e) {
+	    diagnostics.report (new NoSourceDiagnostics ("Failed to check for changed files: %s", e));
+	}
+    }
+
+    private void saveIncrementalState (IncrementalState state, List<DirAndPath> compiled) {
+	try {
+	    state.update (cip, compiled);
+	    state.save ();
+	} catch (IOException e) {
+	    diagnostics.report (new NoSourceDiagnostics ("Failed to save incremental state: %s", e));
 	}
     }
 
@@ -95,9 +223,9 @@ public class Compiler {
 	}
     }
 
-    private List<ParsedEntry> parse (SourceProvider sourceProvider) {
+    private List<ParsedEntry> parse (SourceProvider sourceProvider, List<DirAndPath> toCompile) {
 	return
-	    sourceProvider.getSourcePaths ().parallelStream ().
+	    toCompile.parallelStream ().
 	    map (p -> parse (sourceProvider, p)).
 	    filter (p -> p != null).
 	    collect (Collectors.toList ());
@@ -108,22 +236,33 @@ public class Compiler {
 	try {
 	    long start = System.nanoTime ();
 	    if (settings.getDebug ())
-		System.out.println ("parsing: " + file);
+		settings.getOutput ().println ("parsing: " + file);
 	    CharBuffer charBuf = sourceProvider.getInput (file);
 	    CompilerDiagnosticCollector lexErrors = new CompilerDiagnosticCollector ();
-	    CharBufferLexer lexer = new CharBufferLexer (grammar, javaTokens, charBuf, file, lexErrors);
+	    Lexer lexer = new CharBufferLexer (grammar, javaTokens, charBuf, file, lexErrors, symbols);
+	    TimedLexer timedLexer = null;
+	    if (metrics.isDetailed ())
+		lexer = timedLexer = new TimedLexer (lexer);
 
 	    // Use our own here, we do not want to stop other classes from being parsed.
 	    CompilerDiagnosticCollector collector = new CompilerDiagnosticCollector ();
 	    Parser parser = new Parser (grammar, file, predictCache, lexer, collector);
-	    ParseTreeNode tree = parser.parse (goalRule);
+	    // Let the parser build the syntax tree directly
+	    parser.setNodeFactory (stb.getNodeFactory (dirAndPath));
+	    long parseStart = System.nanoTime ();
+	    ParseTreeNode syntaxTree = parser.parse (goalRule);
+	    long parseEnd = System.nanoTime ();
+	    CompilationMetrics.FileMetrics fm = metrics.getFile (file);
+	    fm.setParse (parseEnd - parseStart, timedLexer != null ? timedLexer.getNanos () : 0,
+			 parser.getTreeNanos (), parser.getTokenCount (), parser.getStateCount ());
 	    if (collector.hasError ()) {
 		// we could not build a tree, so return the raw parse problems as is
 		diagnostics.addAll (collector);
 		return null;
 	    }
-	    ParseTreeNode syntaxTree = stb.build (dirAndPath, tree);
+	    addTypes (syntaxTree, file);
 	    long end = System.nanoTime ();
+	    fm.setTypesNanos (end - parseEnd);
 	    if (settings.getDebug () && settings.getReportTime ())
 		reportTime ("Parsing " + file, start, end);
 	    return new ParsedEntry (dirAndPath, syntaxTree);
@@ -138,41 +277,67 @@ public class Compiler {
 	}
     }
 
-    private void addTypes (List<ParsedEntry> trees) {
-	trees.parallelStream ().forEach (t -> cip.addTypes (t.getRoot (), t.getOrigin ()));
+    /** Add the types of the file and flag its interface members, only touches the types of this file */
+    private void addTypes (ParseTreeNode syntaxTree, Path file) {
+	cip.addTypes (syntaxTree, file);
+	if (syntaxTree instanceof OrdinaryCompilationUnit ocu)
+	    TypeTraverser.forAllTypes (ocu, this::flagInterfaceMembersAsPublic);
     }
 
-    private void checkSemantics (List<ParsedEntry> trees) {
-	runTimed (() -> flagInterfaceMembersAsPublic (), "Flag interface members public");
-
+    private void checkAndGenerate (List<ParsedEntry> trees) {
 	/*
 	 * 1: Set classes for fields, method parameters and method returns, setup scopes
 	 *    Scope hangs on class, method, for-clause and try (with resource) clause
-	 * 2: Set classes for local variables, field access and expressions
+	 *    This needs all files to be done before anything else can continue.
 	 */
-	runTimed (() -> ClassSetter.fillInClasses (javaTokens, cip, trees, diagnostics),
-		  "Setting classes");
-	if (diagnostics.hasError ())
-	    return;
-
-	runTimed (() -> SemanticCheckerBase.runChecks (cip, javaTokens, trees, diagnostics, DuplicateFinder::new),
-		  "Detecting duplicates");
-	if (diagnostics.hasError ())
-	    return;
-
-	runTimed (() -> SemanticCheckerBase.runChecks (cip, javaTokens, trees, diagnostics, NameModifierChecker::new),
-		  "Checking names and modifiers");
-	if (diagnostics.hasError ())
+	// Each file gets its own diagnostics so that one broken file does not stop the others
+	Map<ParsedEntry, CompilerDiagnosticCollector> fileDiagnostics = new ConcurrentHashMap<> ();
+	for (ParsedEntry pe : trees)
+	    fileDiagnostics.put (pe, new CompilerDiagnosticCollector ());
+	List<ClassSetter> classSetters =
+	    runTimed (() -> ClassSetter.registerTypes (javaTokens, cip, trees, fileDiagnostics::get),
+		      "Registering types");
+	if (fileDiagnostics.values ().stream ().anyMatch (CompilerDiagnosticCollector::hasError)) {
+	    fileDiagnostics.values ().forEach (diagnostics::addAll);
 	    return;
+	}
 
-	runTimed (() -> SemanticCheckerBase.runChecks (cip, javaTokens, trees, diagnostics, ReturnChecker::new),
-		  "Checking returns");
-	if (diagnostics.hasError ())
-	    return;
+	/*
+	 * 2: Set classes for local variables, field access and expressions, run the checks and
+	 *    generate the code. Each file moves on as soon as its own previous step is done,
+	 *    so one file may be generated while other files still run checkBodies and a file
+	 *    is checked and generated even if other files have errors. These steps may only
+	 *    read what other files registered in step 1. Nothing is written if any file fails.
+	 */
+	runTimed (() -> classSetters.parallelStream ()
+		  .forEach (cs -> checkAndGenerate (cs, fileDiagnostics.get (cs.getParsedEntry ()))),
+		  "Checking and generating classes");
+	fileDiagnostics.values ().forEach (diagnostics::addAll);
     }
 
-    private void flagInterfaceMembersAsPublic () {
-	cip.getCompiledClasses ().parallelStream ().forEach (t -> flagInterfaceMembersAsPublic (t));
+    private void checkAndGenerate (ClassSetter cs, CompilerDiagnosticCollector fileDiagnostics) {
+	ParsedEntry pe = cs.getParsedEntry ();
+	Path origin = pe.getOrigin ();
+	CompilationMetrics.FileMetrics fm = metrics.getFile (origin);
+	cip.runWithOrigin (origin, () -> {
+		long start = System.nanoTime ();
+		cs.checkBodies ();
+		if (fileDiagnostics.hasError ())
+		    return;
+		for (SemanticCheckerBase.SemanticCheckerBaseFactory<?> factory : CHECKERS) {
+		    SemanticCheckerBase.checkFile (cip, javaTokens, pe, fileDiagnostics, factory);
+		    if (fileDiagnostics.hasError ())
+			return;
+		}
+		optimize (pe);
+		long checked = System.nanoTime ();
+		fm.setCheckNanos (checked - start);
+		if (settings.getClassWriter () != null) {
+		    TypeTraverser.forAllTypes ((OrdinaryCompilationUnit)pe.getRoot (),
+					       td -> generatedClasses.put (td, generateClass (origin, td)));
+		    fm.setCodegenNanos (System.nanoTime () - checked);
+		}
+	    });
     }
 
     private void flagInterfaceMembersAsPublic (TypeDeclaration type) {
@@ -190,7 +355,7 @@ public class Compiler {
 	    ft.makePublic ();
     }
 
-    private void optimize (List<ParsedEntry> trees) {
+    private void optimize (ParsedEntry pe) {
 	// TODO: implement
     }
 
@@ -217,9 +382,13 @@ public class Compiler {
 	String filename = cip.getFileName (td) + ".class";
 	Path result = p.resolve (filename);
 
-	byte[] data = generateClass (cip.getOriginFile (td), td);
+	Path origin = cip.getOriginFile (td);
+	byte[] data = generatedClasses.get (td);
 	// TODO: this is not full class data :-)
 	write (classWriter, cip.getFullName (td).getFullDotName (), result, data);
+	IncrementalState incrementalState = settings.getIncrementalState ();
+	if (incrementalState != null)
+	    incrementalState.addOutput (origin, result);
     }
 
     private byte[] generateClass (Path origin, TypeDeclaration td) {
@@ -257,24 +426,31 @@ public class Compiler {
     }
 
     private <T> T runTimed (CompilationStep<T> cs, String type) {
+	long allocated = metrics.getAllocatedBytes ();
 	long start = System.nanoTime ();
 	T ret = cs.run ();
 	long end = System.nanoTime ();
-	if (settings.getReportTime ())
-	    reportTime (type, start, end);
+	addPhase (type, start, end, allocated);
 	return ret;
     }
 
     private void runTimed (VoidCompilationStep cs, String type) {
+	long allocated = metrics.getAllocatedBytes ();
 	long start = System.nanoTime ();
 	cs.run ();
 	long end = System.nanoTime ();
+	addPhase (type, start, end, allocated);
+    }
+
+    private void addPhase (String type, long start, long end, long allocatedAtStart) {
+	long allocated = allocatedAtStart < 0 ? -1 : metrics.getAllocatedBytes () - allocatedAtStart;
+	metrics.addPhase (type, end - start, allocated);
 	if (settings.getReportTime ())
 	    reportTime (type, start, end);
     }
 
     private void reportTime (String type, long start, long end) {
-	System.out.format ("%s, time taken: %.3f millis\n", type, (end - start) / 1.0e6);
+	settings.getOutput ().format ("%s, time taken: %.3f millis\n", type, (end - start) / 1.0e6);
     }
 
     private interface CompilationStep<T> {
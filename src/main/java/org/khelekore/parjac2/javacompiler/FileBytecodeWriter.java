@@ -20,6 +20,10 @@ public class FileBytecodeWriter implements BytecodeWriter {
 	Files.write (getRealPath (path), data);
     }
 
+    @Override public void delete (Path path) throws IOException {
+	Files.deleteIfExists (getRealPath (path));
+    }
+
     private Path getRealPath (Path path) {
 	return Paths.get (outputDir.toString (), path.toString ());
     }
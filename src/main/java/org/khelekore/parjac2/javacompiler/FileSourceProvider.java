@@ -3,9 +3,13 @@ package org.khelekore.parjac2.javacompiler;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -20,11 +24,16 @@ import org.khelekore.parjac2.NoSourceDiagnostics;
 public class FileSourceProvider implements SourceProvider {
     private final List<Path> srcDirs;
     private final Charset encoding;
+    // Ascii bytes are the same chars in these, and a char never needs more than one byte
+    private final boolean asciiCompatible;
     private List<DirAndPath> paths = null;
 
     public FileSourceProvider (List<Path> srcDirs, Charset encoding) {
 	this.srcDirs = srcDirs;
 	this.encoding = encoding;
+	asciiCompatible = encoding.equals (StandardCharsets.UTF_8) ||
+	    encoding.equals (StandardCharsets.US_ASCII) ||
+	    encoding.equals (StandardCharsets.ISO_8859_1);
     }
 
     @Override public void setup (CompilerDiagnosticCollector diagnostics) throws IOException {
@@ -59,11 +68,55 @@ public class FileSourceProvider implements SourceProvider {
 	return paths;
     }
 
+    /** Map the file and decode it straight from the mapped bytes.
+     */
     @Override public CharBuffer getInput (Path path) throws IOException {
-	ByteBuffer buf = ByteBuffer.wrap (Files.readAllBytes (path));
+	try (FileChannel fc = FileChannel.open (path)) {
+	    long size = fc.size ();
+	    if (size > Integer.MAX_VALUE)
+		throw new IOException ("File is too large: " + path);
+	    return decode (fc.map (FileChannel.MapMode.READ_ONLY, 0, size));
+	}
+    }
+
+    /** Decode the bytes, for ascii compatible encodings the ascii bytes are copied as they are
+     *  and only the runs of other bytes go through the decoder.
+     */
+    CharBuffer decode (ByteBuffer in) throws CharacterCodingException {
 	CharsetDecoder decoder = encoding.newDecoder ();
 	decoder.onMalformedInput (CodingErrorAction.REPORT);
 	decoder.onUnmappableCharacter (CodingErrorAction.REPORT);
-	return decoder.decode (buf);
+	if (!asciiCompatible)
+	    return decoder.decode (in);
+
+	int size = in.limit ();
+	char[] chars = new char[size];
+	CharBuffer out = CharBuffer.wrap (chars);
+	int p = 0;
+	int c = 0;
+	while (p < size) {
+	    byte b = in.get (p);
+	    if (b >= 0) {
+		chars[c++] = (char)b;
+		p++;
+		continue;
+	    }
+	    // A multi byte sequence never has an ascii byte in it
+	    int end = p + 1;
+	    while (end < size && in.get (end) < 0)
+		end++;
+	    in.limit (end).position (p);
+	    out.position (c);
+	    CoderResult res = decoder.decode (in, out, true);
+	    if (res.isUnderflow ())
+		res = decoder.flush (out);
+	    if (!res.isUnderflow ())
+		res.throwException ();
+	    decoder.reset ();
+	    in.limit (size);
+	    c = out.position ();
+	    p = end;
+	}
+	return CharBuffer.wrap (chars, 0, c);
     }
 }
@@ -0,0 +1,293 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.khelekore.parjac2.javacompiler.syntaxtree.TypeDeclaration;
+
+/** Keeps track of what each source file looked like, what types it declares, what
+ *  type names it looks up and what class files it produced.
+ *  This is used to only recompile the changed files and the files that depend on them.
+ */
+public class IncrementalState {
+    private static final int VERSION = 1;
+
+    private final Path stateFile;
+    // Absolute path of the source file to state of the last successful compilation
+    private final Map<Path, FileState> files;
+    // Fingerprints of the current sources, filled in by findFilesToCompile
+    private final Map<Path, Fingerprint> fingerprints = new HashMap<> ();
+    private final Map<Path, Set<Path>> outputs = new ConcurrentHashMap<> ();
+    // The files selected for compilation and the types we have already found the dependents of
+    private final Map<Path, DirAndPath> sources = new HashMap<> ();
+    private final Set<Path> selected = new HashSet<> ();
+    private final Set<String> handledTypes = new HashSet<> ();
+
+    private IncrementalState (Path stateFile, Map<Path, FileState> files) {
+	this.stateFile = stateFile;
+	this.files = files;
+    }
+
+    /** Load the state from the given file.
+     *  An empty state, so that everything is built, is returned if the file does not exist
+     *  or can not be read.
+     */
+    public static IncrementalState load (Path stateFile) {
+	Map<Path, FileState> files = new HashMap<> ();
+	try (DataInputStream dis = new DataInputStream (new BufferedInputStream (Files.newInputStream (stateFile)))) {
+	    if (dis.readInt () != VERSION)
+		return new IncrementalState (stateFile, files); // unknown format, build everything
+	    int numFiles = dis.readInt ();
+	    for (int i = 0; i < numFiles; i++) {
+		Path p = Paths.get (dis.readUTF ());
+		Fingerprint fp = new Fingerprint (dis.readLong (), dis.readLong (), dis.readUTF ());
+		files.put (p, new FileState (fp, readStrings (dis), readStrings (dis), readPaths (dis)));
+	    }
+	} catch (NoSuchFileException e) {
+	    // first build
+	} catch (IOException | InvalidPathException e) {
+	    // truncated or corrupt, build everything
+	    files.clear ();
+	}
+	return new IncrementalState (stateFile, files);
+    }
+
+    private static List<String> readStrings (DataInputStream dis) throws IOException {
+	int size = dis.readInt ();
+	if (size < 0)
+	    throw new IOException ("Negative size: " + size);
+	// do not trust the size for allocation, a corrupt file may have anything
+	List<String> ret = new ArrayList<> (Math.min (size, 256));
+	for (int i = 0; i < size; i++)
+	    ret.add (dis.readUTF ());
+	return ret;
+    }
+
+    private static List<Path> readPaths (DataInputStream dis) throws IOException {
+	return readStrings (dis).stream ().map (Paths::get).toList ();
+    }
+
+    /** Find the source files that need to be compiled, that is new and changed files and
+     *  all files that, directly or indirectly, look up types that those files declare.
+     *  The class files produced by removed files and by the files to compile are deleted, this
+     *  has to be done before the classpath is scanned so that the old classes can not be found.
+     *  Those files are also removed from the saved state, so they are compiled again if this
+     *  compilation fails.
+     */
+    public List<DirAndPath> findFilesToCompile (SourceProvider sourceProvider, BytecodeWriter classWriter)
+	throws IOException {
+	Set<Path> deletedFiles = new HashSet<> ();
+	Set<String> changedTypes = new HashSet<> ();
+	for (DirAndPath dp : sourceProvider.getSourcePaths ()) {
+	    Path p = key (dp.getFile ());
+	    sources.put (p, dp);
+	    FileState old = files.get (p);
+	    Fingerprint fp = fingerprint (sourceProvider, dp.getFile (), old);
+	    fingerprints.put (p, fp);
+	    if (old == null) {
+		selected.add (p);
+		changedTypes.add (guessTypeName (dp));
+	    } else if (!old.fingerprint.hash.equals (fp.hash)) {
+		selected.add (p);
+		changedTypes.addAll (old.declaredTypes);
+		// the file may now declare a type with the same name as the file
+		changedTypes.add (guessTypeName (dp));
+	    }
+	}
+	for (Map.Entry<Path, FileState> me : files.entrySet ()) {
+	    if (!sources.containsKey (me.getKey ())) {
+		deletedFiles.add (me.getKey ());
+		changedTypes.addAll (me.getValue ().declaredTypes);
+	    }
+	}
+
+	addDependents (changedTypes);
+	if (invalidate (selected, classWriter) | invalidate (deletedFiles, classWriter))
+	    save ();
+	return sourceProvider.getSourcePaths ().stream ().filter (dp -> selected.contains (key (dp.getFile ()))).toList ();
+    }
+
+    /** Find the files that look up types that the parsed files declare but that were not known
+     *  by findFilesToCompile, a changed or new file may declare any types.
+     *  The class files produced by the found files are deleted.
+     * @return the files that also have to be compiled
+     */
+    public List<DirAndPath> findDependentsOfNewTypes (ClassInformationProvider cip, BytecodeWriter classWriter)
+	throws IOException {
+	Set<String> newTypes = new HashSet<> ();
+	for (TypeDeclaration td : cip.getCompiledClasses ()) {
+	    String type = cip.getFullName (td).getFullDotName ();
+	    if (!handledTypes.contains (type))
+		newTypes.add (type);
+	}
+	Set<Path> before = new HashSet<> (selected);
+	addDependents (newTypes);
+	Set<Path> added = new HashSet<> (selected);
+	added.removeAll (before);
+	if (invalidate (added, classWriter))
+	    save ();
+	return added.stream ().map (sources::get).toList ();
+    }
+
+    /** Delete the outputs of the given files and forget about them
+     * @return true if any of the files had a state
+     */
+    private boolean invalidate (Set<Path> toInvalidate, BytecodeWriter classWriter) throws IOException {
+	boolean changed = false;
+	for (Path p : toInvalidate) {
+	    FileState fs = files.remove (p);
+	    if (fs != null) {
+		changed = true;
+		for (Path output : fs.outputs)
+		    classWriter.delete (output);
+	    }
+	}
+	return changed;
+    }
+
+    /** Add all files that looks up any of the changed types, repeat for the types of the added files */
+    private void addDependents (Set<String> changedTypes) {
+	Map<String, List<Path>> lookedUpBy = new HashMap<> ();
+	for (Map.Entry<Path, FileState> me : files.entrySet ())
+	    for (String type : me.getValue ().lookups)
+		lookedUpBy.computeIfAbsent (type, t -> new ArrayList<> ()).add (me.getKey ());
+
+	Deque<String> queue = new ArrayDeque<> ();
+	for (String type : changedTypes)
+	    if (handledTypes.add (type))
+		queue.addLast (type);
+	while (!queue.isEmpty ()) {
+	    String type = queue.removeFirst ();
+	    for (Path p : lookedUpBy.getOrDefault (type, List.of ())) {
+		if (!sources.containsKey (p) || !selected.add (p))
+		    continue; // removed or already handled
+		for (String dt : files.get (p).declaredTypes)
+		    if (handledTypes.add (dt))
+			queue.addLast (dt);
+	    }
+	}
+    }
+
+    /** A new file is not parsed yet, so guess the type name from the path */
+    private static String guessTypeName (DirAndPath dp) {
+	String name = dp.getRelativePath ().toString ();
+	if (name.endsWith (".java"))
+	    name = name.substring (0, name.length () - ".java".length ());
+	return name.replace (dp.getFile ().getFileSystem ().getSeparator (), ".");
+    }
+
+    private Fingerprint fingerprint (SourceProvider sourceProvider, Path file, FileState old) throws IOException {
+	long lastModified = -1;
+	long size = -1;
+	if (Files.isRegularFile (file)) {
+	    lastModified = Files.getLastModifiedTime (file).toMillis ();
+	    size = Files.size (file);
+	    // Only read the file if it looks changed
+	    if (old != null && old.fingerprint.lastModified == lastModified && old.fingerprint.size == size)
+		return old.fingerprint;
+	}
+	return new Fingerprint (lastModified, size, hash (sourceProvider.getInput (file)));
+    }
+
+    private static String hash (CharBuffer cb) {
+	try {
+	    MessageDigest md = MessageDigest.getInstance ("SHA-256");
+	    md.update (StandardCharsets.UTF_8.encode (cb));
+	    return HexFormat.of ().formatHex (md.digest ());
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException ("SHA-256 is required to be available", e);
+	}
+    }
+
+    /** Store that the given class file was generated from the origin file */
+    public void addOutput (Path origin, Path output) {
+	outputs.computeIfAbsent (key (origin), p -> ConcurrentHashMap.newKeySet ()).add (output);
+    }
+
+    /** Update the state after a successful compilation
+     * @param compiled the files that were compiled
+     */
+    public void update (ClassInformationProvider cip, List<DirAndPath> compiled) {
+	Map<Path, List<String>> declared = new HashMap<> ();
+	for (TypeDeclaration td : cip.getCompiledClasses ()) {
+	    Path p = key (cip.getOriginFile (td));
+	    declared.computeIfAbsent (p, k -> new ArrayList<> ()).add (cip.getFullName (td).getFullDotName ());
+	}
+
+	for (DirAndPath dp : compiled) {
+	    Path p = key (dp.getFile ());
+	    Set<Path> newOutputs = outputs.getOrDefault (p, Set.of ());
+	    files.put (p, new FileState (fingerprints.get (p), declared.getOrDefault (p, List.of ()),
+					 List.copyOf (cip.getLookups (dp.getFile ())), List.copyOf (newOutputs)));
+	}
+	// Unchanged files may have gotten a new timestamp
+	for (Map.Entry<Path, FileState> me : files.entrySet ()) {
+	    Fingerprint fp = fingerprints.get (me.getKey ());
+	    if (fp != null && fp != me.getValue ().fingerprint)
+		me.setValue (me.getValue ().withFingerprint (fp));
+	}
+    }
+
+    public void save () throws IOException {
+	Path tmp = stateFile.resolveSibling (stateFile.getFileName () + ".tmp");
+	try (DataOutputStream dos = new DataOutputStream (new BufferedOutputStream (Files.newOutputStream (tmp)))) {
+	    dos.writeInt (VERSION);
+	    dos.writeInt (files.size ());
+	    for (Map.Entry<Path, FileState> me : files.entrySet ()) {
+		FileState fs = me.getValue ();
+		dos.writeUTF (me.getKey ().toString ());
+		dos.writeLong (fs.fingerprint.lastModified);
+		dos.writeLong (fs.fingerprint.size);
+		dos.writeUTF (fs.fingerprint.hash);
+		writeStrings (dos, fs.declaredTypes);
+		writeStrings (dos, fs.lookups);
+		writeStrings (dos, fs.outputs.stream ().map (Path::toString).toList ());
+	    }
+	}
+	Files.move (tmp, stateFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeStrings (DataOutputStream dos, Collection<String> strings) throws IOException {
+	dos.writeInt (strings.size ());
+	for (String s : strings)
+	    dos.writeUTF (s);
+    }
+
+    private static Path key (Path p) {
+	return p.toAbsolutePath ().normalize ();
+    }
+
+    private record Fingerprint (long lastModified, long size, String hash) {
+    }
+
+    private record FileState (Fingerprint fingerprint, List<String> declaredTypes,
+			      List<String> lookups, List<Path> outputs) {
+	public FileState withFingerprint (Fingerprint fp) {
+	    return new FileState (fp, declaredTypes, lookups, outputs);
+	}
+    }
+}
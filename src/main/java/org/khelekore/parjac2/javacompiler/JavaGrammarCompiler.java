@@ -0,0 +1,79 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.khelekore.parjac2.parser.CompiledGrammar;
+import org.khelekore.parjac2.parser.Grammar;
+import org.khelekore.parjac2.parser.Parser;
+import org.khelekore.parjac2.parser.PredictCache;
+import org.khelekore.parjac2.parser.Rule;
+
+/** Build time tool that writes the compiled java grammar and the predicted groups that are
+ *  needed to parse the given source trees. JavaGrammarHelper loads them if they are found.
+ */
+public class JavaGrammarCompiler {
+    public static void main (String[] args) throws IOException {
+	if (args.length < 1) {
+	    System.err.println ("usage: java " + JavaGrammarCompiler.class.getName () +
+				" <output directory> [<source directory>...]");
+	    System.exit (-1);
+	}
+	Path outputDir = Paths.get (args[0]);
+	Files.createDirectories (outputDir);
+
+	Grammar grammar = new Grammar ();
+	JavaTokens javaTokens = new JavaTokens (grammar);
+	// Always the text, we may have an old compiled grammar on the class path
+	JavaGrammarHelper.readGrammarText (grammar, false);
+	String sourceHash = JavaGrammarHelper.getSourceHash ();
+	write (outputDir.resolve (fileName (JavaGrammarHelper.COMPILED_GRAMMAR)),
+	       out -> CompiledGrammar.write (grammar, sourceHash, out));
+
+	Rule goalRule = JavaGrammarHelper.addGoalRule (grammar);
+	PredictCache predictCache = new PredictCache (grammar);
+	for (int i = 1; i < args.length; i++) {
+	    List<Path> files;
+	    try (Stream<Path> s = Files.walk (Paths.get (args[i]))) {
+		files = s.filter (p -> p.toString ().endsWith (".java")).toList ();
+	    }
+	    for (Path file : files)
+		parse (grammar, javaTokens, goalRule, predictCache, file);
+	}
+	write (outputDir.resolve (fileName (JavaGrammarHelper.PREDICTED_GROUPS)), out -> predictCache.write (out, sourceHash));
+	System.out.println ("Compiled grammar with " + grammar.getNumberOfRules () + " rules and " +
+			    predictCache.getMisses () + " predicted groups");
+    }
+
+    private static void parse (Grammar grammar, JavaTokens javaTokens, Rule goalRule,
+			       PredictCache predictCache, Path file) throws IOException {
+	// We only want the predicted groups, so errors do not matter
+	CompilerDiagnosticCollector diagnostics = new CompilerDiagnosticCollector ();
+	CharBuffer input = CharBuffer.wrap (Files.readString (file));
+	CharBufferLexer lexer = new CharBufferLexer (grammar, javaTokens, input, file, diagnostics);
+	Parser parser = new Parser (grammar, file, predictCache, lexer, diagnostics);
+	parser.parse (goalRule);
+    }
+
+    private static String fileName (String resource) {
+	return resource.substring (resource.lastIndexOf ('/') + 1);
+    }
+
+    private static void write (Path file, Writer writer) throws IOException {
+	try (DataOutputStream out = new DataOutputStream (new BufferedOutputStream (Files.newOutputStream (file)))) {
+	    writer.write (out);
+	}
+    }
+
+    private interface Writer {
+	void write (DataOutputStream out) throws IOException;
+    }
+}
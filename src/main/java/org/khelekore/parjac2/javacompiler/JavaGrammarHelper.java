@@ -1,29 +1,123 @@
 package org.khelekore.parjac2.javacompiler;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 
+import org.khelekore.parjac2.parser.CompiledGrammar;
 import org.khelekore.parjac2.parser.Grammar;
 import org.khelekore.parjac2.parser.GrammarReader;
+import org.khelekore.parjac2.parser.PredictCache;
 import org.khelekore.parjac2.parser.Rule;
 
 /** Helper class to read the grammar.
+ *  If the build has made a compiled grammar, see JavaGrammarCompiler, we read that instead
+ *  of the grammar text. The compiled grammar and the predicted groups are only used if they
+ *  were built from the current grammar text and tokens, a build may have left old ones.
  */
 public class JavaGrammarHelper {
+    public static final String GRAMMAR = "/java21/java21.pj";
+    public static final String COMPILED_GRAMMAR = "/java21/java21.pjc";
+    public static final String PREDICTED_GROUPS = "/java21/java21.predict";
+    // Change when GrammarReader or the java tokens build other rules from the same grammar text
+    private static final int READER_VERSION = 1;
+    // The resources do not change, so the hash is only computed once
+    private static String sourceHash;
 
     /** Read the rules and add the GOAL rule consisting of CompilationUnit and END_OF_INPUT.
      */
     public static Rule readAndValidateRules (Grammar grammar, boolean debug) throws IOException {
 	readRules (grammar, debug);
+	return addGoalRule (grammar);
+    }
+
+    /** Add the GOAL rule consisting of CompilationUnit and END_OF_INPUT and validate the rules.
+     */
+    public static Rule addGoalRule (Grammar grammar) {
 	Rule goalRule = grammar.addRule ("GOAL", new int[]{grammar.getRuleGroupId ("CompilationUnit"),
 							   grammar.END_OF_INPUT.getId ()});
 	grammar.validateRules ();
 	return goalRule;
     }
 
-    /** Read the grammar file.
+    /** Read the grammar, the compiled one if we have it.
      */
     public static void readRules (Grammar grammar, boolean debug) throws IOException {
+	readRules (grammar, debug, JavaGrammarHelper.class.getResource (COMPILED_GRAMMAR));
+    }
+
+    /** Read the given compiled grammar, or the grammar text if it is missing or out of date.
+     * @param compiled the compiled grammar, may be null
+     */
+    public static void readRules (Grammar grammar, boolean debug, URL compiled) throws IOException {
+	if (compiled == null || !CompiledGrammar.read (grammar, readAll (compiled), getSourceHash ()))
+	    readGrammarText (grammar, debug);
+    }
+
+    /** Read the grammar file.
+     */
+    public static void readGrammarText (Grammar grammar, boolean debug) throws IOException {
 	GrammarReader gr = new GrammarReader (grammar, debug);
-	gr.read (JavaGrammarHelper.class.getResource ("/java21/java21.pj"));
+	gr.read (JavaGrammarHelper.class.getResource (GRAMMAR));
+    }
+
+    /** Create a predict cache for the grammar, warmed with the groups found at build time if we have them.
+     *  The grammar has to be fully read, including the GOAL rule.
+     */
+    public static PredictCache createPredictCache (Grammar grammar) throws IOException {
+	return createPredictCache (grammar, JavaGrammarHelper.class.getResource (PREDICTED_GROUPS));
+    }
+
+    /** Create a predict cache warmed with the given groups, the cache is cold if they are
+     *  missing or out of date.
+     * @param predicted the predicted groups, may be null
+     */
+    public static PredictCache createPredictCache (Grammar grammar, URL predicted) throws IOException {
+	PredictCache predictCache = new PredictCache (grammar);
+	if (predicted != null)
+	    predictCache.read (new DataInputStream (new ByteArrayInputStream (readAll (predicted))), getSourceHash ());
+	return predictCache;
+    }
+
+    /** Get a hash of the grammar text and the names of the java tokens, that is of what the
+     *  compiled grammar and the predicted groups are built from, and of the versions of the
+     *  grammar reader and the written formats.
+     */
+    public static synchronized String getSourceHash () throws IOException {
+	if (sourceHash == null)
+	    sourceHash = computeSourceHash ();
+	return sourceHash;
+    }
+
+    private static String computeSourceHash () throws IOException {
+	Grammar tokens = new Grammar ();
+	new JavaTokens (tokens);
+	MessageDigest md;
+	try {
+	    md = MessageDigest.getInstance ("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException ("SHA-256 should always be available", e);
+	}
+	String versions = READER_VERSION + "/" + CompiledGrammar.FORMAT_VERSION + "/" + PredictCache.FORMAT_VERSION;
+	md.update (versions.getBytes (StandardCharsets.UTF_8));
+	md.update ((byte)0);
+	md.update (readAll (JavaGrammarHelper.class.getResource (GRAMMAR)));
+	for (int i = 1; i <= tokens.getNumberOfTokens (); i++) {
+	    md.update (tokens.getToken (i).getName ().getBytes (StandardCharsets.UTF_8));
+	    md.update ((byte)0);
+	}
+	return HexFormat.of ().formatHex (md.digest ());
+    }
+
+    private static byte[] readAll (URL u) throws IOException {
+	try (InputStream is = u.openStream ()) {
+	    return is.readAllBytes ();
+	}
     }
 }
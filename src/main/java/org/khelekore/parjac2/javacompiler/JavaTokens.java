@@ -1,8 +1,8 @@
 package org.khelekore.parjac2.javacompiler;
 
+import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 import org.khelekore.parjac2.parser.Grammar;
 import org.khelekore.parjac2.parser.Token;
@@ -177,8 +177,8 @@ public class JavaTokens {
     private final BitSet comparisson = new BitSet ();
     private final BitSet arithmeticLogical = new BitSet ();
 
-    private final Map<String, Token> nameToKeyword = new HashMap<> ();
-    private final Map<String, Token> nameToContextualKeyword = new HashMap<> ();
+    // keywords, null, true, false and the contextual keywords
+    private final KeywordTable keywordTable;
 
     public JavaTokens (Grammar grammar) {
 
@@ -364,14 +364,13 @@ public class JavaTokens {
 	store (arithmeticLogical, PLUS, MINUS, MULTIPLY, DIVIDE, REMAINDER, AND, OR, XOR,
 	       LEFT_SHIFT, RIGHT_SHIFT, RIGHT_SHIFT_UNSIGNED);
 
-	keywords.stream ().mapToObj (i -> grammar.getToken (i))
-	    .forEach (t -> nameToKeyword.put (t.getName (), t));
-	nameToKeyword.put (NULL.getName (), NULL);
-	nameToKeyword.put (TRUE.getName (), TRUE);
-	nameToKeyword.put (FALSE.getName (), FALSE);
-
-	contextualKeywords.stream ().mapToObj (i -> grammar.getToken (i))
-	    .forEach (t -> nameToContextualKeyword.put (t.getName (), t));
+	List<Token> allKeywords = new ArrayList<> ();
+	keywords.stream ().mapToObj (i -> grammar.getToken (i)).forEach (allKeywords::add);
+	allKeywords.add (NULL);
+	allKeywords.add (TRUE);
+	allKeywords.add (FALSE);
+	contextualKeywords.stream ().mapToObj (i -> grammar.getToken (i)).forEach (allKeywords::add);
+	keywordTable = new KeywordTable (allKeywords);
     }
 
     private final void store (BitSet store, Token... tokens) {
@@ -411,12 +410,25 @@ public class JavaTokens {
 	return arithmeticLogical.get (t.getId ());
     }
 
+    public boolean isContextualKeyword (Token t) {
+	return contextualKeywords.get (t.getId ());
+    }
+
     /** Check if a String is an identifier or a keyword or the null, true or false litera. */
-    public Token getKeywordFromIdentifier (String id) {
-	return nameToKeyword.get (id);
+    public Token getKeywordFromIdentifier (CharSequence id) {
+	Token t = keywordTable.get (id);
+	return t != null && !isContextualKeyword (t) ? t : null;
+    }
+
+    public Token getContextualKeyWordFromIdentifier (CharSequence id) {
+	Token t = keywordTable.get (id);
+	return t != null && isContextualKeyword (t) ? t : null;
     }
 
-    public Token getContextualKeyWordFromIdentifier (String id) {
-	return nameToContextualKeyword.get (id);
+    /** Get the keyword, the null, true or false literal or the contextual keyword with the given name.
+     * @return the token or null if the name is an identifier
+     */
+    public Token getAnyKeywordFromIdentifier (CharSequence id) {
+	return keywordTable.get (id);
     }
 }
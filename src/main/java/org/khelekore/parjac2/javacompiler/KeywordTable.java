@@ -0,0 +1,65 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.util.Collection;
+
+import org.khelekore.parjac2.parser.Token;
+
+/** A perfect hash of keyword names to tokens.
+ *  The lexer uses this to check the chars of an identifier before it creates a String for it.
+ *  When the table is built we search for a multiplier that gives every keyword its own slot,
+ *  so a lookup hashes the chars once and compares with at most one keyword.
+ */
+class KeywordTable {
+    private final int multiplier;
+    private final int shift;
+    private final Token[] tokens;
+    private final String[] names;
+
+    public KeywordTable (Collection<Token> keywords) {
+	int bits = 32 - Integer.numberOfLeadingZeros (keywords.size () * 8);
+	while (true) {
+	    for (int m = 31; m < 100_000; m += 2) {
+		Token[] ts = fill (keywords, m, 32 - bits);
+		if (ts != null) {
+		    multiplier = m;
+		    shift = 32 - bits;
+		    tokens = ts;
+		    names = new String[ts.length];
+		    for (int i = 0; i < ts.length; i++)
+			if (ts[i] != null)
+			    names[i] = ts[i].getName ();
+		    return;
+		}
+	    }
+	    bits++;
+	}
+    }
+
+    private static Token[] fill (Collection<Token> keywords, int multiplier, int shift) {
+	Token[] ts = new Token[1 << (32 - shift)];
+	for (Token t : keywords) {
+	    int slot = slot (t.getName (), multiplier, shift);
+	    if (ts[slot] != null)
+		return null;
+	    ts[slot] = t;
+	}
+	return ts;
+    }
+
+    private static int slot (CharSequence cs, int multiplier, int shift) {
+	int h = 0;
+	for (int i = 0, s = cs.length (); i < s; i++)
+	    h = h * multiplier + cs.charAt (i);
+	// the high bits of the product depend on all the chars
+	return (h * 0x9e3779b9) >>> shift;
+    }
+
+    /** Get the keyword with the given chars or null if it is not a keyword */
+    public Token get (CharSequence cs) {
+	int slot = slot (cs, multiplier, shift);
+	String name = names[slot];
+	if (name != null && name.length () == cs.length () && name.contentEquals (cs))
+	    return tokens[slot];
+	return null;
+    }
+}
@@ -27,7 +27,16 @@ public abstract class SemanticCheckerBase {
 	    trees.stream ()
 	    .filter (pe -> (pe.getRoot () instanceof OrdinaryCompilationUnit))
 	    .map (t -> factory.create (cip, javaTokens, t, diagnostics)).collect (Collectors.toList ());
-	checkers.parallelStream ().forEach (SemanticCheckerBase::runCheck);
+	checkers.parallelStream ().forEach (c -> cip.runWithOrigin (c.tree.getOrigin (), c::runCheck));
+    }
+
+    /** Run the check for one file, the caller has to set up the origin */
+    public static void checkFile (ClassInformationProvider cip,
+				  JavaTokens javaTokens,
+				  ParsedEntry tree,
+				  CompilerDiagnosticCollector diagnostics,
+				  SemanticCheckerBaseFactory<?> factory) {
+	factory.create (cip, javaTokens, tree, diagnostics).runCheck ();
     }
 
     public SemanticCheckerBase (ClassInformationProvider cip, JavaTokens javaTokens,
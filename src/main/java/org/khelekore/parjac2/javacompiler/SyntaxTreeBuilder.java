@@ -1,7 +1,9 @@
 package org.khelekore.parjac2.javacompiler;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -13,6 +15,7 @@ import org.khelekore.parjac2.parser.Grammar;
 import org.khelekore.parjac2.parser.ParsePosition;
 import org.khelekore.parjac2.parser.Rule;
 import org.khelekore.parjac2.parser.Token;
+import org.khelekore.parjac2.parsetree.NodeFactory;
 import org.khelekore.parjac2.parsetree.ParseTreeNode;
 import org.khelekore.parjac2.parsetree.RuleNode;
 import org.khelekore.parjac2.parsetree.TokenNode;
@@ -321,24 +324,65 @@ public class SyntaxTreeBuilder {
 	return build (ctx, root);
     }
 
+    /** Get a node factory for the parser that builds the syntax tree directly,
+     *  so no tree of RuleNode:s has to be built and converted.
+     */
+    public NodeFactory getNodeFactory (DirAndPath dirAndPath) {
+	Context ctx = new Context (javaTokens, grammar, diagnostics, dirAndPath, flagConverter);
+	return (rule, position, children) ->
+	    convert (ctx, rule, new PositionedRuleNode (rule, position, children), children);
+    }
+
+    /** Manual recursion on a deque so that deeply nested trees do not overflow the stack.
+     *  Nodes are converted bottom up, a node once all of its children have been converted.
+     */
     private ParseTreeNode build (Context ctx, ParseTreeNode root) {
-	List<ParseTreeNode> children = root.getChildren ();
-	List<ParseTreeNode> convertedChildren = new ArrayList<> (children.size ());
-	for (ParseTreeNode c : children)
-	    convertedChildren.add (build (ctx, c));
-	ParseTreeNode n = convert (ctx, root, convertedChildren);
-	return n;
+	if (root.isToken ())
+	    return root;
+	Deque<BuildStep> stack = new ArrayDeque<> ();
+	stack.addLast (new BuildStep ((RuleNode)root));
+	while (true) {
+	    BuildStep s = stack.getLast ();
+	    if (s.hasMoreChildren ()) {
+		ParseTreeNode c = s.nextChild ();
+		if (c.isToken ())
+		    s.convertedChildren.add (c);
+		else
+		    stack.addLast (new BuildStep ((RuleNode)c));
+	    } else {
+		stack.removeLast ();
+		ParseTreeNode n = convert (ctx, s.rn.getRule (), s.rn, s.convertedChildren);
+		if (stack.isEmpty ())
+		    return n;
+		stack.getLast ().convertedChildren.add (n);
+	    }
+	}
     }
 
-    private ParseTreeNode convert (Context ctx, ParseTreeNode node, List<ParseTreeNode> children) {
-	if (node.isToken ()) {
-	    return node;
+    private static class BuildStep {
+	private final RuleNode rn;
+	private final List<ParseTreeNode> children;
+	private final List<ParseTreeNode> convertedChildren;
+
+	public BuildStep (RuleNode rn) {
+	    this.rn = rn;
+	    children = rn.getChildren ();
+	    convertedChildren = new ArrayList<> (children.size ());
+	}
+
+	public boolean hasMoreChildren () {
+	    return convertedChildren.size () < children.size ();
 	}
-	RuleNode rn = (RuleNode)node;
-	Rule rule = rn.getRule ();
 
+	public ParseTreeNode nextChild () {
+	    return children.get (convertedChildren.size ());
+	}
+    }
+
+    private ParseTreeNode convert (Context ctx, Rule rule, RuleNode rn, List<ParseTreeNode> children) {
+	ParseTreeNode node;
 	if (rule.getName ().startsWith ("_ZOM")) {
-	    node = buildZom (rule, node, children);
+	    node = buildZom (rule, rn, children);
 	} else {
 	    ContextNodeBuilder nb = nodeBuilders.get (rule.getName ());
 	    if (nb != null) {
@@ -351,6 +395,22 @@ public class SyntaxTreeBuilder {
 	return node;
     }
 
+    /** The input node for the node builders when the parser builds the syntax tree directly.
+     *  The children are already converted so we can not use their position.
+     */
+    private static class PositionedRuleNode extends RuleNode {
+	private final ParsePosition position;
+
+	public PositionedRuleNode (Rule rule, ParsePosition position, List<ParseTreeNode> children) {
+	    super (rule, children);
+	    this.position = position;
+	}
+
+	@Override public ParsePosition position () {
+	    return position;
+	}
+    }
+
     private interface ContextNodeBuilder {
 	ParseTreeNode build (Context ctx, Rule rule, ParseTreeNode input, List<ParseTreeNode> children);
     }
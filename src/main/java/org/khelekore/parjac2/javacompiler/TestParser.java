@@ -40,7 +40,7 @@ public class TestParser {
     private final boolean printSyntaxTree;
     private final Grammar grammar = new Grammar ();
     private final JavaTokens javaTokens = new JavaTokens (grammar);
-    private final PredictCache predictCache = new PredictCache (grammar);
+    private final PredictCache predictCache;
     private final CompilerDiagnosticCollector diagnostics = new CompilerDiagnosticCollector ();
     private final SyntaxTreeBuilder stb = new SyntaxTreeBuilder (diagnostics, javaTokens, grammar);
     private final Rule goalRule;
@@ -99,6 +99,7 @@ public class TestParser {
 	this.printParseTree = printParseTree;
 	this.printSyntaxTree = printSyntaxTree;
 	goalRule = JavaGrammarHelper.readAndValidateRules (grammar, false);
+	predictCache = JavaGrammarHelper.createPredictCache (grammar);
 	System.out.println ("Testing parsing with " + -grammar.getMaxRuleGroupId () + " rule groups, " +
 			    -grammar.getMaxRuleId () + " rules and " + grammar.getMaxTokenId () + " tokens");
     }
@@ -27,6 +27,7 @@ public class ElementValueArrayInitializer extends SyntaxTreeNode {
     }
 
     @Override public void visitChildNodes (NodeVisitor v) {
-	values.forEach (v::accept);
+	if (values != null)
+	    values.forEach (v::accept);
     }
 }
@@ -0,0 +1,122 @@
+package org.khelekore.parjac2.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+
+/** A binary form of the tokens, rule groups and rules of a grammar, so that the rules can be
+ *  loaded without reading and splitting the grammar text.
+ *  The data holds a hash of the source it was built from, it is only read if the hash matches.
+ *  Tokens and rule groups are looked up by name when read, in the order they were created, so a
+ *  grammar that is set up the same way as the written one, with the same tokens added before the
+ *  rules, gets the same ids as reading the grammar text would.
+ */
+public class CompiledGrammar {
+    /** The version of the written data, part of the source hash so a new format is never read as an old one */
+    public static final int FORMAT_VERSION = 2;
+    private static final int MAGIC = 0x706a6700 | FORMAT_VERSION;
+
+    /** Write the grammar
+     * @param sourceHash the hash of what the grammar was read from
+     */
+    public static void write (Grammar grammar, String sourceHash, DataOutput out) throws IOException {
+	out.writeInt (MAGIC);
+	out.writeUTF (sourceHash);
+	int numTokens = grammar.getNumberOfTokens ();
+	out.writeInt (numTokens);
+	for (int i = 1; i <= numTokens; i++)
+	    out.writeUTF (grammar.getToken (i).getName ());
+	int numGroups = -grammar.getMaxRuleGroupId () - 1;
+	out.writeInt (numGroups);
+	for (int i = 1; i <= numGroups; i++)
+	    out.writeUTF (grammar.getRuleGroupName (-i));
+	int numRules = grammar.getNumberOfRules ();
+	out.writeInt (numRules);
+	for (int i = 1; i <= numRules; i++) {
+	    Rule r = grammar.getRule (-i);
+	    out.writeInt (r.getGroupId ());
+	    out.writeInt (r.size ());
+	    for (int j = 0; j < r.size (); j++)
+		out.writeInt (r.get (j));
+	}
+    }
+
+    /** Add the tokens, rule groups and rules in data to the grammar.
+     *  All of the data is read and checked before anything is added, so the grammar is left
+     *  as it was if the data can not be used.
+     * @param sourceHash the hash of the source the grammar should have been built from
+     * @return false, with nothing added, if the data is of another version, from another source or broken
+     */
+    public static boolean read (Grammar grammar, byte[] data, String sourceHash) throws IOException {
+	DataInputStream in = new DataInputStream (new ByteArrayInputStream (data));
+	String[] tokenNames;
+	String[] groupNames;
+	int[] ruleGroups;
+	int[][] rightHandSides;
+	try {
+	    if (in.readInt () != MAGIC || !in.readUTF ().equals (sourceHash))
+		return false;
+	    tokenNames = readNames (in);
+	    groupNames = readNames (in);
+	    int numRules = readCount (in);
+	    ruleGroups = new int[numRules];
+	    rightHandSides = new int[numRules][];
+	    for (int i = 0; i < numRules; i++) {
+		ruleGroups[i] = in.readInt ();
+		if (!isValid (ruleGroups[i], 0, groupNames.length))
+		    return false;
+		int[] rightHandSide = new int[readCount (in)];
+		for (int j = 0; j < rightHandSide.length; j++) {
+		    rightHandSide[j] = in.readInt ();
+		    if (!isValid (rightHandSide[j], tokenNames.length, groupNames.length))
+			return false;
+		}
+		rightHandSides[i] = rightHandSide;
+	    }
+	    if (in.available () > 0)
+		return false;
+	} catch (EOFException e) {
+	    return false;
+	}
+
+	// The written ids are mapped to the ids in the grammar we read into
+	int[] tokenIds = new int[tokenNames.length];
+	for (int i = 1; i < tokenIds.length; i++)
+	    tokenIds[i] = grammar.getToken (tokenNames[i]).getId ();
+	int[] groupIds = new int[groupNames.length];
+	for (int i = 1; i < groupIds.length; i++)
+	    groupIds[i] = grammar.getRuleGroupId (groupNames[i]);
+	for (int i = 0; i < ruleGroups.length; i++) {
+	    int[] rightHandSide = rightHandSides[i];
+	    for (int j = 0; j < rightHandSide.length; j++) {
+		int id = rightHandSide[j];
+		rightHandSide[j] = id > 0 ? tokenIds[id] : groupIds[-id];
+	    }
+	    grammar.addRule (groupNames[-ruleGroups[i]], rightHandSide);
+	}
+	return true;
+    }
+
+    /** Read a list of names, index 0 is unused so that the names can be looked up by id */
+    private static String[] readNames (DataInputStream in) throws IOException {
+	String[] names = new String[readCount (in) + 1];
+	for (int i = 1; i < names.length; i++)
+	    names[i] = in.readUTF ();
+	return names;
+    }
+
+    /** Read a count, every counted item takes at least one byte so a larger count is broken data */
+    private static int readCount (DataInputStream in) throws IOException {
+	int count = in.readInt ();
+	if (count < 0 || count > in.available ())
+	    throw new EOFException ("Bad count: " + count);
+	return count;
+    }
+
+    /** Check that id is a token id below numTokens or a rule group id above -numGroups */
+    private static boolean isValid (int id, int numTokens, int numGroups) {
+	return id > 0 ? id < numTokens : id < 0 && -id < numGroups;
+    }
+}
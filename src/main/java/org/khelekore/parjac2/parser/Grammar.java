@@ -108,7 +108,7 @@ public class Grammar {
 
     public String getRuleGroupName (int ruleGroupId) {
 	RuleGroup r = ruleGroups.get (-ruleGroupId);
-	return r.rules.get (0).getName ();
+	return r.name;
     }
 
     public Token getToken (int id) {
@@ -0,0 +1,61 @@
+package org.khelekore.parjac2.parser;
+
+/** The dotted rules of a grammar compiled into flat arrays.
+ *  A dotted rule is given as rulePos, rule << 8 | dotPos, the same way the parser stores it.
+ *  For each dotted rule we store what comes after the dot, a token id (positive),
+ *  a rule group id (negative) or 0 if the rule is complete, so moving between dotted rules
+ *  does not have to look at the Rule objects.
+ *  This only replaces lookups in the rules, the earley sets still hold one state for
+ *  each dotted rule and origin.
+ *  The grammar may not change after the table has been built.
+ */
+public class ItemTable {
+    // The dotted rules of rule r are at next[offsets[-r]] up to and including next[offsets[-r] + size]
+    private final int[] offsets;
+    private final int[] next;
+    // indexed by -rule
+    private final int[] ruleGroups;
+
+    public ItemTable (Grammar grammar) {
+	int numRules = grammar.getNumberOfRules ();
+	offsets = new int[numRules + 1];
+	ruleGroups = new int[numRules + 1];
+	int size = 0;
+	for (int i = 1; i <= numRules; i++) {
+	    offsets[i] = size;
+	    size += grammar.getRule (-i).size () + 1;
+	}
+	next = new int[size];
+	for (int i = 1; i <= numRules; i++) {
+	    Rule r = grammar.getRule (-i);
+	    ruleGroups[i] = r.getGroupId ();
+	    for (int j = 0; j < r.size (); j++)
+		next[offsets[i] + j] = r.get (j);
+	}
+    }
+
+    /** Get the token or rule group after the dot
+     * @return the token id, the rule group id or 0 if the dot is at the end of the rule
+     */
+    public int next (int rulePos) {
+	return next[offsets[-(rulePos >> 8)] + (rulePos & 0xff)];
+    }
+
+    /** Check if the dot is at the end of the rule */
+    public boolean isComplete (int rulePos) {
+	return next (rulePos) == 0;
+    }
+
+    /** Check if the dot is before the last part of the rule, that is if the rule is
+     *  complete once that part has been advanced over.
+     */
+    public boolean isLast (int rulePos) {
+	int i = offsets[-(rulePos >> 8)] + (rulePos & 0xff);
+	return next[i] != 0 && next[i + 1] == 0;
+    }
+
+    /** Get the rule group of the rule in the given rulePos */
+    public int ruleGroup (int rulePos) {
+	return ruleGroups[-(rulePos >> 8)];
+    }
+}
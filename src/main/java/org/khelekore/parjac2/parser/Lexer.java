@@ -21,6 +21,12 @@ public interface Lexer {
      */
     TokenNode getCurrentValue ();
 
+    /** Check if the current token has a value, that is if getCurrentValue gives more than
+     *  the token and its position. A token without value can be created later from its id
+     *  and position, so the parser only has to call getCurrentValue for tokens with values.
+     */
+    boolean hasCurrentValue ();
+
     /** Convert the given node to the actually wanted token */
     TokenNode toCorrectType (TokenNode n, Token wantedActualToken);
 
@@ -28,6 +34,18 @@ public interface Lexer {
      */
     ParsePosition getParsePosition ();
 
+    /** Get the line of the current token */
+    int getLineNumber ();
+
+    /** Get the column of the current token */
+    int getTokenColumn ();
+
+    /** Get the start offset of the current token */
+    int getTokenStartPos ();
+
+    /** Get the end offset of the current token */
+    int getTokenEndPos ();
+
     /** Get the last produced error, if any */
     String getError ();
 }
@@ -3,6 +3,7 @@ package org.khelekore.parjac2.parser;
 import java.nio.file.Path;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
 import java.util.Deque;
@@ -12,6 +13,7 @@ import java.util.Set;
 
 import org.khelekore.parjac2.CompilerDiagnosticCollector;
 import org.khelekore.parjac2.SourceDiagnostics;
+import org.khelekore.parjac2.parsetree.NodeFactory;
 import org.khelekore.parjac2.parsetree.RuleNode;
 import org.khelekore.parjac2.parsetree.ParseTreeNode;
 import org.khelekore.parjac2.parsetree.TokenNode;
@@ -26,6 +28,7 @@ public class Parser {
     private final Grammar grammar;
     private final Path path;
     private final PredictCache predictCache;
+    private final ItemTable items;
     private final Lexer lexer;
     private final CompilerDiagnosticCollector diagnostics;
 
@@ -35,50 +38,126 @@ public class Parser {
     private final Set<ParsePosition> errorPositions = new HashSet<> ();
 
     private final IntHolder startPositions = new IntHolder (1024);
-    private final List<TokenNode> tokenValues = new ArrayList<> ();
-    private final List<ParsePosition> parsePositions = new ArrayList<> ();
+    /** The scanned tokens, 5 ints per position: token id, line, column, start and end offset.
+     *  The TokenNode for a position is only created when the tree needs it, except for tokens
+     *  with values, those are taken from the lexer when they are scanned.
+     */
+    private final IntHolder tokenData = new IntHolder (4096);
+    private TokenNode[] tokenValues = new TokenNode[1024];
 
     // 2 ints per state: first is ruleid<<8 | dotPos, second is origin
     // Since rule ids are negative we shift (>>) down to keep id when we want rule
     private final IntHolder states = new IntHolder (4096);
-    private final BitSet predictedRules;
+    /** The back pointers of the states, 2 ints per state at the same positions as in states.
+     *  First is the position of the state that was advanced to give this one, or NO_STATE if the
+     *  state was predicted. Second is the position of the completed state that advanced it,
+     *  NO_STATE if a token advanced it or a Leo shortcut encoded by leoCause.
+     *  The tree builder only walks these, it never searches the earley sets.
+     */
+    private final IntHolder links = new IntHolder (4096);
+    private static final int NO_STATE = -1;
+    // The rule groups to predict for the current position, reused for every position
+    private final long[] predictedRules;
+    private long predictedFingerprint;
     private final List<PredictGroup> predictions = new ArrayList<> ();
 
+    /** For each earley set the states that wait for a rule group, that is the states where
+     *  the next part is a rule group. Pairs of (rule group id, state position) sorted on
+     *  rule group id and then position, set k is at waitingStarts[k] up to waitingStarts[k + 1].
+     *  Built when a set is done, so completion only has to look at the matching states.
+     */
+    private final IntHolder waitingItems = new IntHolder (4096);
+    private final IntHolder waitingStarts = new IntHolder (1024);
+    private long[] waitingScratch = new long[256];
+
     // This one is reused every time we scan
     private final BitSet wantedScanTokens;
     private BitSet pushbackTokens;
 
-    /** We use this to try to avoid full scanning for duplicates.
-     *  If we find a hash miss then we know there is no dup, if we have a hash collision
-     *  We have to scan the current set to see.
+    /** Hash table of the states in the current earley set, used to find duplicates.
+     *  Slot i holds rulePos and origin at 2 * i and 2 * i + 1, a slot is only in use if its
+     *  generation is the current one, so moving to the next set clears the table in O(1).
+     *  The table grows to twice the size of the largest set.
+     */
+    private int[] dedupStates = new int[2 * 256];
+    private int[] dedupGenerations = new int[256];
+    private int dedupGeneration = 1;
+    private int dedupCount;
+
+    /** Leo items, for an earley set and a rule group the topmost state of the deterministic
+     *  reduction path, that is what completing the rule group in a later set ends up in when
+     *  every step only has one state waiting for it and that state is waiting for its last part.
+     *  Stored as an open addressing table of (set << 32 | -rule group) to item, only paths with
+     *  at least one step are stored. Items are stored as rulePos << 32 | origin.
+     */
+    private static final long NO_LEO = 0;
+    private long[] leoKeys = new long[1024];
+    private long[] leoValues = new long[1024];
+    private int leoCount;
+    private long[] leoPath = new long[64];
+
+    /** The states added using a Leo item have the position of the completed state stored here.
+     *  The states in between are not added, the tree builder recreates them when needed.
+     */
+    private final IntHolder leoShortcuts = new IntHolder (1024);
+    private LeoChain[] leoChains = new LeoChain[64];
+    private boolean useLeoItems = true;
+
+    /** If the scanned tokens have a deterministic scan closure, see PredictGroup, then the states
+     *  with the scanned position as origin are added without checking for duplicates.
+     *  closureOrigin is that position while the next set is built, -1 otherwise.
      */
-    private final BitSet hashOfStates;
-    // TODO: how big? random prime for now, I tried 512 and that does not work well
-    // I have only seen about ~150 states in one set
-    private final int STATE_HASH_SIZE = 509;
+    private boolean useScanClosures = true;
+    private int closureOrigin = -1;
 
     private int currentPosition = 0;
+    private long treeNanos;
+
+    private static final NodeFactory RULE_NODES = (rule, position, children) -> new RuleNode (rule, children);
+    private NodeFactory nodeFactory = RULE_NODES;
 
     public Parser (Grammar grammar, Path path, PredictCache predictCache, Lexer lexer,
 		   CompilerDiagnosticCollector diagnostics) {
 	this.grammar = grammar;
 	this.path = path;
 	this.predictCache = predictCache;
+	items = predictCache.getItemTable ();
 	this.lexer = lexer;
 	this.diagnostics = diagnostics;
 	startPositions.add (0);
-	predictedRules = new BitSet (-grammar.getMaxRuleGroupId ());
+	waitingStarts.add (0);
+	predictedRules = predictCache.createRuleGroupSet ();
 	wantedScanTokens = new BitSet (grammar.getMaxTokenId ());
-	hashOfStates = new BitSet (STATE_HASH_SIZE);
+    }
+
+    /** Set if deterministic scan closures should skip the duplicate checks, the default.
+     *  Turning it off gives the same states and parse trees, only slower.
+     */
+    public void setUseScanClosures (boolean useScanClosures) {
+	this.useScanClosures = useScanClosures;
+    }
+
+    /** Set if Leo items should be used for right recursive completions, the default.
+     *  Turning it off gives the same parse trees, but every state on the reduction paths is added.
+     */
+    public void setUseLeoItems (boolean useLeoItems) {
+	this.useLeoItems = useLeoItems;
+    }
+
+    /** Set the factory that creates the nodes of the tree that parse returns, the default
+     *  creates RuleNode:s. The factory is only used if the parse had no errors, since the tree
+     *  then may have wildcard nodes, in that case we build RuleNode:s.
+     */
+    public void setNodeFactory (NodeFactory nodeFactory) {
+	this.nodeFactory = nodeFactory;
     }
 
     public ParseTreeNode parse (Rule goalRule) {
 	long startTime = System.currentTimeMillis ();
-	addState (goalRule.getId (), 0, 0);
+	addState (goalRule.getId (), 0, 0, NO_STATE, NO_STATE);
 
 	// We want to add wildcards at the end as well.
 	while (pushbackTokens != null || lexer.hasMoreTokens ()) {
-	    parsePositions.add (lexer.getParsePosition ());
 	    int stateStartPos = startPositions.get (currentPosition);
 	    if (DEBUG) {
 		System.out.println ("currentPosition: " + currentPosition + ", states.size: " + states.size ());
@@ -96,14 +175,15 @@ public class Parser {
 	if (tooManyErrors ())
 	    return null;
 
-	IntHolder goalHolder = new IntHolder (10);
-	states.apply ((rp, o) -> findFinished (rp, o, goalRule, goalHolder),
-		      startPositions.get (currentPosition), states.size ());
-	if (goalHolder.size () < 2) {
+	IntHolder goalHolder = new IntHolder (16);
+	for (int i = startPositions.get (currentPosition), end = states.size (); i < end; i += 2)
+	    if (isFinished (states.get (i), states.get (i + 1), goalRule))
+		goalHolder.add (i);
+	if (goalHolder.size () < 1) {
 	    addParserError ("Did not find any finishing state");
 	    return null;
-	} else if (goalHolder.size () > 2) {
-	    addParserError ("Found several valid parses: " + (goalHolder.size () / 2));
+	} else if (goalHolder.size () > 1) {
+	    addParserError ("Found several valid parses: " + goalHolder.size ());
 	}
 
 	if (tooManyErrors ())
@@ -115,7 +195,11 @@ public class Parser {
 	    System.out.println ("Successful parse of: " + path + " in " + (endTime - startTime) + " millis " +
 				"states.size: " + states.size () + ", total tokens: " + currentPosition);
 
-	TreeInfo ti = generateParseTree (goalHolder.get (0), goalHolder.get (1), currentPosition, states.size ());
+	if (diagnostics.hasError ())
+	    nodeFactory = RULE_NODES;
+	long treeStart = System.nanoTime ();
+	TreeInfo ti = generateParseTree (goalHolder.get (0), currentPosition);
+	treeNanos = System.nanoTime () - treeStart;
 	ParseTreeNode root = ti.node;
 	if (root == null)
 	    addParserError ("Failed to generate parse tree for %s", path);
@@ -127,6 +211,21 @@ public class Parser {
 	return root;
     }
 
+    /** Get the number of earley states created during the parse */
+    public int getStateCount () {
+	return states.size () / 2;
+    }
+
+    /** Get the time spent building the tree, including the time spent in the node factory */
+    public long getTreeNanos () {
+	return treeNanos;
+    }
+
+    /** Get the number of tokens handled during the parse */
+    public int getTokenCount () {
+	return currentPosition;
+    }
+
     private void complete (int stateStartPos) {
 	// No empty rules so we do not have to care about predictions, they are never completed.
 
@@ -134,74 +233,271 @@ public class Parser {
 	int end;
 	int start = stateStartPos;
 	while (start < (end = states.size ())) {
-	    states.apply (this::tryComplete, start, end);
+	    for (int i = start; i < end; i += 2)
+		tryComplete (i);
 	    start = end;
 	}
+	closureOrigin = -1;
     }
 
-    private void tryComplete (int rulePos, int origin) {
-	int dotPos = rulePos & 0xff;
-	int rule = rulePos >> 8;
-	Rule r = grammar.getRule (rule);
-	if (r.size () == dotPos) {
-	    completeLast (rulePos, origin, r);
-	}
+    private void tryComplete (int statePos) {
+	int rulePos = states.get (statePos);
+	if (items.isComplete (rulePos))
+	    completeLast (rulePos, states.get (statePos + 1), statePos);
     }
 
-    private void completeLast (int rulePos, int origin, Rule r) {
-	int stateStartPos = startPositions.get (origin);
-	int stateEndPos = origin < startPositions.size () ? startPositions.get (origin + 1) : states.size ();
-	states.apply ((crp, co) -> tryAdvance (rulePos, origin, r, crp, co), stateStartPos, stateEndPos);
+    private void completeLast (int rulePos, int origin, int completedPos) {
+	int groupId = items.ruleGroup (rulePos);
+	int firstWaiting = findWaiting (origin, groupId);
+	int endWaiting = firstWaiting;
+	for (int end = waitingStarts.get (origin + 1);
+	     endWaiting < end && waitingItems.get (endWaiting) == groupId; endWaiting += 2)
+	    ;
 	PredictGroup pg = predictions.get (origin);
-	pg.apply (r.getGroupId (), crp -> advancePrediction (rulePos, origin, crp));
+	int firstPredicted = pg.start (groupId);
+	int endPredicted = pg.end (groupId);
+	if (useLeoItems && endWaiting - firstWaiting + 2 * (endPredicted - firstPredicted) == 2) {
+	    // Only one state to complete, if that one also leads to a unique completion we
+	    // go directly to the top state.
+	    long item = firstWaiting < endWaiting ?
+		completedIfLast (waitingItems.get (firstWaiting + 1)) :
+		completedIfLast (pg.getRule (firstPredicted), origin);
+	    if (item != NO_LEO && addLeoTop (item, completedPos))
+		return;
+	}
+	for (int i = firstWaiting; i < endWaiting; i += 2) {
+	    int statePos = waitingItems.get (i + 1);
+	    int cRulePos = states.get (statePos);
+	    addState (cRulePos >> 8, (cRulePos & 0xff) + 1, states.get (statePos + 1), statePos, completedPos);
+	}
+	for (int i = firstPredicted; i < endPredicted; i++)
+	    advancePrediction (origin, pg.getRule (i), completedPos);
     }
 
-    private void tryAdvance (int rulePos, int origin, Rule r, int cRulePos, int cOrigin) {
-	int cDotPos = cRulePos & 0xff;
-	int crule = cRulePos >> 8;
-	Rule candidate = grammar.getRule (crule);
-	if (cDotPos < candidate.size ()) {
-	    int part = candidate.get (cDotPos);
-	    if (grammar.isRule (part) && grammar.sameRule (r.getId (), part))
-		addState (crule, cDotPos + 1, cOrigin);
+    /** Add the top state of the deterministic reduction path that item is on
+     * @return false if item is the top state and nothing was added
+     */
+    private boolean addLeoTop (long item, int completedPos) {
+	long top = getLeoTop (itemOrigin (item), items.ruleGroup (itemRulePos (item)));
+	if (top == NO_LEO)
+	    return false;
+	int topRulePos = itemRulePos (top);
+	// The tree builder finds the predecessor using the chain
+	if (addState (topRulePos >> 8, topRulePos & 0xff, itemOrigin (top), NO_STATE, leoCause (leoShortcuts.size ())))
+	    leoShortcuts.add (completedPos);
+	return true;
+    }
+
+    /** Encode a Leo shortcut as the cause of a state */
+    private static int leoCause (int shortcut) {
+	return -2 - shortcut;
+    }
+
+    /** Find the first waiting state for the given rule group in the given set
+     * @return the position in waitingItems, only valid if the rule group matches
+     */
+    private int findWaiting (int set, int ruleGroupId) {
+	int low = waitingStarts.get (set) >> 1;
+	int high = waitingStarts.get (set + 1) >> 1;
+	while (low < high) {
+	    int mid = (low + high) >>> 1;
+	    if (waitingItems.get (mid << 1) < ruleGroupId)
+		low = mid + 1;
+	    else
+		high = mid;
 	}
+	return low << 1;
     }
 
-    private void advancePrediction (int rulePos, int origin, int cRulePos) {
+    /** Get the topmost state that completing the given rule group, started in the given set, leads to.
+     * @return the item or NO_LEO if there is no deterministic reduction path
+     */
+    private long getLeoTop (int set, int ruleGroupId) {
+	long item = uniquePenultimate (set, ruleGroupId);
+	if (item == NO_LEO)
+	    return NO_LEO;
+	long key = leoKey (set, ruleGroupId);
+	int slot = findLeo (key);
+	if (leoKeys[slot] == key)
+	    return leoValues[slot];
+
+	// Walk up the path until we find a known top or the end, every step on the path has the same top
+	int pathSize = 0;
+	long top = NO_LEO;
+	while (top == NO_LEO) {
+	    if (pathSize == leoPath.length)
+		leoPath = Arrays.copyOf (leoPath, pathSize * 2);
+	    leoPath[pathSize++] = key;
+	    set = itemOrigin (item);
+	    ruleGroupId = items.ruleGroup (itemRulePos (item));
+	    long next = uniquePenultimate (set, ruleGroupId);
+	    if (next == NO_LEO) {
+		top = item;
+	    } else {
+		key = leoKey (set, ruleGroupId);
+		slot = findLeo (key);
+		if (leoKeys[slot] == key)
+		    top = leoValues[slot];
+		item = next;
+	    }
+	}
+	for (int i = 0; i < pathSize; i++)
+	    addLeo (leoPath[i], top);
+	return top;
+    }
+
+    /** Check if the given set has exactly one state waiting for the rule group and that state
+     *  only needs the rule group to complete.
+     * @return the completed state or NO_LEO
+     */
+    private long uniquePenultimate (int set, int ruleGroupId) {
+	PredictGroup pg = predictions.get (set);
+	int predicted = pg.end (ruleGroupId) - pg.start (ruleGroupId);
+	if (predicted > 1)
+	    return NO_LEO;
+	int i = findWaiting (set, ruleGroupId);
+	int end = waitingStarts.get (set + 1);
+	boolean waiting = i < end && waitingItems.get (i) == ruleGroupId;
+	if (waiting) {
+	    if (predicted > 0 || (i + 2 < end && waitingItems.get (i + 2) == ruleGroupId))
+		return NO_LEO;
+	    return completedIfLast (waitingItems.get (i + 1));
+	}
+	return predicted == 1 ? completedIfLast (pg.getRule (pg.start (ruleGroupId)), set) : NO_LEO;
+    }
+
+    /** Get the state we get when advancing the state at the given position if that completes it
+     * @return the completed state or NO_LEO
+     */
+    private long completedIfLast (int statePos) {
+	int rulePos = states.get (statePos);
+	if (!items.isLast (rulePos))
+	    return NO_LEO;
+	return item (rulePos + 1, states.get (statePos + 1));
+    }
+
+    /** Get the completed state for a predicted rule, if the rule only has one part */
+    private long completedIfLast (int predictedRulePos, int set) {
+	if (!items.isLast (predictedRulePos))
+	    return NO_LEO;
+	return item (predictedRulePos + 1, set);
+    }
+
+    private static long item (int rulePos, int origin) {
+	return ((long)rulePos << 32) | origin;
+    }
+
+    private static int itemRulePos (long item) {
+	return (int)(item >> 32);
+    }
+
+    private static int itemOrigin (long item) {
+	return (int)item;
+    }
+
+    private static long leoKey (int set, int ruleGroupId) {
+	return ((long)set << 32) | -ruleGroupId;
+    }
+
+    private int findLeo (long key) {
+	int mask = leoKeys.length - 1;
+	long h = key * 0x9e3779b97f4a7c15L;
+	int i = (int)(h ^ (h >>> 32)) & mask;
+	while (leoKeys[i] != 0 && leoKeys[i] != key)
+	    i = (i + 1) & mask;
+	return i;
+    }
+
+    private void addLeo (long key, long value) {
+	int slot = findLeo (key);
+	if (leoKeys[slot] == 0) {
+	    if (++leoCount * 2 > leoKeys.length) {
+		growLeo ();
+		slot = findLeo (key);
+	    }
+	    leoKeys[slot] = key;
+	}
+	leoValues[slot] = value;
+    }
+
+    private void growLeo () {
+	long[] oldKeys = leoKeys;
+	long[] oldValues = leoValues;
+	leoKeys = new long[oldKeys.length * 2];
+	leoValues = new long[oldValues.length * 2];
+	for (int i = 0; i < oldKeys.length; i++) {
+	    if (oldKeys[i] != 0) {
+		int slot = findLeo (oldKeys[i]);
+		leoKeys[slot] = oldKeys[i];
+		leoValues[slot] = oldValues[i];
+	    }
+	}
+    }
+
+    /** Index the states of the current set that wait for a rule group */
+    private void buildWaiting () {
+	int start = startPositions.get (currentPosition);
+	int end = states.size ();
+	int count = 0;
+	for (int i = start; i < end; i += 2) {
+	    int next = items.next (states.get (i));
+	    if (grammar.isRule (next)) {
+		if (count == waitingScratch.length)
+		    waitingScratch = Arrays.copyOf (waitingScratch, count * 2);
+		waitingScratch[count++] = ((long)next << 32) | i;
+	    }
+	}
+	Arrays.sort (waitingScratch, 0, count);
+	for (int i = 0; i < count; i++) {
+	    long l = waitingScratch[i];
+	    waitingItems.add ((int)(l >> 32), (int)l);
+	}
+	waitingStarts.add (waitingItems.size ());
+    }
+
+    private void advancePrediction (int origin, int cRulePos, int completedPos) {
 	// We already know next is matching
-	int crule = cRulePos >> 8;
-	addState (crule, 1, origin);
+	if (origin == closureOrigin) {
+	    states.add (cRulePos + 1, origin);
+	    links.add (NO_STATE, completedPos);
+	} else {
+	    addState (cRulePos >> 8, 1, origin, NO_STATE, completedPos);
+	}
     }
 
     private void predict () {
-	predictedRules.clear ();
-	states.apply ((rp, o) -> addRules (rp, o),
-		      startPositions.get (currentPosition), states.size ());
-	PredictGroup pg = predictCache.getPredictedRules (predictedRules);
+	Arrays.fill (predictedRules, 0);
+	predictedFingerprint = 0;
+	for (int i = startPositions.get (currentPosition), end = states.size (); i < end; i += 2)
+	    addRules (states.get (i));
+	PredictGroup pg = predictCache.getPredictedRules (predictedRules, predictedFingerprint);
 	predictions.add (pg);
     }
 
-    private void addRules (int rulePos, int origin) {
-	int dotPos = rulePos & 0xff;
-	int rule = rulePos >> 8;
-	Rule r = grammar.getRule (rule);
-	if (r.size () == dotPos)
-	    return;
-	int ruleGroupId = r.get (dotPos);
+    private void addRules (int rulePos) {
+	int ruleGroupId = items.next (rulePos);
 	if (grammar.isRule (ruleGroupId)) {
-	    predictedRules.set (-ruleGroupId);
+	    int bit = -ruleGroupId;
+	    long mask = 1L << bit;
+	    if ((predictedRules[bit >> 6] & mask) == 0) {
+		predictedRules[bit >> 6] |= mask;
+		predictedFingerprint ^= PredictCache.fingerprint (bit);
+	    }
 	}
     }
 
     private void setupNextEarleyState () {
+	buildWaiting ();
 	wantedScanTokens.clear ();
-	hashOfStates.clear ();
+	clearDedup ();
     }
 
     private void scan () {
 	// Find tokens that we want to scan
-	states.apply ((rp, o) -> addTokens (rp, wantedScanTokens),
-		      startPositions.get (currentPosition), states.size ());
+	int stateStartPos = startPositions.get (currentPosition);
+	int stateEndPos = states.size ();
+	for (int i = stateStartPos; i < stateEndPos; i += 2)
+	    addTokens (states.get (i), wantedScanTokens);
 	PredictGroup pg = predictions.get (currentPosition);
 	wantedScanTokens.or (pg.getWantedScanTokens ());
 	if (wantedScanTokens.isEmpty ()) {
@@ -218,10 +514,16 @@ public class Parser {
 	}
 	if (wantedScanTokens.intersects (scannedTokens)) {
 	    // Advance the states that can be advanced by the scanned token
-	    states.apply ((rp, o) -> advance (rp, o, scannedTokens),
-			  startPositions.get (currentPosition), states.size ());
-	    scannedTokens.stream ().forEach (t -> pg.apply (t, rp -> advancePrediction (rp)));
-	    tokenValues.add (lexer.getCurrentValue ());
+	    for (int i = stateStartPos; i < stateEndPos; i += 2)
+		advance (i, scannedTokens);
+	    // The predicted states, and the ones they lead to when completed, are the only ones
+	    // with the current position as origin, so if the closure has no duplicates we skip the checks
+	    if (useScanClosures && pg.hasDeterministicClosure (scannedTokens))
+		closureOrigin = currentPosition;
+	    for (int t = scannedTokens.nextSetBit (0); t >= 0; t = scannedTokens.nextSetBit (t + 1))
+		for (int i = pg.start (t), end = pg.end (t); i < end; i++)
+		    advancePrediction (pg.getRule (i));
+	    addToken (scannedTokens.nextSetBit (0), lexer.hasCurrentValue () ? lexer.getCurrentValue () : null);
 	} else {
 	    // Try to advance by saying we got what we wanted
 	    ParsePosition pp = lexer.getParsePosition ();
@@ -233,20 +535,29 @@ public class Parser {
 	    diagnostics.report (sd);
 	    unexpected.report (sd);
 	    pushbackTokens = (BitSet)scannedTokens.clone ();
-	    states.apply ((rp, o) -> advanceAllTokens (rp, o),
-			  startPositions.get (currentPosition), states.size ());
+	    for (int i = stateStartPos; i < stateEndPos; i += 2)
+		advanceAllTokens (i);
 	    pg.applyAll (rp -> advancePredictionsStartingWith (rp));
-	    tokenValues.add (new TokenNode (grammar.WILDCARD, lexer.getParsePosition ()));
+	    addToken (grammar.WILDCARD.getId (), null);
+	}
+    }
+
+    private void addToken (int tokenId, TokenNode value) {
+	int position = tokenData.size () / 5;
+	tokenData.add (tokenId);
+	tokenData.add (lexer.getLineNumber ());
+	tokenData.add (lexer.getTokenColumn ());
+	tokenData.add (lexer.getTokenStartPos ());
+	tokenData.add (lexer.getTokenEndPos ());
+	if (value != null) {
+	    if (position >= tokenValues.length)
+		tokenValues = Arrays.copyOf (tokenValues, tokenValues.length * 2);
+	    tokenValues[position] = value;
 	}
     }
 
     private void addTokens (int rulePos, BitSet tokens) {
-	int dotPos = rulePos & 0xff;
-	int rule = rulePos >> 8;
-	Rule r = grammar.getRule (rule);
-	if (dotPos >= r.size ())
-	    return;
-	int id = r.get (dotPos);
+	int id = items.next (rulePos);
 	if (grammar.isToken (id)) {
 	    tokens.set (id);
 	}
@@ -274,76 +585,113 @@ public class Parser {
 	    .collect (java.util.stream.Collectors.joining (", ", "[", "]"));
     }
 
-    private void advance (int rulePos, int origin, BitSet scannedTokens) {
-	int dotPos = rulePos & 0xff;
-	int rule = rulePos >> 8;
-	Rule r = grammar.getRule (rule);
-	if (dotPos >= r.size ())
-	    return;
-	if (!nextIsMatchingToken (r, dotPos, scannedTokens))
-	    return;
-	addState (rule, dotPos + 1, origin);
-    }
-
-    private boolean nextIsMatchingToken (Rule r, int dotPos, BitSet scannedTokens) {
-	int tokenOrRuleId = r.get (dotPos);
-	return tokenOrRuleId > 0 && scannedTokens.get (tokenOrRuleId);
+    private void advance (int statePos, BitSet scannedTokens) {
+	int rulePos = states.get (statePos);
+	int tokenOrRuleId = items.next (rulePos);
+	if (tokenOrRuleId > 0 && scannedTokens.get (tokenOrRuleId))
+	    addState (rulePos >> 8, (rulePos & 0xff) + 1, states.get (statePos + 1), statePos, NO_STATE);
     }
 
     private void advancePrediction (int rulePos) {
 	// we already know that next is matching
-	int rule = rulePos >> 8;
-	addState (rule, 1, currentPosition);
+	if (closureOrigin == currentPosition) {
+	    states.add (rulePos + 1, currentPosition);
+	    links.add (NO_STATE, NO_STATE);
+	} else {
+	    addState (rulePos >> 8, 1, currentPosition, NO_STATE, NO_STATE);
+	}
     }
 
     /** Used to advance all token for error handling, trying to see what we can do */
-    private void advanceAllTokens (int rulePos, int origin) {
-	int dotPos = rulePos & 0xff;
-	int rule = rulePos >> 8;
-	Rule r = grammar.getRule (rule);
-	if (dotPos >= r.size ())
-	    return;
-	if (!nextIsToken (r, dotPos))
-	    return;
-	addState (rule, dotPos + 1, origin);
+    private void advanceAllTokens (int statePos) {
+	int rulePos = states.get (statePos);
+	if (grammar.isToken (items.next (rulePos)))
+	    addState (rulePos >> 8, (rulePos & 0xff) + 1, states.get (statePos + 1), statePos, NO_STATE);
     }
 
     /** Used to advance all token for error handling, trying to see what we can do */
     private void advancePredictionsStartingWith (int rulePos) {
-	int rule = rulePos >> 8;
-	Rule r = grammar.getRule (rule);
-	if (!nextIsToken (r, 0))
-	    return;
-	addState (rule, 1, currentPosition);
+	if (grammar.isToken (items.next (rulePos)))
+	    addState (rulePos >> 8, 1, currentPosition, NO_STATE, NO_STATE);
     }
 
-    private boolean nextIsToken (Rule r, int dotPos) {
-	int tokenOrRuleId = r.get (dotPos);
-	return grammar.isToken (tokenOrRuleId);
-    }
-
-    private void addState (int rule, int dotPos, int origin) {
+    /** Add a state to the current set
+     * @param predecessor the position of the state that was advanced, NO_STATE for predicted rules
+     * @param cause the position of the completed state or NO_STATE, see links
+     * @return true if the state was added, false if it already was in the set
+     */
+    private boolean addState (int rule, int dotPos, int origin, int predecessor, int cause) {
 	int arp = rule << 8 | dotPos;
 
-	int bitPos = Math.abs ((arp ^ origin) % STATE_HASH_SIZE);
-	if (hashOfStates.get (bitPos)) {
-	    if (states.checkFor (arp, origin, startPositions.get (currentPosition), states.size ())) {
-		if (!diagnostics.hasError ()) {// When we try all options we will get dups
-		    ParsePosition pp =lexer.getParsePosition ();
-		    diagnostics.report (SourceDiagnostics.error (path, pp, "Parsing failed with duplicate options"));
-		    System.out.println ("Dup found for: " + grammar.getRule (rule).toReadableString(grammar) +
-					", dotPos: " + dotPos);
-		    printStates (currentPosition);
-		}
-		return;
+	if (!addToDedup (arp, origin)) {
+	    if (!diagnostics.hasError ()) {// When we try all options we will get dups
+		ParsePosition pp =lexer.getParsePosition ();
+		diagnostics.report (SourceDiagnostics.error (path, pp, "Parsing failed with duplicate options"));
+		System.out.println ("Dup found for: " + grammar.getRule (rule).toReadableString(grammar) +
+				    ", dotPos: " + dotPos);
+		printStates (currentPosition);
 	    }
+	    return false;
 	}
-	hashOfStates.set (bitPos, true);
 	states.add (arp, origin);
+	links.add (predecessor, cause);
 	if (DEBUG) {
 	    System.out.println ("added State: " + readableRule (rule) +
 				", dotPos: " + dotPos + ", origin: " + origin);
 	}
+	return true;
+    }
+
+    /** Add the state to the dedup table.
+     * @return false if the state already is in the current set
+     */
+    private boolean addToDedup (int rulePos, int origin) {
+	int mask = dedupGenerations.length - 1;
+	for (int i = dedupHash (rulePos, origin) & mask; ; i = (i + 1) & mask) {
+	    if (dedupGenerations[i] != dedupGeneration) {
+		dedupGenerations[i] = dedupGeneration;
+		dedupStates[2 * i] = rulePos;
+		dedupStates[2 * i + 1] = origin;
+		if (++dedupCount * 2 > dedupGenerations.length)
+		    growDedup ();
+		return true;
+	    }
+	    if (dedupStates[2 * i] == rulePos && dedupStates[2 * i + 1] == origin)
+		return false;
+	}
+    }
+
+    private static int dedupHash (int rulePos, int origin) {
+	int h = rulePos * 0x9e3779b1 + origin;
+	return h ^ (h >>> 16);
+    }
+
+    private void growDedup () {
+	int[] oldStates = dedupStates;
+	int[] oldGenerations = dedupGenerations;
+	dedupStates = new int[oldStates.length * 2];
+	dedupGenerations = new int[oldGenerations.length * 2];
+	int mask = dedupGenerations.length - 1;
+	for (int j = 0; j < oldGenerations.length; j++) {
+	    if (oldGenerations[j] != dedupGeneration)
+		continue;
+	    int rulePos = oldStates[2 * j];
+	    int origin = oldStates[2 * j + 1];
+	    int i = dedupHash (rulePos, origin) & mask;
+	    while (dedupGenerations[i] == dedupGeneration)
+		i = (i + 1) & mask;
+	    dedupGenerations[i] = dedupGeneration;
+	    dedupStates[2 * i] = rulePos;
+	    dedupStates[2 * i + 1] = origin;
+	}
+    }
+
+    private void clearDedup () {
+	dedupCount = 0;
+	if (++dedupGeneration == 0) { // wrapped, make sure no old slot looks used
+	    Arrays.fill (dedupGenerations, 0);
+	    dedupGeneration = 1;
+	}
     }
 
     private String readableRule (int rule) {
@@ -356,27 +704,16 @@ public class Parser {
 	return diagnostics.errorCount () > MAX_ERRORS;
     }
 
-    private void findFinished (int rulePos, int origin, Rule goalRule, IntHolder goalHolder) {
-	int dotPos = rulePos & 0xff;
-	int rule = rulePos >> 8;
-	if (rule != goalRule.getId ())
-	    return;
-	if (origin != 0)
-	    return;
-	if (dotPos < goalRule.size ())
-	    return;
-	goalHolder.add (rulePos, origin);
+    private boolean isFinished (int rulePos, int origin, Rule goalRule) {
+	return rulePos >> 8 == goalRule.getId () && origin == 0 && (rulePos & 0xff) == goalRule.size ();
     }
 
-    private TreeInfo generateParseTree (int rulePos, int origin, int completedIn, int endPos) {
-	// TODO: rewrite to a breath first search.
-	// TODO: we may have several options for example SwitchBlockStatementGroup and SwitchLabel
-	// TOOD: both start the same way
-	int rule = rulePos >> 8;
-	Rule r = grammar.getRule (rule);
+    private TreeInfo generateParseTree (int statePos, int completedIn) {
+	Rule r = grammar.getRule (states.get (statePos) >> 8);
+	int origin = states.get (statePos + 1);
 	Deque<ChildCollector> queue = new ArrayDeque<> ();
 	debugRecursionStep (r, origin, completedIn);
-	queue.addLast (new ChildCollector (r, origin, completedIn, endPos));
+	queue.addLast (new ChildCollector (r, origin, completedIn, statePos));
 	// Call method with the queue so that we do nto have to care about the input fields
 	return generateParseTree (queue);
     }
@@ -399,7 +736,10 @@ public class Parser {
 		    c.addToken (p);
 		} else {
 		    // push a recursion step for the new current rule
-		    queue.addLast (c.getChildCollector (currentRulePos, p));
+		    ChildCollector child = c.getChildCollector (p);
+		    if (child == null)
+			return new TreeInfo (null, 0);
+		    queue.addLast (child);
 		}
 	    }
 	}
@@ -418,20 +758,21 @@ public class Parser {
 	private final Rule r;
 	private final int origin;
 	private int completedIn;
-	private int endPos;
+	// The state for the children that are left, we go from the completed state to its predecessors
+	private long state;
 	private final List<ParseTreeNode> children = new ArrayList<> ();
 	private int usedTokens;
 
-	public ChildCollector (Rule r, int origin, int completedIn, int endPos) {
+	public ChildCollector (Rule r, int origin, int completedIn, long state) {
 	    this.r = r;
 	    this.origin = origin;
 	    this.completedIn = completedIn;
-	    this.endPos = endPos;
+	    this.state = state;
 	}
 
 	@Override public String toString () {
 	    return getClass ().getSimpleName () + "{" + r + ", origin: " + origin +
-		", completedIn: " + completedIn + ", endPos: " + endPos + ", usedTokens: " + usedTokens + "}";
+		", completedIn: " + completedIn + ", state: " + state + ", usedTokens: " + usedTokens + "}";
 	}
 
 	public boolean isComplete () {
@@ -440,7 +781,9 @@ public class Parser {
 
 	public TreeInfo complete () {
 	    Collections.reverse (children);
-	    ParseTreeNode st = new RuleNode (r, children);
+	    // A RuleNode takes its position from its first child, so only look up the token when needed
+	    ParseTreeNode st = nodeFactory == RULE_NODES ? new RuleNode (r, children) :
+		nodeFactory.create (r, getTokenValue (origin).position (), children);
 	    return new TreeInfo (st, usedTokens);
 	}
 
@@ -472,29 +815,23 @@ public class Parser {
 	private void update (int tokenDiff) {
 	    usedTokens += tokenDiff;
 	    completedIn -= tokenDiff;
-	    if (tokenDiff > 0)
-		endPos = startPositions.get (completedIn + 1);
+	    state = predecessor (state);
 	}
 
-	public ChildCollector getChildCollector (int currentRulePos, int ruleId) {
+	public ChildCollector getChildCollector (int ruleId) {
 	    if (DEBUG)
 		System.out.println ("Trying to find rule: " + grammar.getRuleGroupName (ruleId));
-	    int originLEQ = currentRulePos == 0 ? origin : completedIn;
-	    int originGEQ = origin + currentRulePos;
-	    int ihPos = findCompleted (ruleId, completedIn, originLEQ, originGEQ, endPos);
-	    if (ihPos < 0) {
-		System.err.println ("Failed to find completed: " + grammar.getRuleGroupName (ruleId) +
-				    " for: " + r.toReadableString (grammar));
+	    long child = cause (state);
+	    if (child == NO_STATE || items.ruleGroup (stateRulePos (child)) != ruleId) {
 		addParserError ("Failed to find completed: %s for %s",
 				grammar.getRuleGroupName (ruleId),
 				r.toReadableString (grammar));
 		return null;
 	    }
-	    int cruleId = states.get (ihPos) >> 8;
-	    Rule crule = grammar.getRule (cruleId);
-	    int origin = states.get (ihPos + 1);
+	    Rule crule = grammar.getRule (stateRulePos (child) >> 8);
+	    int origin = stateOrigin (child);
 	    debugRecursionStep (crule, origin, completedIn);
-	    return new ChildCollector (crule, origin, completedIn, ihPos);
+	    return new ChildCollector (crule, origin, completedIn, child);
 	}
 
 	public int getRulePos () {
@@ -503,34 +840,132 @@ public class Parser {
     }
 
     private TokenNode getTokenValue (int position) {
-	return tokenValues.get (position);
+	if (position >= tokenValues.length)
+	    tokenValues = Arrays.copyOf (tokenValues, Math.max (tokenValues.length * 2, position + 1));
+	TokenNode n = tokenValues[position];
+	if (n == null) {
+	    int i = 5 * position;
+	    ParsePosition pp = new ParsePosition (tokenData.get (i + 1), tokenData.get (i + 2),
+						  tokenData.get (i + 3), tokenData.get (i + 4));
+	    n = new TokenNode (grammar.getToken (tokenData.get (i)), pp);
+	    tokenValues[position] = n;
+	}
+	return n;
     }
 
-    private int findCompleted (int ruleGroup, int completedIn, int originLEQ, int originGEQ, int endPos) {
-	int stateStartPos = startPositions.get (completedIn);
-	int stateEndPos = endPos;
-	if (DEBUG)
-	    System.out.println ("Looking in " + completedIn + ": " + stateStartPos + " - " + stateEndPos);
-	return states.reverseCheckFor ((rp, o) -> validComplete (rp, o, ruleGroup, originLEQ, originGEQ),
-				       stateEndPos, stateStartPos);
+    /** The tree builder walks states that are either a position in states, or a state that a
+     *  Leo shortcut left out, given as a negative number holding the shortcut and chain level.
+     */
+    private static long chainState (int shortcut, int level) {
+	return -2 - (((long)shortcut << 32) | level);
     }
 
-    private boolean validComplete (int rulePos, int origin, int ruleGroup, int originLEQ, int originGEQ) {
-	int dotPos = rulePos & 0xff;
-	int rule = rulePos >> 8;
-	Rule candidate = grammar.getRule (rule);
-	if (DEBUG) {
-	    System.out.println ("candidate: " + candidate.toReadableString (grammar) + ", dot: " +
-				dotPos + ", origin: " + origin +
-				" oleq: " + originLEQ + ", ogeq: " + originGEQ +
-				" => " +
-				(candidate.getGroupId () == ruleGroup &&
-				 candidate.size () == dotPos &&
-				 origin <= originLEQ && origin >= originGEQ));
-	}
-	return candidate.getGroupId () == ruleGroup &&
-	    candidate.size () == dotPos &&
-	    origin <= originLEQ && origin >= originGEQ;
+    private static int chainShortcut (long state) {
+	return (int)((-2 - state) >>> 32);
+    }
+
+    private LeoChain getChain (long state) {
+	return getLeoChain (chainShortcut (state));
+    }
+
+    private static int chainLevel (long state) {
+	return (int)(-2 - state);
+    }
+
+    private int stateRulePos (long state) {
+	return state >= 0 ? states.get ((int)state) : getChain (state).rulePos (chainLevel (state));
+    }
+
+    private int stateOrigin (long state) {
+	return state >= 0 ? states.get ((int)state + 1) : getChain (state).origin (chainLevel (state));
+    }
+
+    /** Get the state that was advanced to give the given state */
+    private long predecessor (long state) {
+	if (state < 0)
+	    return getChain (state).predecessor (chainLevel (state));
+	int cause = links.get ((int)state + 1);
+	if (cause < NO_STATE) { // the top state of a Leo shortcut
+	    LeoChain chain = getLeoChain (-2 - cause);
+	    return chain.predecessor (chain.size () - 1);
+	}
+	return links.get ((int)state);
+    }
+
+    /** Get the completed state that advanced the given state */
+    private long cause (long state) {
+	if (state < 0) {
+	    int level = chainLevel (state);
+	    return level > 0 ? chainState (chainShortcut (state), level - 1) : getChain (state).completed;
+	}
+	int cause = links.get ((int)state + 1);
+	if (cause < NO_STATE) {
+	    int shortcut = -2 - cause;
+	    LeoChain chain = getLeoChain (shortcut);
+	    return chain.size () > 1 ? chainState (shortcut, chain.size () - 2) : chain.completed;
+	}
+	return cause;
+    }
+
+    private LeoChain getLeoChain (int shortcut) {
+	if (shortcut >= leoChains.length)
+	    leoChains = Arrays.copyOf (leoChains, Math.max (shortcut + 1, leoChains.length * 2));
+	LeoChain chain = leoChains[shortcut];
+	if (chain == null)
+	    chain = leoChains[shortcut] = new LeoChain (leoShortcuts.get (shortcut));
+	return chain;
+    }
+
+    /** The states from the completed state of a Leo shortcut up to, and including, its top state.
+     *  Stored as triples of rulePos, origin and the position of the predecessor, in the order
+     *  they would have been completed.
+     */
+    private class LeoChain {
+	private final int completed;
+	private int[] levels = new int[12];
+	private int size;
+
+	public LeoChain (int completed) {
+	    this.completed = completed;
+	    int set = states.get (completed + 1);
+	    int group = items.ruleGroup (states.get (completed));
+	    for (long item = uniquePenultimate (set, group); item != NO_LEO; item = uniquePenultimate (set, group)) {
+		if (3 * size == levels.length)
+		    levels = Arrays.copyOf (levels, levels.length * 2);
+		levels[3 * size] = itemRulePos (item);
+		levels[3 * size + 1] = itemOrigin (item);
+		levels[3 * size + 2] = uniqueWaiting (set, group);
+		size++;
+		set = itemOrigin (item);
+		group = items.ruleGroup (itemRulePos (item));
+	    }
+	}
+
+	public int size () {
+	    return size;
+	}
+
+	public int rulePos (int level) {
+	    return levels[3 * level];
+	}
+
+	public int origin (int level) {
+	    return levels[3 * level + 1];
+	}
+
+	public int predecessor (int level) {
+	    return levels[3 * level + 2];
+	}
+    }
+
+    /** Get the state that uniquePenultimate advances
+     * @return the position of the waiting state or NO_STATE if it is a predicted rule
+     */
+    private int uniqueWaiting (int set, int ruleGroupId) {
+	int i = findWaiting (set, ruleGroupId);
+	if (i < waitingStarts.get (set + 1) && waitingItems.get (i) == ruleGroupId)
+	    return waitingItems.get (i + 1);
+	return NO_STATE;
     }
 
     private void printStates (int position) {
@@ -1,32 +1,193 @@
 package org.khelekore.parjac2.parser;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.List;
-import java.util.Map;
 
+/** Cache of the rules predicted from a set of rule groups.
+ *  The set of rule groups is given as words of bits, see {@link #createRuleGroupSet}, together
+ *  with a fingerprint that the caller keeps up to date using {@link #fingerprint}.
+ *  The cache is an open addressing hash table, lookups do not lock and do not allocate,
+ *  adding a new group is done while holding a lock.
+ *  The cache can be warmed with groups written by an earlier cache, see {@link #write}.
+ */
 public class PredictCache {
 
+    /** The version of the written data, part of the source hash so a new format is never read as an old one */
+    public static final int FORMAT_VERSION = 1;
+    private static final int MAGIC = 0x706a7000 | FORMAT_VERSION;
+
     private final Grammar grammar;
-    private final Map<BitSet, PredictGroup> cache = new ConcurrentHashMap<> ();
+    private final ItemTable itemTable;
+    private final int numWords;
+    // Only replaced while holding the lock, entries only change by getting their group, which
+    // is volatile, so reads need no lock
+    private volatile Entry[] table = new Entry[1024];
+    private int size;
+    private final LongAdder hits = new LongAdder ();
+    private final LongAdder misses = new LongAdder ();
 
     public PredictCache (Grammar grammar) {
 	this.grammar = grammar;
+	itemTable = new ItemTable (grammar);
+	numWords = (-grammar.getMaxRuleGroupId () >> 6) + 1;
+    }
+
+    /** Get the dotted rules of the grammar, shared by all parsers using this cache */
+    public ItemTable getItemTable () {
+	return itemTable;
+    }
+
+    /** Create an empty set of rule groups, each bit is a RuleGroup id */
+    public long[] createRuleGroupSet () {
+	return new long[numWords];
+    }
+
+    /** Get the fingerprint part of a rule group, the fingerprint of a set of rule groups
+     *  is the xor of the fingerprint of its rule groups.
+     */
+    public static long fingerprint (int ruleGroupId) {
+	// murmur3 finalizer, spreads the small ids over all bits
+	long h = ruleGroupId * 0x9e3779b97f4a7c15L;
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	h ^= h >>> 33;
+	h *= 0xc4ceb9fe1a85ec53L;
+	h ^= h >>> 33;
+	return h;
     }
 
     /**
-     * @param rules each bit is a RuleGroup id.
+     * @param ruleGroups each bit is a RuleGroup id, the array is not kept so it may be reused.
+     * @param fingerprint the fingerprint of the rule groups
      */
-    public PredictGroup getPredictedRules (BitSet rules) {
-	PredictGroup ret = cache.get (rules);
-	if (ret == null) {
-	    // Need to clone since rules is modifiable
-	    BitSet k = (BitSet)rules.clone ();
-	    ret = cache.computeIfAbsent (k, key -> compute (rules));
+    public PredictGroup getPredictedRules (long[] ruleGroups, long fingerprint) {
+	Entry e = find (table, ruleGroups, fingerprint);
+	if (e != null) {
+	    hits.increment ();
+	    PredictGroup group = e.group;
+	    return group != null ? group : build (e);
 	}
+	misses.increment ();
+	return add (ruleGroups, fingerprint);
+    }
+
+    private static Entry find (Entry[] t, long[] ruleGroups, long fingerprint) {
+	int mask = t.length - 1;
+	for (int i = (int)fingerprint & mask; ; i = (i + 1) & mask) {
+	    Entry e = t[i];
+	    if (e == null)
+		return null;
+	    if (e.fingerprint == fingerprint && Arrays.equals (e.ruleGroups, ruleGroups))
+		return e;
+	}
+    }
+
+    private synchronized PredictGroup add (long[] ruleGroups, long fingerprint) {
+	Entry e = find (table, ruleGroups, fingerprint);
+	if (e != null) // someone else added it
+	    return e.group != null ? e.group : build (e);
+	PredictGroup group = compute (BitSet.valueOf (ruleGroups));
+	put (new Entry (fingerprint, ruleGroups.clone (), null, group));
+	return group;
+    }
+
+    // Create the group of an entry that was read, the predicted rules are already known
+    private synchronized PredictGroup build (Entry e) {
+	if (e.group == null) {
+	    e.group = new PredictGroup (grammar, e.predicted);
+	    e.predicted = null;
+	}
+	return e.group;
+    }
+
+    // Only called while holding the lock
+    private void put (Entry e) {
+	Entry[] t = table;
+	if ((size + 1) * 2 > t.length)
+	    t = resize (t);
+	insert (t, e);
+	size++;
+	table = t;
+    }
+
+    private static Entry[] resize (Entry[] t) {
+	Entry[] ret = new Entry[t.length * 2];
+	for (Entry e : t)
+	    if (e != null)
+		insert (ret, e);
 	return ret;
     }
 
+    private static void insert (Entry[] t, Entry e) {
+	int mask = t.length - 1;
+	int i = (int)e.fingerprint & mask;
+	while (t[i] != null)
+	    i = (i + 1) & mask;
+	t[i] = e;
+    }
+
+    /** Write the groups computed so far, a cache for the same grammar can be warmed with them using
+     *  {@link #read}.
+     * @param sourceHash the hash of what the grammar was read from
+     */
+    public synchronized void write (DataOutput out, String sourceHash) throws IOException {
+	out.writeInt (MAGIC);
+	out.writeUTF (sourceHash);
+	out.writeInt (numWords);
+	out.writeInt (size);
+	for (Entry e : table) {
+	    if (e == null)
+		continue;
+	    out.writeLong (e.fingerprint);
+	    for (long w : e.ruleGroups)
+		out.writeLong (w);
+	    long[] predicted = (e.group != null ? e.group.getPredicted () : e.predicted).toLongArray ();
+	    out.writeInt (predicted.length);
+	    for (long w : predicted)
+		out.writeLong (w);
+	}
+    }
+
+    /** Add the groups written by {@link #write}, the groups do not have to be computed again.
+     *  A group is only created the first time it is used.
+     * @param sourceHash the hash of the source the grammar was read from
+     * @return false, with nothing added, if the groups are of another version or from another source
+     */
+    public synchronized boolean read (DataInput in, String sourceHash) throws IOException {
+	if (in.readInt () != MAGIC || !in.readUTF ().equals (sourceHash))
+	    return false;
+	if (in.readInt () != numWords)
+	    throw new IOException ("Predicted groups are for another grammar");
+	int count = in.readInt ();
+	for (int i = 0; i < count; i++) {
+	    long fingerprint = in.readLong ();
+	    long[] ruleGroups = new long[numWords];
+	    for (int j = 0; j < numWords; j++)
+		ruleGroups[j] = in.readLong ();
+	    long[] predicted = new long[in.readInt ()];
+	    for (int j = 0; j < predicted.length; j++)
+		predicted[j] = in.readLong ();
+	    if (find (table, ruleGroups, fingerprint) == null)
+		put (new Entry (fingerprint, ruleGroups, BitSet.valueOf (predicted), null));
+	}
+	return true;
+    }
+
+    /** Get the number of lookups that found an already computed group */
+    public long getHits () {
+	return hits.sum ();
+    }
+
+    /** Get the number of lookups that had to compute, or wait for, a group */
+    public long getMisses () {
+	return misses.sum ();
+    }
+
     private PredictGroup compute (BitSet rules) {
 	BitSet seen = new BitSet ();
 	BitSet predicted = new BitSet ();
@@ -54,4 +215,19 @@ public class PredictCache {
 	    }
 	}
     }
+
+    private static class Entry {
+	private final long fingerprint;
+	private final long[] ruleGroups;
+	// The predicted rules of a read entry, until its group has been built
+	private BitSet predicted;
+	private volatile PredictGroup group;
+
+	public Entry (long fingerprint, long[] ruleGroups, BitSet predicted, PredictGroup group) {
+	    this.fingerprint = fingerprint;
+	    this.ruleGroups = ruleGroups;
+	    this.predicted = predicted;
+	    this.group = group;
+	}
+    }
 }
@@ -1,41 +1,192 @@
 package org.khelekore.parjac2.parser;
 
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.function.IntConsumer;
-import org.khelekore.parjac2.util.IntHolder;
 
+/** The rules predicted from a set of rule groups, grouped by the token or rule group
+ *  each rule starts with.
+ *  The rules are stored as rule << 8 (dot position 0) in one array, the rules starting with a
+ *  given token or rule group are found using an offset table.
+ *  The offset tables only cover the range of tokens and rule groups that are actually used.
+ *
+ *  For each token we also know if its scan closure is deterministic. The scan closure is the
+ *  predicted rules that are advanced when the token is scanned, the predicted rules that are
+ *  advanced when any of those complete, and so on. It is deterministic if no rule group is
+ *  completed more than once, then all the states in it are unique and the parser can
+ *  skip the duplicate checks when it adds them.
+ */
 public class PredictGroup {
-    private BitSet wantedScanTokens;
-    private Map<Integer, IntHolder> nextTokenOrRuleGroupToRules = new HashMap<> ();
+    private final BitSet wantedScanTokens;
+    private final int[] rules;
+
+    // rules starting with token t are at rules[tokenOffsets[t - firstToken]] up to
+    // rules[tokenOffsets[t - firstToken + 1]]
+    private final int firstToken;
+    private final int[] tokenOffsets;
+    // same for rule groups, but indexed by the negated rule group id
+    private final int firstGroup;
+    private final int[] groupOffsets;
+
+    // The rule groups completed in the scan closure of token t, sorted, are at
+    // closureGroups[closureOffsets[t - firstToken]] up to closureGroups[closureOffsets[t - firstToken + 1]].
+    private final BitSet closureConflicts = new BitSet ();
+    private int[] closureGroups = new int[16];
+    private final int[] closureOffsets;
 
     public PredictGroup (Grammar grammar, BitSet predicted) {
 	wantedScanTokens = new BitSet (grammar.getMaxTokenId ());
-	predicted.stream ().forEach (rule -> addRule (grammar, -rule));
-    }
+	rules = new int[predicted.cardinality ()];
+
+	int minToken = Integer.MAX_VALUE, maxToken = -1;
+	int minGroup = Integer.MAX_VALUE, maxGroup = -1;
+	for (int i = predicted.nextSetBit (0); i >= 0; i = predicted.nextSetBit (i + 1)) {
+	    int first = grammar.getRule (-i).get (0);
+	    if (grammar.isToken (first)) {
+		minToken = Math.min (minToken, first);
+		maxToken = Math.max (maxToken, first);
+		wantedScanTokens.set (first);
+	    } else {
+		minGroup = Math.min (minGroup, -first);
+		maxGroup = Math.max (maxGroup, -first);
+	    }
+	}
+	firstToken = minToken;
+	tokenOffsets = new int[maxToken < 0 ? 1 : maxToken - minToken + 2];
+	firstGroup = minGroup;
+	groupOffsets = new int[maxGroup < 0 ? 1 : maxGroup - minGroup + 2];
+
+	// Count the rules for each start, then turn the counts into offsets and fill in the rules.
+	// Rules with the same start keep the order they have in predicted.
+	for (int i = predicted.nextSetBit (0); i >= 0; i = predicted.nextSetBit (i + 1)) {
+	    int first = grammar.getRule (-i).get (0);
+	    if (grammar.isToken (first))
+		tokenOffsets[first - firstToken + 1]++;
+	    else
+		groupOffsets[-first - firstGroup + 1]++;
+	}
+	for (int i = 1; i < tokenOffsets.length; i++)
+	    tokenOffsets[i] += tokenOffsets[i - 1];
+	groupOffsets[0] = tokenOffsets[tokenOffsets.length - 1];
+	for (int i = 1; i < groupOffsets.length; i++)
+	    groupOffsets[i] += groupOffsets[i - 1];
 
-    private void addRule (Grammar grammar, int rule) {
-	Rule r = grammar.getRule (rule);
-	Integer nextTokenOrRuleGroup = r.get (0);
-	// TODO: not sure about size, does not look like we get more than this for any java grammar
-	IntHolder ih = nextTokenOrRuleGroupToRules.computeIfAbsent (nextTokenOrRuleGroup, k -> new IntHolder (16));
-	ih.add (rule << 8); // rule and dotpos
-	if (grammar.isToken (nextTokenOrRuleGroup))
-	    wantedScanTokens.set (nextTokenOrRuleGroup);
+	int[] tokenPos = tokenOffsets.clone ();
+	int[] groupPos = groupOffsets.clone ();
+	for (int i = predicted.nextSetBit (0); i >= 0; i = predicted.nextSetBit (i + 1)) {
+	    int first = grammar.getRule (-i).get (0);
+	    int pos = grammar.isToken (first) ? tokenPos[first - firstToken]++ : groupPos[-first - firstGroup]++;
+	    rules[pos] = -i << 8; // rule and dotpos
+	}
+
+	closureOffsets = new int[tokenOffsets.length];
+	int[] closure = new int[rules.length];
+	BitSet completed = new BitSet ();
+	int groupCount = 0;
+	for (int t = 0; t < tokenOffsets.length - 1; t++) {
+	    completed.clear ();
+	    int size = 0;
+	    for (int i = tokenOffsets[t]; i < tokenOffsets[t + 1]; i++)
+		closure[size++] = rules[i];
+	    for (int i = 0; i < size; i++) {
+		Rule r = grammar.getRule (closure[i] >> 8);
+		if (r.size () > 1)
+		    continue;
+		int bit = -r.getGroupId ();
+		if (completed.get (bit)) {
+		    closureConflicts.set (t);
+		    break;
+		}
+		completed.set (bit);
+		// each rule starts with one thing so a rule group only adds its rules once
+		for (int j = offset (groupOffsets, bit - firstGroup, 0),
+			 end = offset (groupOffsets, bit - firstGroup, 1); j < end; j++)
+		    closure[size++] = rules[j];
+	    }
+	    for (int bit = completed.nextSetBit (0); bit >= 0; bit = completed.nextSetBit (bit + 1)) {
+		if (groupCount == closureGroups.length)
+		    closureGroups = Arrays.copyOf (closureGroups, groupCount * 2);
+		closureGroups[groupCount++] = bit;
+	    }
+	    closureOffsets[t + 1] = groupCount;
+	}
+	closureGroups = Arrays.copyOf (closureGroups, groupCount);
     }
 
     public BitSet getWantedScanTokens () {
 	return wantedScanTokens;
     }
 
+    /** Get the position of the first rule starting with the given token or rule group.
+     *  The rules are at positions start up to, but not including, end.
+     */
+    public int start (int tokenOrRuleGroup) {
+	if (tokenOrRuleGroup > 0)
+	    return offset (tokenOffsets, tokenOrRuleGroup - firstToken, 0);
+	return offset (groupOffsets, -tokenOrRuleGroup - firstGroup, 0);
+    }
+
+    public int end (int tokenOrRuleGroup) {
+	if (tokenOrRuleGroup > 0)
+	    return offset (tokenOffsets, tokenOrRuleGroup - firstToken, 1);
+	return offset (groupOffsets, -tokenOrRuleGroup - firstGroup, 1);
+    }
+
+    private static int offset (int[] offsets, int index, int add) {
+	if (index < 0 || index >= offsets.length - 1)
+	    return 0;
+	return offsets[index + add];
+    }
+
+    /** Get the rule, as rule << 8, at the given position */
+    public int getRule (int pos) {
+	return rules[pos];
+    }
+
+    /** Get the predicted rules this group was created from, each bit is a negated rule id */
+    public BitSet getPredicted () {
+	BitSet predicted = new BitSet ();
+	for (int r : rules)
+	    predicted.set (-(r >> 8));
+	return predicted;
+    }
+
+    /** Check if the combined scan closure of the given tokens is deterministic, that is if
+     *  each token has a deterministic closure and no two of them complete the same rule group.
+     */
+    public boolean hasDeterministicClosure (BitSet tokens) {
+	for (int t = tokens.nextSetBit (0); t >= 0; t = tokens.nextSetBit (t + 1)) {
+	    if (t >= firstToken && closureConflicts.get (t - firstToken))
+		return false;
+	    for (int u = tokens.nextSetBit (t + 1); u >= 0; u = tokens.nextSetBit (u + 1))
+		if (sharesGroup (t, u))
+		    return false;
+	}
+	return true;
+    }
+
+    private boolean sharesGroup (int t, int u) {
+	int i = offset (closureOffsets, t - firstToken, 0), iEnd = offset (closureOffsets, t - firstToken, 1);
+	int j = offset (closureOffsets, u - firstToken, 0), jEnd = offset (closureOffsets, u - firstToken, 1);
+	while (i < iEnd && j < jEnd) {
+	    int diff = closureGroups[i] - closureGroups[j];
+	    if (diff == 0)
+		return true;
+	    if (diff < 0)
+		i++;
+	    else
+		j++;
+	}
+	return false;
+    }
+
     public void apply (int tokenOrRuleGroup, IntConsumer ic) {
-	IntHolder ih = nextTokenOrRuleGroupToRules.get (tokenOrRuleGroup);
-	if (ih != null)
-	    ih.apply (ic, 0, ih.size ());
+	for (int i = start (tokenOrRuleGroup), end = end (tokenOrRuleGroup); i < end; i++)
+	    ic.accept (rules[i]);
     }
 
     public void applyAll (IntConsumer ic) {
-	nextTokenOrRuleGroupToRules.values ().forEach (ih -> ih.apply (ic, 0, ih.size ()));
+	for (int r : rules)
+	    ic.accept (r);
     }
 }
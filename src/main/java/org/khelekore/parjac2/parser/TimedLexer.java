@@ -0,0 +1,67 @@
+package org.khelekore.parjac2.parser;
+
+import java.util.BitSet;
+
+import org.khelekore.parjac2.parsetree.TokenNode;
+
+/** A lexer that keeps track of how much time is spent scanning tokens */
+public class TimedLexer implements Lexer {
+    private final Lexer lexer;
+    private long nanos;
+
+    public TimedLexer (Lexer lexer) {
+	this.lexer = lexer;
+    }
+
+    /** Get the total time spent in the wrapped lexer */
+    public long getNanos () {
+	return nanos;
+    }
+
+    @Override public boolean hasMoreTokens () {
+	return lexer.hasMoreTokens ();
+    }
+
+    @Override public BitSet nextToken (BitSet wantedTokens) {
+	long start = System.nanoTime ();
+	BitSet ret = lexer.nextToken (wantedTokens);
+	nanos += System.nanoTime () - start;
+	return ret;
+    }
+
+    @Override public TokenNode getCurrentValue () {
+	return lexer.getCurrentValue ();
+    }
+
+    @Override public boolean hasCurrentValue () {
+	return lexer.hasCurrentValue ();
+    }
+
+    @Override public TokenNode toCorrectType (TokenNode n, Token wantedActualToken) {
+	return lexer.toCorrectType (n, wantedActualToken);
+    }
+
+    @Override public ParsePosition getParsePosition () {
+	return lexer.getParsePosition ();
+    }
+
+    @Override public int getLineNumber () {
+	return lexer.getLineNumber ();
+    }
+
+    @Override public int getTokenColumn () {
+	return lexer.getTokenColumn ();
+    }
+
+    @Override public int getTokenStartPos () {
+	return lexer.getTokenStartPos ();
+    }
+
+    @Override public int getTokenEndPos () {
+	return lexer.getTokenEndPos ();
+    }
+
+    @Override public String getError () {
+	return lexer.getError ();
+    }
+}
@@ -0,0 +1,17 @@
+package org.khelekore.parjac2.parsetree;
+
+import java.util.List;
+
+import org.khelekore.parjac2.parser.ParsePosition;
+import org.khelekore.parjac2.parser.Rule;
+
+/** Creates the tree node for a rule once the parser has built all of its children.
+ */
+public interface NodeFactory {
+    /** Create the node for a rule
+     * @param rule the rule that was completed
+     * @param position the position of the first token of the rule
+     * @param children the nodes the factory created for the parts of the rule, in order
+     */
+    ParseTreeNode create (Rule rule, ParsePosition position, List<ParseTreeNode> children);
+}
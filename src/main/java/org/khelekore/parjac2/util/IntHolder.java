@@ -1,55 +1,54 @@
 package org.khelekore.parjac2.util;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.function.IntConsumer;
 
+/** A growable list of ints stored in fixed size blocks.
+ *  The block size is a power of two so a position is split into block and
+ *  position in block using shift and mask.
+ */
 public class IntHolder {
-    private final int blockSize;
-    private final List<int[]> parts;
+    private final int shift;
+    private final int mask;
+    private int[][] blocks;
     private int currentSize;
 
     public IntHolder (int blockSize) {
-	if (blockSize % 2 == 1)
-	    throw new IllegalArgumentException ("Block size needs to be even");
-	this.blockSize = blockSize;
-	parts = new ArrayList<> ();
+	if (blockSize < 2 || Integer.bitCount (blockSize) != 1)
+	    throw new IllegalArgumentException ("Block size needs to be a power of two: " + blockSize);
+	shift = Integer.numberOfTrailingZeros (blockSize);
+	mask = blockSize - 1;
+	blocks = new int[4][];
     }
 
     public int get (int i) {
-	int blockId = i / blockSize;
-	int[] block = parts.get (blockId);
-	int posInBlock = i % blockSize;
-	return block[posInBlock];
+	return blocks[i >>> shift][i & mask];
     }
 
     public void add (int i) {
-	int positionInBlock = currentSize % blockSize;
-	int[] block;
-	if (positionInBlock == 0) {
-	    parts.add (block = new int[blockSize]);
-	} else {
-	    int blockPosition = currentSize / blockSize;
-	    block = parts.get (blockPosition);
-	}
-	block[positionInBlock] = i;
+	int[] block = blockForAdd ();
+	block[currentSize & mask] = i;
 	currentSize++;
     }
 
+    /** Add two values, pairs are always added at even positions so they end up in the same block */
     public void add (int i, int j) {
-	int positionInBlock = currentSize % blockSize;
-	int[] block;
-	if (positionInBlock == 0) {
-	    parts.add (block = new int[blockSize]);
-	} else {
-	    int blockPosition = currentSize / blockSize;
-	    block = parts.get (blockPosition);
-	}
-	block[positionInBlock++] = i;
-	block[positionInBlock] = j;
+	int[] block = blockForAdd ();
+	int positionInBlock = currentSize & mask;
+	block[positionInBlock] = i;
+	block[positionInBlock + 1] = j;
 	currentSize += 2;
     }
 
+    private int[] blockForAdd () {
+	int blockId = currentSize >>> shift;
+	if ((currentSize & mask) != 0)
+	    return blocks[blockId];
+	if (blockId == blocks.length)
+	    blocks = Arrays.copyOf (blocks, blocks.length * 2);
+	return blocks[blockId] = new int[mask + 1];
+    }
+
     /** Give all the stored values from the given value up to, but not including to
      * @param function the function to run
      * @param from the start index
@@ -57,36 +56,17 @@ public class IntHolder {
      */
     public void apply (IntConsumer function, int from, int to) {
 	validateRange (from, to);
-	if (from == to)
-	    return;
-	int startBlock = from / blockSize;
-	int startPos = from % blockSize;
-	int[] block = parts.get (startBlock);
-	for (int c = from, posInBlock = startPos, currentBlock = startBlock; c < to; c++, posInBlock++) {
-	    if (posInBlock == blockSize) {
-		posInBlock = 0;
-		currentBlock++;
-		block = parts.get (currentBlock);
-	    }
-	    function.accept (block[posInBlock]);
-	}
+	for (int c = from; c < to; c++)
+	    function.accept (get (c));
     }
 
     public void apply (IntIntConsumer function, int from, int to) {
 	if (from % 2 == 1)
 	    throw new IllegalArgumentException ("From-position is odd: " + from);
 	validateRange (from, to);
-	if (from == to)
-	    return;
-	int startBlock = from / blockSize;
-	int startPos = from % blockSize;
-	int[] block = parts.get (startBlock);
-	for (int c = from, posInBlock = startPos, currentBlock = startBlock; c < to; c += 2, posInBlock += 2) {
-	    if (posInBlock == blockSize) {
-		posInBlock = 0;
-		currentBlock++;
-		block = parts.get (currentBlock);
-	    }
+	for (int c = from; c < to; c += 2) {
+	    int[] block = blocks[c >>> shift];
+	    int posInBlock = c & mask;
 	    function.accept (block[posInBlock], block[posInBlock + 1]);
 	}
     }
@@ -95,17 +75,9 @@ public class IntHolder {
 	if (from % 2 == 1)
 	    throw new IllegalArgumentException ("From-position is odd: " + from);
 	validateRange (from, to);
-	if (from == to)
-	    return false;
-	int startBlock = from / blockSize;
-	int startPos = from % blockSize;
-	int[] block = parts.get (startBlock);
-	for (int c = from, posInBlock = startPos, currentBlock = startBlock; c < to; c += 2, posInBlock += 2) {
-	    if (posInBlock == blockSize) {
-		posInBlock = 0;
-		currentBlock++;
-		block = parts.get (currentBlock);
-	    }
+	for (int c = from; c < to; c += 2) {
+	    int[] block = blocks[c >>> shift];
+	    int posInBlock = c & mask;
 	    if (block[posInBlock] == i && block[posInBlock + 1] == j)
 		return true;
 	}
@@ -122,16 +94,9 @@ public class IntHolder {
 	if (start % 2 == 1)
 	    throw new IllegalArgumentException ("From-position is odd: " + start);
 	validateRange (stop, start); //  reverse
-	start -= 2;
-	int startBlock = start / blockSize;
-	int startPos = start % blockSize;
-	int[] block = parts.get (startBlock);
-	for (int c = start, posInBlock = startPos, currentBlock = startBlock; c >= stop; c -= 2, posInBlock -= 2) {
-	    if (posInBlock < 0) {
-		posInBlock = blockSize - 2;
-		currentBlock--;
-		block = parts.get (currentBlock);
-	    }
+	for (int c = start - 2; c >= stop; c -= 2) {
+	    int[] block = blocks[c >>> shift];
+	    int posInBlock = c & mask;
 	    if (filter.accept (block[posInBlock], block[posInBlock + 1]))
 		return c;
 	}
@@ -164,4 +129,4 @@ public class IntHolder {
     public int size () {
 	return currentSize;
     }
-}
\ No newline at end of file
+}
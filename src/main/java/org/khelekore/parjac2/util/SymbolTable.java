@@ -0,0 +1,86 @@
+package org.khelekore.parjac2.util;
+
+/** A table of canonical strings, used to share the identifiers and string literals of a compilation.
+ *  Lookups hash the chars of the given CharSequence directly, so a name that has been seen
+ *  before does not need a new String. The table is split in segments that are only locked
+ *  when a new string is added, lookups of known strings do not lock.
+ */
+public class SymbolTable {
+    private static final int SEGMENT_BITS = 4;
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    public SymbolTable () {
+	for (int i = 0; i < segments.length; i++)
+	    segments[i] = new Segment ();
+    }
+
+    /** Get the canonical string that has the same chars as the given sequence.
+     *  The canonical string is also interned, so it is the same as a string literal with that value.
+     */
+    public String intern (CharSequence cs) {
+	int hash = 0;
+	for (int i = 0, s = cs.length (); i < s; i++)
+	    hash = 31 * hash + cs.charAt (i);
+	int spread = hash ^ (hash >>> 16);
+	return segments[spread >>> (32 - SEGMENT_BITS)].intern (cs, hash, spread);
+    }
+
+    /** Get the number of strings in the table */
+    public int size () {
+	int size = 0;
+	for (Segment s : segments) {
+	    synchronized (s) {
+		size += s.count;
+	    }
+	}
+	return size;
+    }
+
+    private static class Segment {
+	// Nodes are immutable so a lookup can read the chains without locking, if it misses
+	// a node that is being added it will find it once it has the lock.
+	private volatile Node[] table = new Node[64];
+	private int count;
+
+	public String intern (CharSequence cs, int hash, int spread) {
+	    String s = find (table, cs, hash, spread);
+	    if (s != null)
+		return s;
+	    synchronized (this) {
+		Node[] t = table;
+		s = find (t, cs, hash, spread);
+		if (s != null)
+		    return s;
+		if (count >= t.length - (t.length >>> 2))
+		    t = resize (t);
+		s = cs.toString ().intern ();
+		int i = spread & (t.length - 1);
+		t[i] = new Node (s, hash, t[i]);
+		count++;
+		table = t;
+		return s;
+	    }
+	}
+
+	private static String find (Node[] t, CharSequence cs, int hash, int spread) {
+	    for (Node n = t[spread & (t.length - 1)]; n != null; n = n.next)
+		if (n.hash == hash && n.value.contentEquals (cs))
+		    return n.value;
+	    return null;
+	}
+
+	private static Node[] resize (Node[] t) {
+	    Node[] res = new Node[t.length * 2];
+	    for (Node n : t) {
+		for (; n != null; n = n.next) {
+		    int i = (n.hash ^ (n.hash >>> 16)) & (res.length - 1);
+		    res[i] = new Node (n.value, n.hash, res[i]);
+		}
+	    }
+	    return res;
+	}
+    }
+
+    private record Node (String value, int hash, Node next) {
+    }
+}
@@ -0,0 +1,182 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class TestArchivePool {
+    private Path dir;
+    private byte[] text;
+    private byte[] random;
+
+    @BeforeClass
+    public void setup () throws IOException {
+	dir = Files.createTempDirectory ("parjac-archives");
+	StringBuilder sb = new StringBuilder ();
+	for (int i = 0; i < 1000; i++)
+	    sb.append ("class C").append (i).append (" { }\n");
+	text = sb.toString ().getBytes (StandardCharsets.UTF_8);
+	random = new byte[100_000];
+	new Random (17).nextBytes (random);
+    }
+
+    @Test
+    public void testStoredEntries () throws IOException {
+	Path jar = dir.resolve ("stored.jar");
+	try (JarOutputStream jos = new JarOutputStream (Files.newOutputStream (jar))) {
+	    putStored (jos, "a/Text.class", text);
+	    putStored (jos, "a/Random.class", random);
+	    putStored (jos, "a/Empty.class", new byte[0]);
+	}
+	check (jar, List.of ("a/Text.class", "a/Random.class", "a/Empty.class"),
+	       List.of (text, random, new byte[0]));
+    }
+
+    @Test
+    public void testDeflatedEntries () throws IOException {
+	Path jar = dir.resolve ("deflated.jar");
+	try (JarOutputStream jos = new JarOutputStream (Files.newOutputStream (jar))) {
+	    putDeflatedWithSizes (jos, "a/Text.class", text);
+	    putDeflatedWithSizes (jos, "a/Random.class", random);
+	}
+	check (jar, List.of ("a/Text.class", "a/Random.class"), List.of (text, random));
+    }
+
+    @Test
+    public void testDataDescriptors () throws IOException {
+	Path jar = dir.resolve ("descriptors.jar");
+	// Deflated entries without sizes get their sizes and crc in a data descriptor after the data
+	try (JarOutputStream jos = new JarOutputStream (Files.newOutputStream (jar))) {
+	    put (jos, new ZipEntry ("a/Text.class"), text);
+	    put (jos, new ZipEntry ("a/Random.class"), random);
+	    putStored (jos, "a/Stored.class", text);
+	    put (jos, new ZipEntry ("a/Empty.class"), new byte[0]);
+	}
+	assert (getShort (Files.readAllBytes (jar), 6) & 8) != 0 : "No data descriptor written";
+	check (jar, List.of ("a/Text.class", "a/Random.class", "a/Stored.class", "a/Empty.class"),
+	       List.of (text, random, text, new byte[0]));
+    }
+
+    @Test
+    public void testCommentsAndExtraFields () throws IOException {
+	Path jar = dir.resolve ("comments.jar");
+	try (JarOutputStream jos = new JarOutputStream (Files.newOutputStream (jar))) {
+	    jos.setComment ("An archive comment that is placed after the end header");
+	    ZipEntry e = new ZipEntry ("a/Commented.class");
+	    e.setComment ("An entry comment, only in the central directory");
+	    e.setExtra (new byte[] {(byte)0xfe, (byte)0xca, 4, 0, 1, 2, 3, 4});
+	    put (jos, e, text);
+	    put (jos, new ZipEntry ("b/Åäö.class"), random);
+	}
+	check (jar, List.of ("a/Commented.class", "b/Åäö.class"), List.of (text, random));
+    }
+
+    @Test
+    public void testZip64FallsBackToJarFile () throws IOException {
+	Path jar = dir.resolve ("zip64.jar");
+	// more entries than fit in the end header makes the archive use the zip64 format
+	List<String> names = new ArrayList<> ();
+	try (JarOutputStream jos = new JarOutputStream (Files.newOutputStream (jar))) {
+	    for (int i = 0; i < 0x10000; i++) {
+		String name = "e" + i;
+		names.add (name);
+		putStored (jos, name, new byte[0]);
+	    }
+	    names.add ("a/Text.class");
+	    put (jos, new ZipEntry ("a/Text.class"), text);
+	}
+	ArchivePool pool = new ArchivePool (true);
+	try {
+	    assert !pool.isMemoryMapped (jar) : "zip64 archive should use JarFile";
+	    assert pool.getEntryNames (jar).equals (names) : "Wrong entry names";
+	    assert Arrays.equals (pool.read (jar, "a/Text.class"), text) : "Wrong data";
+	} finally {
+	    pool.close ();
+	}
+    }
+
+    @Test
+    public void testMissingEntry () throws IOException {
+	Path jar = dir.resolve ("missing.jar");
+	try (JarOutputStream jos = new JarOutputStream (Files.newOutputStream (jar))) {
+	    put (jos, new ZipEntry ("a/Text.class"), text);
+	}
+	for (boolean memoryMap : new boolean[] {true, false}) {
+	    ArchivePool pool = new ArchivePool (memoryMap);
+	    try {
+		pool.read (jar, "a/Missing.class");
+		assert false : "Missing entry should fail";
+	    } catch (IOException e) {
+		assert e.getMessage ().contains ("a/Missing.class") : "Wrong message: " + e;
+	    } finally {
+		pool.close ();
+	    }
+	}
+    }
+
+    private void check (Path jar, List<String> names, List<byte[]> contents) throws IOException {
+	for (boolean memoryMap : new boolean[] {true, false}) {
+	    ArchivePool pool = new ArchivePool (memoryMap);
+	    try {
+		assert pool.isMemoryMapped (jar) == memoryMap : "Wrong archive type";
+		assert pool.getEntryNames (jar).equals (names) : "Wrong entry names: " + pool.getEntryNames (jar);
+		for (int i = 0; i < names.size (); i++)
+		    assert Arrays.equals (pool.read (jar, names.get (i)), contents.get (i)) :
+		    "Wrong data for: " + names.get (i) + ", memoryMap: " + memoryMap;
+	    } finally {
+		pool.close ();
+	    }
+	}
+    }
+
+    private static void putStored (JarOutputStream jos, String name, byte[] data) throws IOException {
+	ZipEntry e = new ZipEntry (name);
+	e.setMethod (ZipEntry.STORED);
+	e.setSize (data.length);
+	e.setCompressedSize (data.length);
+	e.setCrc (crc (data));
+	put (jos, e, data);
+    }
+
+    private static void putDeflatedWithSizes (JarOutputStream jos, String name, byte[] data) throws IOException {
+	Deflater deflater = new Deflater (Deflater.DEFAULT_COMPRESSION, true);
+	deflater.setInput (data);
+	deflater.finish ();
+	byte[] buf = new byte[data.length + 1024];
+	int compressedSize = deflater.deflate (buf);
+	deflater.end ();
+	ZipEntry e = new ZipEntry (name);
+	e.setSize (data.length);
+	e.setCompressedSize (compressedSize);
+	e.setCrc (crc (data));
+	put (jos, e, data);
+    }
+
+    private static void put (JarOutputStream jos, ZipEntry e, byte[] data) throws IOException {
+	jos.putNextEntry (e);
+	jos.write (data);
+	jos.closeEntry ();
+    }
+
+    private static long crc (byte[] data) {
+	CRC32 crc = new CRC32 ();
+	crc.update (data);
+	return crc.getValue ();
+    }
+
+    private static int getShort (byte[] data, int pos) {
+	return (data[pos] & 0xff) | ((data[pos + 1] & 0xff) << 8);
+    }
+}
@@ -0,0 +1,185 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestClassPathIndex {
+    private static final String FIRST = "org.khelekore.parjac2.javacompiler.LookupResult";
+    private static final String SECOND = "org.khelekore.parjac2.javacompiler.ClassPathIndex";
+
+    private Path dir;
+    private Path indexDirectory;
+    private Path jar;
+
+    @BeforeMethod
+    public void setup () throws IOException {
+	dir = Files.createTempDirectory ("parjac-index");
+	indexDirectory = dir.resolve ("index");
+	jar = dir.resolve ("classes.jar");
+    }
+
+    @Test
+    public void testRoundTrip () throws IOException {
+	Path indexFile = ClassPathIndex.getIndexFile (indexDirectory, jar);
+	assert indexFile.getFileName ().toString ().startsWith ("classes.jar-") : indexFile;
+	List<String> names = List.of ("a/A.class", "a/B.class", "b/åäö.class");
+	ByteBuffer info = ByteBuffer.wrap ("info".getBytes (StandardCharsets.UTF_8));
+	ClassPathIndex.write (indexFile, jar, 1234, 5678, names, Arrays.asList (null, info, null));
+
+	ClassPathIndex.Index index = ClassPathIndex.read (indexFile, jar, 1234, 5678);
+	assert index != null : "Failed to read index";
+	assert index.entryNames ().equals (names) : "Wrong names: " + index.entryNames ();
+	ByteBuffer[] infos = index.infos ();
+	assert infos.length == 3 && infos[0] == null && infos[2] == null : "Wrong infos: " + Arrays.toString (infos);
+	assert infos[1].equals (info) : "Wrong info: " + infos[1];
+    }
+
+    @Test
+    public void testMismatchesAreNotRead () throws IOException {
+	Path indexFile = ClassPathIndex.getIndexFile (indexDirectory, jar);
+	assert ClassPathIndex.read (indexFile, jar, 1234, 5678) == null : "Missing index should not be found";
+	ClassPathIndex.write (indexFile, jar, 1234, 5678, List.of ("A.class"), Arrays.asList ((ByteBuffer)null));
+	assert ClassPathIndex.read (indexFile, jar, 1235, 5678) == null : "Index with other time used";
+	assert ClassPathIndex.read (indexFile, jar, 1234, 5679) == null : "Index with other size used";
+	assert ClassPathIndex.read (indexFile, dir.resolve ("other.jar"), 1234, 5678) == null : "Index of other jar used";
+
+	byte[] data = Files.readAllBytes (indexFile);
+	Files.write (indexFile, Arrays.copyOf (data, data.length - 3));
+	assert ClassPathIndex.read (indexFile, jar, 1234, 5678) == null : "Truncated index used";
+    }
+
+    @Test
+    public void testBrokenCountsAreNotRead () throws IOException {
+	Path indexFile = ClassPathIndex.getIndexFile (indexDirectory, jar);
+	ClassPathIndex.write (indexFile, jar, 1234, 5678, List.of ("A.class"), Arrays.asList ((ByteBuffer)null));
+	byte[] data = Files.readAllBytes (indexFile);
+	int pathLength = jar.toAbsolutePath ().toString ().getBytes (StandardCharsets.UTF_8).length;
+	int numEntriesPos = 4 + 4 + 4 + pathLength + 8 + 8;
+	for (int count : new int[] {Integer.MAX_VALUE, -2, 2}) {
+	    ByteBuffer.wrap (data).putInt (numEntriesPos, count);
+	    Files.write (indexFile, data);
+	    assert ClassPathIndex.read (indexFile, jar, 1234, 5678) == null : "Index with bad count used: " + count;
+	}
+	ByteBuffer.wrap (data).putInt (numEntriesPos, 1).putInt (numEntriesPos + 4, Integer.MAX_VALUE);
+	Files.write (indexFile, data);
+	assert ClassPathIndex.read (indexFile, jar, 1234, 5678) == null : "Index with bad string length used";
+    }
+
+    @Test
+    public void testBrokenClassInfoIsReadFromClass () throws IOException {
+	writeJar (FIRST);
+	ClassResourceHolder crh = scan ();
+	assertFound (crh, FIRST, "Class not found");
+	save (crh);
+
+	// access flags, has super class and a super type count that can not fit
+	ByteBuffer info = ByteBuffer.allocate (9).putInt (0).put ((byte)1).putInt (Integer.MAX_VALUE).flip ();
+	ClassPathIndex.write (ClassPathIndex.getIndexFile (indexDirectory, jar), jar,
+			      Files.getLastModifiedTime (jar).toMillis (), Files.size (jar),
+			      List.of (FIRST.replace ('.', '/') + ".class"), List.of (info));
+	crh = scan ();
+	assertFound (crh, FIRST, "Class not found with broken index");
+	List<?> superTypes = crh.getSuperTypes (FIRST);
+	assert !superTypes.isEmpty () : "Class information not read from class";
+	assert crh.getClassesRead () == 1 && crh.getClassesFromIndex () == 0 : "Broken index used";
+	save (crh);
+
+	crh = scan ();
+	assertFound (crh, FIRST, "Class not found in rewritten index");
+	assert crh.getClassesFromIndex () == 1 : "Index not rewritten";
+    }
+
+    @Test
+    public void testIndexIsUsedForUnchangedJar () throws IOException {
+	writeJar (FIRST);
+	ClassResourceHolder crh = scan ();
+	assertFound (crh, FIRST, "Class not found");
+	assert crh.getClassesRead () == 1 && crh.getClassesFromIndex () == 0;
+	save (crh);
+	assert Files.exists (ClassPathIndex.getIndexFile (indexDirectory, jar)) : "No index written";
+
+	crh = scan ();
+	assertFound (crh, FIRST, "Class not found");
+	assert crh.getClassesRead () == 0 && crh.getClassesFromIndex () == 1 : "Index not used";
+    }
+
+    @Test
+    public void testChangedSizeInvalidatesIndex () throws IOException {
+	FileTime time = writeJar (FIRST);
+	ClassResourceHolder crh = scan ();
+	crh.hasVisibleType (FIRST);
+	save (crh);
+
+	writeJar (FIRST, SECOND);
+	Files.setLastModifiedTime (jar, time);
+	crh = scan ();
+	assertFound (crh, SECOND, "New class not found");
+	assertFound (crh, FIRST, "Old class not found");
+	assert crh.getClassesFromIndex () == 0 : "Stale index used";
+	save (crh);
+
+	crh = scan ();
+	assertFound (crh, SECOND, "New class not found in new index");
+	assert crh.getClassesFromIndex () == 1 : "New index not used";
+    }
+
+    @Test
+    public void testChangedTimeInvalidatesIndex () throws IOException {
+	FileTime time = writeJar (FIRST);
+	ClassResourceHolder crh = scan ();
+	crh.hasVisibleType (FIRST);
+	save (crh);
+
+	Files.setLastModifiedTime (jar, FileTime.fromMillis (time.toMillis () + 10_000));
+	crh = scan ();
+	assertFound (crh, FIRST, "Class not found");
+	assert crh.getClassesRead () == 1 && crh.getClassesFromIndex () == 0 : "Stale index used";
+    }
+
+    // Looking the class up loads it, so it has to be done even if assertions are disabled
+    private static void assertFound (ClassResourceHolder crh, String className, String message) {
+	boolean found = crh.hasVisibleType (className).found ();
+	assert found : message + ": " + className;
+    }
+
+    private ClassResourceHolder scan () throws IOException {
+	CompilationArguments settings = new CompilationArguments (null, null, List.of (jar), false, false);
+	settings.setClassPathIndexDirectory (indexDirectory);
+	ClassResourceHolder crh = new ClassResourceHolder (new CompilerDiagnosticCollector (), settings);
+	crh.scanClassPath ();
+	return crh;
+    }
+
+    // the compiler closes the archives after each compilation, an open JarFile would keep the old entries
+    private void save (ClassResourceHolder crh) throws IOException {
+	crh.saveIndex ();
+	crh.closeArchives ();
+    }
+
+    private FileTime writeJar (String... classNames) throws IOException {
+	try (JarOutputStream jos = new JarOutputStream (Files.newOutputStream (jar))) {
+	    for (String cn : classNames) {
+		String entry = cn.replace ('.', '/') + ".class";
+		jos.putNextEntry (new ZipEntry (entry));
+		try (InputStream is = getClass ().getClassLoader ().getResourceAsStream (entry)) {
+		    is.transferTo (jos);
+		}
+		jos.closeEntry ();
+	    }
+	}
+	return Files.getLastModifiedTime (jar);
+    }
+}
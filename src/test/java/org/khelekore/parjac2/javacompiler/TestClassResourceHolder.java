@@ -0,0 +1,77 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestClassResourceHolder {
+    private static final String NAME = "org.khelekore.parjac2.javacompiler.LookupResult";
+    private static final String OTHER = "org.khelekore.parjac2.javacompiler.ClassPathIndex";
+
+    private Path dir;
+    private Path real;
+    private Path fake;
+
+    @BeforeMethod
+    public void setup () throws IOException {
+	dir = Files.createTempDirectory ("parjac-classpath");
+	real = writeJar ("real.jar", NAME);
+	// Holds the code of another class under the same name, so we can tell them apart
+	fake = writeJar ("fake.jar", NAME, OTHER);
+    }
+
+    @Test
+    public void testFirstEntryWins () throws IOException {
+	for (int i = 0; i < 5; i++) { // the entries are scanned in parallel
+	    assert !isFake (List.of (real, fake)) : "Class from the second jar used";
+	    assert isFake (List.of (fake, real)) : "Class from the first jar not used";
+	}
+    }
+
+    @Test
+    public void testClassPathReplacesCtSym () throws IOException {
+	Path jar = writeJar ("string.jar", "java.lang.String", OTHER);
+	ClassResourceHolder crh = scan (List.of (jar));
+	assert !crh.getMethodInformation ("java.lang.String", "readString").isEmpty () : "Class from ct.sym used";
+	crh.closeArchives ();
+    }
+
+    private boolean isFake (List<Path> classPath) throws IOException {
+	ClassResourceHolder crh = scan (classPath);
+	assert crh.hasVisibleType (NAME).found () : "Class not found";
+	List<MethodInfo> ls = crh.getMethodInformation (NAME, "readString");
+	crh.closeArchives ();
+	return ls != null && !ls.isEmpty ();
+    }
+
+    private ClassResourceHolder scan (List<Path> classPath) throws IOException {
+	CompilationArguments settings = new CompilationArguments (null, null, classPath, false, false);
+	ClassResourceHolder crh = new ClassResourceHolder (new CompilerDiagnosticCollector (), settings);
+	crh.scanClassPath ();
+	return crh;
+    }
+
+    private Path writeJar (String name, String className) throws IOException {
+	return writeJar (name, className, className);
+    }
+
+    private Path writeJar (String name, String className, String codeFrom) throws IOException {
+	Path jar = dir.resolve (name);
+	try (JarOutputStream jos = new JarOutputStream (Files.newOutputStream (jar))) {
+	    jos.putNextEntry (new ZipEntry (className.replace ('.', '/') + ".class"));
+	    try (InputStream is = getClass ().getClassLoader ().getResourceAsStream (codeFrom.replace ('.', '/') + ".class")) {
+		is.transferTo (jos);
+	    }
+	    jos.closeEntry ();
+	}
+	return jar;
+    }
+}
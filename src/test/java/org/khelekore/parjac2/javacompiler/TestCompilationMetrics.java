@@ -0,0 +1,232 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestCompilationMetrics {
+    // A source directory name that has to be escaped in both formats
+    private static final String SOURCE_DIR = "in,\"put\\dir";
+    private static final Set<String> FILE_FIELDS =
+	Set.of ("lexMillis", "parseMillis", "treeMillis", "typesMillis", "checkMillis", "codegenMillis",
+		"tokens", "earleyStates");
+
+    private Path dir;
+    private Path src;
+
+    @BeforeMethod
+    public void setup () throws IOException {
+	dir = Files.createTempDirectory ("parjac-metrics");
+	src = Files.createDirectory (dir.resolve (SOURCE_DIR));
+	Files.writeString (src.resolve ("A.java"), "class A { int a () { return 1; } }");
+	Files.writeString (src.resolve ("B.java"), "class B { int b () { return new A ().a (); } }");
+    }
+
+    @Test
+    public void testJson () throws IOException {
+	Map<?, ?> json = (Map<?, ?>)new JsonReader (compile ("metrics.json")).value ();
+	assert json.keySet ().equals (Set.of ("totalMillis", "counters", "phases", "files")) : json.keySet ();
+	assert json.get ("totalMillis") instanceof Double : json;
+	Map<?, ?> counters = (Map<?, ?>)json.get ("counters");
+	assert counters.get ("sourceFiles").equals (2.0) : counters;
+	assert counters.get ("filesToCompile").equals (2.0) : counters;
+	for (Object o : (List<?>)json.get ("phases")) {
+	    Map<?, ?> phase = (Map<?, ?>)o;
+	    assert phase.keySet ().equals (Set.of ("name", "millis", "allocatedBytes")) : phase;
+	}
+
+	List<?> files = (List<?>)json.get ("files");
+	Set<String> names = new TreeSet<> ();
+	for (Object o : files) {
+	    Map<?, ?> file = (Map<?, ?>)o;
+	    names.add ((String)file.get ("file"));
+	    Set<Object> fields = new TreeSet<> (file.keySet ());
+	    fields.remove ("file");
+	    assert fields.equals (FILE_FIELDS) : "Wrong file fields: " + fields;
+	    assert ((Double)file.get ("tokens")) > 0 : "No tokens: " + file;
+	}
+	assert names.equals (expectedFiles ()) : "Wrong files: " + names;
+    }
+
+    @Test
+    public void testCsv () throws IOException {
+	List<List<String>> rows = readCsv (compile ("metrics.csv"));
+	assert rows.get (0).equals (List.of ("section", "name", "metric", "value")) : rows.get (0);
+	Map<String, Set<String>> fileFields = new LinkedHashMap<> ();
+	for (List<String> row : rows.subList (1, rows.size ())) {
+	    assert row.size () == 4 : "Wrong number of columns: " + row;
+	    if (row.get (0).equals ("file"))
+		fileFields.computeIfAbsent (row.get (1), f -> new TreeSet<> ()).add (row.get (2));
+	    if (row.get (0).equals ("compilation") && row.get (2).equals ("sourceFiles"))
+		assert row.get (3).equals ("2") : row;
+	}
+	assert fileFields.keySet ().equals (expectedFiles ()) : "Wrong files: " + fileFields.keySet ();
+	for (Set<String> fields : fileFields.values ())
+	    assert fields.equals (FILE_FIELDS) : "Wrong file fields: " + fields;
+    }
+
+    private Set<String> expectedFiles () {
+	return Set.of (src.resolve ("A.java").toString (), src.resolve ("B.java").toString ());
+    }
+
+    private String compile (String metricsFile) throws IOException {
+	CompilerDiagnosticCollector diagnostics = new CompilerDiagnosticCollector ();
+	ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+	PrintStream ps = new PrintStream (bos, true, StandardCharsets.UTF_8);
+	BatchCompiler bc = new BatchCompiler (diagnostics, dir, ps, ps);
+	bc.compile (new String[] {"-i", SOURCE_DIR, "-d", "out", "--no-timing", "--metrics-out", metricsFile});
+	assert !diagnostics.hasError () : "Compilation failed: " + bos;
+	return Files.readString (dir.resolve (metricsFile));
+    }
+
+    private static List<List<String>> readCsv (String text) {
+	List<List<String>> rows = new ArrayList<> ();
+	List<String> row = new ArrayList<> ();
+	StringBuilder sb = new StringBuilder ();
+	boolean quoted = false;
+	for (int i = 0; i < text.length (); i++) {
+	    char c = text.charAt (i);
+	    if (quoted) {
+		if (c == '"' && i + 1 < text.length () && text.charAt (i + 1) == '"') {
+		    sb.append (c);
+		    i++;
+		} else if (c == '"') {
+		    quoted = false;
+		} else {
+		    sb.append (c);
+		}
+	    } else if (c == '"') {
+		quoted = true;
+	    } else if (c == ',') {
+		row.add (sb.toString ());
+		sb.setLength (0);
+	    } else if (c == '\n') {
+		row.add (sb.toString ());
+		sb.setLength (0);
+		rows.add (row);
+		row = new ArrayList<> ();
+	    } else {
+		sb.append (c);
+	    }
+	}
+	assert !quoted && row.isEmpty () && sb.isEmpty () : "Csv not terminated";
+	return rows;
+    }
+
+    /** Just enough json to read the metrics, numbers are read as doubles */
+    private static class JsonReader {
+	private final String text;
+	private int pos;
+
+	public JsonReader (String text) {
+	    this.text = text;
+	}
+
+	public Object value () {
+	    skipSpace ();
+	    char c = text.charAt (pos);
+	    return switch (c) {
+	    case '{' -> object ();
+	    case '[' -> array ();
+	    case '"' -> string ();
+	    default -> number ();
+	    };
+	}
+
+	private Map<String, Object> object () {
+	    Map<String, Object> ret = new LinkedHashMap<> ();
+	    expect ('{');
+	    if (peek () == '}') {
+		pos++;
+		return ret;
+	    }
+	    do {
+		skipSpace ();
+		String key = string ();
+		expect (':');
+		ret.put (key, value ());
+	    } while (next () == ',');
+	    assert text.charAt (pos - 1) == '}' : "Expected '}' at " + pos;
+	    return ret;
+	}
+
+	private List<Object> array () {
+	    List<Object> ret = new ArrayList<> ();
+	    expect ('[');
+	    if (peek () == ']') {
+		pos++;
+		return ret;
+	    }
+	    do {
+		ret.add (value ());
+	    } while (next () == ',');
+	    assert text.charAt (pos - 1) == ']' : "Expected ']' at " + pos;
+	    return ret;
+	}
+
+	private String string () {
+	    expect ('"');
+	    StringBuilder sb = new StringBuilder ();
+	    char c;
+	    while ((c = text.charAt (pos++)) != '"') {
+		if (c == '\\') {
+		    c = text.charAt (pos++);
+		    switch (c) {
+		    case 'n' -> sb.append ('\n');
+		    case 'r' -> sb.append ('\r');
+		    case 't' -> sb.append ('\t');
+		    case 'u' -> {
+			sb.append ((char)Integer.parseInt (text.substring (pos, pos + 4), 16));
+			pos += 4;
+		    }
+		    default -> sb.append (c);
+		    }
+		} else {
+		    assert c >= 0x20 : "Unescaped control character at " + pos;
+		    sb.append (c);
+		}
+	    }
+	    return sb.toString ();
+	}
+
+	private Double number () {
+	    int start = pos;
+	    while (pos < text.length () && "-+.eE0123456789".indexOf (text.charAt (pos)) >= 0)
+		pos++;
+	    return Double.valueOf (text.substring (start, pos));
+	}
+
+	private char peek () {
+	    skipSpace ();
+	    return text.charAt (pos);
+	}
+
+	private char next () {
+	    skipSpace ();
+	    return text.charAt (pos++);
+	}
+
+	private void expect (char c) {
+	    char n = next ();
+	    assert n == c : "Expected '" + c + "' at " + pos + ", got: '" + n + "'";
+	}
+
+	private void skipSpace () {
+	    while (pos < text.length () && Character.isWhitespace (text.charAt (pos)))
+		pos++;
+	}
+    }
+}
@@ -0,0 +1,157 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class TestCompileServer {
+    private Path tmp;
+    private Path socket;
+    private Thread serverThread;
+
+    @BeforeClass
+    public void startServer () throws Exception {
+	tmp = Files.createTempDirectory ("parjac-server");
+	socket = tmp.resolve ("private").resolve ("server.sock");
+	CompileServer server = new CompileServer (false);
+	serverThread = new Thread (() -> {
+		try {
+		    server.serve (socket);
+		} catch (IOException e) {
+		    throw new RuntimeException (e);
+		}
+	});
+	serverThread.start ();
+	// the socket file is created before the server listens, so wait until we can connect
+	for (int i = 0; i < 500 && !canConnect (); i++)
+	    Thread.sleep (10);
+	assert canConnect () : "Server did not start";
+    }
+
+    private boolean canConnect () {
+	try (SocketChannel s = SocketChannel.open (UnixDomainSocketAddress.of (socket))) {
+	    return true;
+	} catch (IOException e) {
+	    return false;
+	}
+    }
+
+    @AfterClass
+    public void stopServer () throws Exception {
+	Response r = send (CompileServer.STOP);
+	assert r.exitCode == 0 : "Failed to stop: " + r;
+	serverThread.join (10_000);
+	assert !serverThread.isAlive () : "Server did not stop";
+	assert !Files.exists (socket) : "Socket not removed";
+    }
+
+    @Test
+    public void testSocketDirectoryIsPrivate () throws IOException {
+	assert Files.getPosixFilePermissions (socket.getParent ()).equals (PosixFilePermissions.fromString ("rwx------"));
+    }
+
+    @Test
+    public void testCompile () throws IOException {
+	Path src = Files.createDirectories (tmp.resolve ("src"));
+	Files.writeString (src.resolve ("A.java"), "class A { int a () { return 3; } }");
+	Response r = send ("-i", "src", "-d", "classes");
+	assert r.exitCode == 0 : "Compilation failed: " + r;
+	assert Files.exists (tmp.resolve ("classes").resolve ("A.class")) : "No class file written";
+	assert r.output.contains ("Time taken") : "Missing timing output: " + r;
+    }
+
+    @Test
+    public void testCompilationErrorsAreSentToClient () throws IOException {
+	Path src = Files.createDirectories (tmp.resolve ("badsrc"));
+	Files.writeString (src.resolve ("B.java"), "class B { int b () { return \"b\" } }");
+	Response r = send ("-i", "badsrc", "-d", "badclasses");
+	assert r.exitCode != 0 : "Compilation should fail: " + r;
+	assert r.errors.contains ("B.java") : "Missing diagnostics: " + r;
+    }
+
+    @Test
+    public void testUsageIsSentToClient () throws IOException {
+	Response r = send ("--help");
+	assert r.errors.contains ("usage:") : "Missing usage: " + r;
+    }
+
+    @Test
+    public void testInvalidArgumentsAreSentToClient () throws IOException {
+	Response r = send ("-i", "src");
+	assert r.exitCode != 0 : "Missing destination should fail: " + r;
+	assert r.errors.contains ("Invalid arguments") : "Missing argument problems: " + r;
+	assert r.errors.contains ("BytecodeWriter may not be null") : "Missing diagnostics: " + r;
+
+	r = send ("--no-such-argument");
+	assert r.exitCode != 0 : "Unknown argument should fail: " + r;
+	assert r.errors.contains ("Unknown argument") : "Missing diagnostics: " + r;
+    }
+
+    @Test
+    public void testSharedDirectoryIsRefused () throws IOException {
+	Path shared = Files.createDirectory (tmp.resolve ("shared"));
+	Files.setPosixFilePermissions (shared, PosixFilePermissions.fromString ("rwxrwxrwx"));
+	try {
+	    CompileServer.checkPrivateDirectory (shared);
+	    assert false : "Directory accessible by others should be refused";
+	} catch (IOException e) {
+	    // expected
+	}
+	try {
+	    send (shared.resolve ("server.sock"), "--help");
+	    assert false : "Client should refuse directory accessible by others";
+	} catch (IOException e) {
+	    // expected
+	}
+    }
+
+    @Test
+    public void testLongTextKeepsSurrogatePairs () throws IOException {
+	StringBuilder sb = new StringBuilder ();
+	// put a non-BMP character across every possible chunk boundary
+	for (int i = 0; i < 5_000; i++)
+	    sb.append ("ab\uD83D\uDE00c");
+	String text = sb.toString ();
+	ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+	CompileServer.sendText (new DataOutputStream (bos), CompileServer.OUTPUT, text);
+
+	DataInputStream dis = new DataInputStream (new ByteArrayInputStream (bos.toByteArray ()));
+	StringBuilder received = new StringBuilder ();
+	while (dis.available () > 0) {
+	    assert dis.readByte () == CompileServer.OUTPUT : "Wrong type";
+	    String chunk = dis.readUTF ();
+	    assert !Character.isHighSurrogate (chunk.charAt (chunk.length () - 1)) : "Chunk ends with a high surrogate";
+	    received.append (chunk);
+	}
+	assert received.toString ().equals (text) : "Text changed";
+    }
+
+    private Response send (String... args) throws IOException {
+	return send (socket, args);
+    }
+
+    private Response send (Path socket, String... args) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream ();
+	ByteArrayOutputStream err = new ByteArrayOutputStream ();
+	int exitCode = CompileClient.run (socket, tmp, args,
+					  new PrintStream (out, true, StandardCharsets.UTF_8),
+					  new PrintStream (err, true, StandardCharsets.UTF_8));
+	return new Response (exitCode, out.toString (StandardCharsets.UTF_8), err.toString (StandardCharsets.UTF_8));
+    }
+
+    private record Response (int exitCode, String output, String errors) {
+    }
+}
@@ -0,0 +1,64 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class TestFileSourceProvider {
+
+    @Test
+    public void testAscii () throws IOException {
+	testDecode ("class A { int a = 3; }", StandardCharsets.UTF_8);
+	testDecode ("", StandardCharsets.UTF_8);
+	testDecode ("class A {}", StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testNonAscii () throws IOException {
+	testDecode ("class Å { String s = \"räksmörgås\"; }", StandardCharsets.UTF_8);
+	testDecode ("﻿class A { String s = \"中文 😀\"; } // ö", StandardCharsets.UTF_8);
+	testDecode ("ö", StandardCharsets.UTF_8);
+	testDecode ("class Å { String s = \"räksmörgås\"; }", StandardCharsets.ISO_8859_1);
+	testDecode ("class Å { String s = \"räksmörgås\"; }", StandardCharsets.UTF_16);
+    }
+
+    @Test
+    public void testMalformed () throws IOException {
+	testMalformed (new byte[] {'a', (byte)0xc3}, StandardCharsets.UTF_8);
+	testMalformed (new byte[] {'a', (byte)0xc3, 'b'}, StandardCharsets.UTF_8);
+	testMalformed (new byte[] {'a', (byte)0xff, (byte)0xfe, 'b'}, StandardCharsets.UTF_8);
+	testMalformed (new byte[] {'a', (byte)0xe5}, StandardCharsets.US_ASCII);
+    }
+
+    private static void testDecode (String s, Charset encoding) throws IOException {
+	CharBuffer cb = getInput (s.getBytes (encoding), encoding);
+	assert s.equals (cb.toString ()) : "Wrong decoding: " + cb + ", expected: " + s;
+    }
+
+    private static void testMalformed (byte[] data, Charset encoding) throws IOException {
+	try {
+	    getInput (data, encoding);
+	    assert false : "Expected decoding to fail";
+	} catch (MalformedInputException e) {
+	    // expected
+	}
+    }
+
+    private static CharBuffer getInput (byte[] data, Charset encoding) throws IOException {
+	Path file = Files.createTempFile ("TestFileSourceProvider", ".java");
+	try {
+	    Files.write (file, data);
+	    FileSourceProvider fsp = new FileSourceProvider (List.of (file.getParent ()), encoding);
+	    return fsp.getInput (file);
+	} finally {
+	    Files.delete (file);
+	}
+    }
+}
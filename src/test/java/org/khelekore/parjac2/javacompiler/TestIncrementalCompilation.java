@@ -0,0 +1,182 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestIncrementalCompilation {
+    // Class files are given this time after each build so we can see which ones were written
+    private static final FileTime OLD = FileTime.fromMillis (1_000_000_000_000L);
+
+    private Path dir;
+    private Path src;
+    private Path out;
+    private long sourceTime = System.currentTimeMillis ();
+
+    @BeforeMethod
+    public void setup () throws IOException {
+	dir = Files.createTempDirectory ("parjac-incremental");
+	src = Files.createDirectory (dir.resolve ("src"));
+	out = dir.resolve ("out");
+	write ("A.java", "class A { int a () { return 1; } }\nclass A2 { int a2 () { return 2; } }");
+	write ("B.java", "class B { int b () { return new A ().a () + new A2 ().a2 (); } }");
+	write ("C.java", "class C { int c () { return 3; } }");
+	compile (true);
+	assert classFiles ().equals (Set.of ("A.class", "A2.class", "B.class", "C.class")) : classFiles ();
+    }
+
+    @Test
+    public void testUnchangedFilesAreSkipped () throws IOException {
+	compile (true);
+	assert written ().isEmpty () : "Nothing should be recompiled: " + written ();
+	write ("C.java", "class C { int c () { return 4; } }");
+	compile (true);
+	assert written ().equals (Set.of ("C.class")) : "Only C should be recompiled: " + written ();
+    }
+
+    @Test
+    public void testChangedSignatureRecompilesDependents () throws IOException {
+	write ("A.java", "class A { long a () { return 1; } }\nclass A2 { int a2 () { return 2; } }");
+	write ("B.java", "class B { long b () { return new A ().a () + new A2 ().a2 (); } }");
+	compile (true);
+	assert written ().equals (Set.of ("A.class", "A2.class", "B.class")) : "Wrong recompilation: " + written ();
+
+	// B depends on A so a change to A alone has to recompile B as well
+	write ("A.java", "class A { int a () { return 1; } }\nclass A2 { int a2 () { return 2; } }");
+	compile (true);
+	assert written ().equals (Set.of ("A.class", "A2.class", "B.class")) : "Wrong recompilation: " + written ();
+    }
+
+    @Test
+    public void testRemovedTypeFailsDependents () throws IOException {
+	write ("A.java", "class A { int a () { return 1; } }");
+	String errors = compile (false);
+	assert errors.contains ("B.java") && errors.contains ("A2") : "Expected failure in B: " + errors;
+	// The old class files of A and B may not be found by later compilations
+	assert !classFiles ().contains ("A2.class") : "Old class file left: " + classFiles ();
+
+	// Going back to the old source has to recompile the failed files
+	write ("A.java", "class A { int a () { return 1; } }\nclass A2 { int a2 () { return 2; } }");
+	compile (true);
+	assert classFiles ().equals (Set.of ("A.class", "A2.class", "B.class", "C.class")) : classFiles ();
+
+	write ("A.java", "class A { int a () { return 1; } }");
+	write ("B.java", "class B { int b () { return new A ().a (); } }");
+	compile (true);
+	assert classFiles ().equals (Set.of ("A.class", "B.class", "C.class")) : classFiles ();
+    }
+
+    @Test
+    public void testDeletedSourceRemovesOutputs () throws IOException {
+	write ("B.java", "class B { int b () { return new A ().a (); } }");
+	compile (true);
+	Files.delete (src.resolve ("A.java"));
+	String errors = compile (false);
+	assert errors.contains ("B.java") : "Expected failure in B: " + errors;
+	assert classFiles ().equals (Set.of ("C.class")) : classFiles ();
+
+	Files.delete (src.resolve ("B.java"));
+	compile (true);
+	assert classFiles ().equals (Set.of ("C.class")) : classFiles ();
+	assert written ().isEmpty () : "Nothing should be recompiled: " + written ();
+    }
+
+    @Test
+    public void testNewTypeInChangedFileRecompilesDependents () throws IOException {
+	write ("D.java", "class D { String d () { return null; } }");
+	compile (true);
+	assert written ().equals (Set.of ("D.class")) : "Only D should be compiled: " + written ();
+
+	// D looked up String in its own package first, C now declares that type
+	write ("C.java", "class C { int c () { return 3; } }\nclass String { }");
+	compile (true);
+	assert written ().equals (Set.of ("C.class", "String.class", "D.class")) : "Wrong recompilation: " + written ();
+    }
+
+    @Test
+    public void testLookupsWithoutOriginAreKept () throws Exception {
+	ClassInformationProvider cip = new ClassInformationProvider (new CompilerDiagnosticCollector (),
+								     new CompilationArguments ());
+	cip.recordLookups ();
+	Path a = src.resolve ("A.java");
+	cip.runWithOrigin (a, () -> cip.hasVisibleType ("foo.Bar"));
+	// a worker thread does not know what file it is working for
+	Thread t = new Thread (() -> cip.hasVisibleType ("foo.Baz"));
+	t.start ();
+	t.join ();
+	assert cip.getLookups (a).equals (Set.of ("foo.Bar", "foo.Baz")) : cip.getLookups (a);
+	Path b = src.resolve ("B.java");
+	assert cip.getLookups (b).equals (Set.of ("foo.Baz")) : cip.getLookups (b);
+    }
+
+    @Test
+    public void testCorruptStateBuildsEverything () throws IOException {
+	Path state = out.resolve (".parjac-incremental");
+	byte[] data = Files.readAllBytes (state);
+	Files.write (state, java.util.Arrays.copyOf (data, data.length / 2));
+	compile (true);
+	assert written ().equals (Set.of ("A.class", "A2.class", "B.class", "C.class")) : written ();
+	Files.write (state, new byte[] {0, 0, 0, 1, 0x7f, 0, 0, 0});
+	compile (true);
+	assert written ().equals (Set.of ("A.class", "A2.class", "B.class", "C.class")) : written ();
+    }
+
+    private void write (String file, String content) throws IOException {
+	Path p = src.resolve (file);
+	Files.writeString (p, content);
+	// make sure the change is seen even if the size is the same
+	sourceTime += 10_000;
+	Files.setLastModifiedTime (p, FileTime.fromMillis (sourceTime));
+    }
+
+    /** Compile and mark all class files as old
+     * @return the errors found
+     */
+    private String compile (boolean shouldSucceed) throws IOException {
+	CompilerDiagnosticCollector diagnostics = new CompilerDiagnosticCollector ();
+	ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+	PrintStream ps = new PrintStream (bos, true, StandardCharsets.UTF_8);
+	BatchCompiler bc = new BatchCompiler (diagnostics, dir, ps, ps);
+	bc.compile (new String[] {"-i", "src", "-d", "out", "--incremental", "--no-timing"});
+	String errors = diagnostics.getDiagnostics ().map (d -> d.getMessage (null)).collect (Collectors.joining ("\n"));
+	assert shouldSucceed == !diagnostics.hasError () : "Unexpected compilation result: " + errors + "\n" + bos;
+	written = classFiles ().stream ().filter (this::isNew).collect (Collectors.toSet ());
+	for (String f : classFiles ())
+	    Files.setLastModifiedTime (out.resolve (f), OLD);
+	return errors;
+    }
+
+    private Set<String> written = Set.of ();
+
+    private Set<String> written () {
+	return written;
+    }
+
+    private boolean isNew (String classFile) {
+	try {
+	    return !Files.getLastModifiedTime (out.resolve (classFile)).equals (OLD);
+	} catch (IOException e) {
+	    throw new RuntimeException (e);
+	}
+    }
+
+    private Set<String> classFiles () throws IOException {
+	if (!Files.exists (out))
+	    return Set.of ();
+	try (Stream<Path> s = Files.list (out)) {
+	    return s.map (p -> p.getFileName ().toString ()).filter (n -> n.endsWith (".class"))
+		.collect (Collectors.toSet ());
+	}
+    }
+}
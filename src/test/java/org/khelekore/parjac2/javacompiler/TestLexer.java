@@ -9,6 +9,7 @@ import java.util.stream.Collectors;
 import org.khelekore.parjac2.CompilerDiagnosticCollector;
 import org.khelekore.parjac2.parser.Grammar;
 import org.khelekore.parjac2.parser.Token;
+import org.khelekore.parjac2.util.SymbolTable;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
 
@@ -287,6 +288,18 @@ public class TestLexer {
 	testInput ("while", javaTokens.WHILE);
     }
 
+    @Test
+    public void testKeywordLikeIdentifiers () {
+	testInput ("classes", javaTokens.IDENTIFIER);
+	testInput ("Class", javaTokens.IDENTIFIER);
+	testInput ("nul", javaTokens.IDENTIFIER);
+	testInput ("whilst", javaTokens.IDENTIFIER);
+	testInput ("$int", javaTokens.IDENTIFIER);
+	testInput ("f\\u006fr", javaTokens.FOR);
+	testInput ("\u00e5for", javaTokens.IDENTIFIER);
+	testInput ("for\u00e5", javaTokens.IDENTIFIER);
+    }
+
     @Test
     public void testNonSealed () {
 	testNonSealed (false);
@@ -344,6 +357,14 @@ public class TestLexer {
 	testLong ("2_147_483_648L", 2_147_483_648L);
 	testLong ("2147483649L", 2147483649L);
 	testLong ("0xC0B0L", 0xC0B0L);
+	testLong ("9223372036854775808L", Long.MIN_VALUE); // same as for int
+	testInput ("9223372036854775809L", grammar.ERROR);
+	testLong ("0xFFFF_FFFF_FFFF_FFFFL", -1L);
+	testInput ("0x1_0000_0000_0000_0000L", grammar.ERROR);
+	testLong ("01777777777777777777777L", -1L);
+	testInput ("02000000000000000000000L", grammar.ERROR);
+	testInput ("18446744073709551616L", grammar.ERROR);
+	testInput ("0xFFFFFFFF_0", grammar.ERROR);
     }
 
     private void testLong (String toLex, long expected) {
@@ -452,6 +473,38 @@ public class TestLexer {
 	assert value.equals ("var");
     }
 
+    @Test
+    public void testSharedSymbols () {
+	SymbolTable symbols = new SymbolTable ();
+	String text = "foo \"bar\" f\\u006fo \"b\\u0061r\"";
+	CharBufferLexer l1 = new CharBufferLexer (grammar, javaTokens, CharBuffer.wrap (text),
+						  Paths.get ("<string literal>"), diagnostics, symbols);
+	CharBufferLexer l2 = new CharBufferLexer (grammar, javaTokens, CharBuffer.wrap (text),
+						  Paths.get ("<string literal>"), diagnostics, symbols);
+	BitSet wanted = new BitSet ();
+	String foo = nextIdentifier (l1, wanted);
+	String bar = nextString (l1, wanted);
+	assert foo.equals ("foo") : "Wrong identifier: " + foo;
+	assert bar.equals ("bar") : "Wrong string: " + bar;
+	assert nextIdentifier (l1, wanted) == foo : "Escaped identifier should be the same string";
+	assert nextString (l1, wanted) == bar : "Escaped string should be the same string";
+	assert nextIdentifier (l2, wanted) == foo : "Lexers should share identifiers";
+	assert nextString (l2, wanted) == bar : "Lexers should share strings";
+	assert symbols.size () == 2 : "Wrong number of symbols: " + symbols.size ();
+    }
+
+    private String nextIdentifier (CharBufferLexer l, BitSet wanted) {
+	BitSet tokens = l.nextToken (wanted);
+	assert tokens.get (javaTokens.IDENTIFIER.getId ()) : "Wrong tokens: " + tokens;
+	return l.getIdentifier ();
+    }
+
+    private String nextString (CharBufferLexer l, BitSet wanted) {
+	BitSet tokens = l.nextToken (wanted);
+	assert tokens.get (javaTokens.STRING_LITERAL.getId ()) : "Wrong tokens: " + tokens;
+	return l.getStringValue ();
+    }
+
     @Test
     public void testContextualLKeywords () {
 	testContextual ("exports", javaTokens.EXPORTS);
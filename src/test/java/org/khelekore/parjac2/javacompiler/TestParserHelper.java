@@ -24,8 +24,8 @@ public class TestParserHelper {
 
     static {
 	try {
-	    JavaGrammarHelper.readRules (baseGrammar, false);
 	    javaTokens = new JavaTokens (baseGrammar);
+	    JavaGrammarHelper.readRules (baseGrammar, false);
 	} catch (IOException e) {
 	    throw new RuntimeException ("Failed to read grammar", e);
 	}
@@ -99,13 +99,28 @@ public class TestParserHelper {
 
     public static ParseTreeNode parse (Grammar grammar, String s, String sourcePath,
 				       CompilerDiagnosticCollector diagnostics) {
+	return parse (grammar, s, sourcePath, diagnostics, true);
+    }
+
+    public static ParseTreeNode parse (Grammar grammar, String s, String sourcePath,
+				       CompilerDiagnosticCollector diagnostics, boolean useScanClosures) {
+	Parser parser = getParser (grammar, s, sourcePath, diagnostics);
+	parser.setUseScanClosures (useScanClosures);
+	return parse (parser);
+    }
+
+    public static Parser getParser (Grammar grammar, String s, String sourcePath,
+				    CompilerDiagnosticCollector diagnostics) {
 	CharBuffer charBuf = CharBuffer.wrap (s);
 	Path path = Paths.get (sourcePath == null ? "TestParseHelper.getParser" : sourcePath);
 	Lexer lexer = new CharBufferLexer (grammar, javaTokens, charBuf, path, diagnostics);
 	PredictCache predictCache = new PredictCache (grammar);
-	Parser parser = new Parser (grammar, path, predictCache, lexer, diagnostics);
-	ParseTreeNode tree = parser.parse (currentGoal);
-	return tree;
+	return new Parser (grammar, path, predictCache, lexer, diagnostics);
+    }
+
+    /** Parse using the goal of the grammar last given by getJavaGrammarFromFile */
+    public static ParseTreeNode parse (Parser parser) {
+	return parser.parse (currentGoal);
     }
 
     public static String getParseOutput (CompilerDiagnosticCollector diagnostics) {
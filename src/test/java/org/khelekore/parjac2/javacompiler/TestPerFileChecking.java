@@ -0,0 +1,81 @@
+package org.khelekore.parjac2.javacompiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/** Each file is checked and generated on its own, an error in one file does not stop the others */
+public class TestPerFileChecking {
+    private Path dir;
+    private Path src;
+    private Path out;
+
+    @BeforeMethod
+    public void setup () throws IOException {
+	dir = Files.createTempDirectory ("parjac-perfile");
+	src = Files.createDirectory (dir.resolve ("src"));
+	out = dir.resolve ("out");
+    }
+
+    @Test
+    public void testGoodFileIsWritten () throws IOException {
+	write ("Good.java", "class Good { int a () { return 1; } }");
+	write ("Good2.java", "class Good2 { int b () { return new Good ().a (); } }");
+	Map<String, List<String>> errors = compile ();
+	assert errors.isEmpty () : "Unexpected errors: " + errors;
+	assert classFiles ().equals (List.of ("Good.class", "Good2.class")) : classFiles ();
+    }
+
+    @Test
+    public void testErrorsInOneFileDoNotStopTheOthers () throws IOException {
+	write ("Good.java", "class Good { int a () { return 1; } }");
+	// fails when the bodies are checked
+	write ("Bad1.java", "class Bad1 { int a () { return x; } }");
+	// fails in one of the checkers, that are run after the bodies are checked
+	write ("Bad2.java", "class Bad2 { int b () { } }");
+	Map<String, List<String>> errors = compile ();
+	assert errors.keySet ().equals (Set.of ("Bad1.java", "Bad2.java")) : "Wrong files with errors: " + errors;
+	assert errors.get ("Bad1.java").size () == 1 : "Wrong errors for Bad1: " + errors;
+	assert errors.get ("Bad2.java").size () == 1 : "Wrong errors for Bad2: " + errors;
+	// Good was generated, but nothing is written when any file has errors
+	assert classFiles ().isEmpty () : "Classes written: " + classFiles ();
+    }
+
+    private void write (String file, String content) throws IOException {
+	Files.writeString (src.resolve (file), content);
+    }
+
+    /** Compile the sources
+     * @return the error messages for each file name
+     */
+    private Map<String, List<String>> compile () throws IOException {
+	CompilerDiagnosticCollector diagnostics = new CompilerDiagnosticCollector ();
+	ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+	PrintStream ps = new PrintStream (bos, true, StandardCharsets.UTF_8);
+	BatchCompiler bc = new BatchCompiler (diagnostics, dir, ps, ps);
+	bc.compile (new String[] {"-i", "src", "-d", "out", "--no-timing"});
+	return diagnostics.getDiagnostics ()
+	    .collect (Collectors.groupingBy (d -> d.getSource ().getFileName ().toString (),
+					     Collectors.mapping (d -> d.getMessage (null), Collectors.toList ())));
+    }
+
+    private List<String> classFiles () throws IOException {
+	if (!Files.exists (out))
+	    return List.of ();
+	try (Stream<Path> s = Files.list (out)) {
+	    return s.map (p -> p.getFileName ().toString ()).sorted ().toList ();
+	}
+    }
+}
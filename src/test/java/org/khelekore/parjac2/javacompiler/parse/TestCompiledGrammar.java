@@ -0,0 +1,188 @@
+package org.khelekore.parjac2.javacompiler.parse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.khelekore.parjac2.javacompiler.CharBufferLexer;
+import org.khelekore.parjac2.javacompiler.JavaGrammarHelper;
+import org.khelekore.parjac2.javacompiler.JavaTokens;
+import org.khelekore.parjac2.parser.CompiledGrammar;
+import org.khelekore.parjac2.parser.Grammar;
+import org.khelekore.parjac2.parser.Parser;
+import org.khelekore.parjac2.parser.PredictCache;
+import org.khelekore.parjac2.parser.Rule;
+import org.khelekore.parjac2.parsetree.ParseTreeNode;
+import org.testng.annotations.Test;
+
+/** Check that the compiled grammar and the written predicted groups give what the grammar text gives */
+public class TestCompiledGrammar {
+
+    @Test
+    public void testSameGrammar () throws IOException {
+	Grammar text = new Grammar ();
+	new JavaTokens (text);
+	JavaGrammarHelper.readGrammarText (text, false);
+	ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+	CompiledGrammar.write (text, JavaGrammarHelper.getSourceHash (), new DataOutputStream (bos));
+
+	Grammar compiled = new Grammar ();
+	new JavaTokens (compiled);
+	assert CompiledGrammar.read (compiled, bos.toByteArray (), JavaGrammarHelper.getSourceHash ()) :
+	    "Compiled grammar not read";
+	assertSameGrammar (text, compiled);
+    }
+
+    @Test
+    public void testStaleCompiledGrammar () throws IOException {
+	Grammar text = new Grammar ();
+	new JavaTokens (text);
+	JavaGrammarHelper.readGrammarText (text, false);
+	// A grammar that differs from the text, as if the text had been edited after it was compiled
+	Grammar edited = new Grammar ();
+	new JavaTokens (edited);
+	JavaGrammarHelper.readGrammarText (edited, false);
+	edited.addRule ("Removed", new int[] {edited.getToken ("class").getId ()});
+
+	Path current = writeTemp (out -> CompiledGrammar.write (edited, JavaGrammarHelper.getSourceHash (), out));
+	Grammar g = new Grammar ();
+	new JavaTokens (g);
+	JavaGrammarHelper.readRules (g, false, current.toUri ().toURL ());
+	assert g.getNumberOfRules () == text.getNumberOfRules () + 1 : "Compiled grammar with matching hash not used";
+
+	Path stale = writeTemp (out -> CompiledGrammar.write (edited, "old grammar", out));
+	g = new Grammar ();
+	new JavaTokens (g);
+	JavaGrammarHelper.readRules (g, false, stale.toUri ().toURL ());
+	assertSameGrammar (text, g);
+
+	// The format before the hash was added
+	Path old = writeTemp (out -> { out.writeInt (0x706a6701); out.writeInt (0); });
+	g = new Grammar ();
+	new JavaTokens (g);
+	JavaGrammarHelper.readRules (g, false, old.toUri ().toURL ());
+	assertSameGrammar (text, g);
+    }
+
+    @Test
+    public void testBrokenCompiledGrammar () throws IOException {
+	Grammar text = new Grammar ();
+	new JavaTokens (text);
+	JavaGrammarHelper.readGrammarText (text, false);
+	ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+	CompiledGrammar.write (text, JavaGrammarHelper.getSourceHash (), new DataOutputStream (bos));
+	byte[] data = bos.toByteArray ();
+
+	Grammar tokensOnly = new Grammar ();
+	new JavaTokens (tokensOnly);
+	for (int length = 80; length < data.length; length += 499)
+	    assertNotRead (tokensOnly, Arrays.copyOf (data, length));
+	assertNotRead (tokensOnly, Arrays.copyOf (data, data.length + 1));
+	// A rule that refers to a rule group that is not written
+	byte[] badId = data.clone ();
+	ByteBuffer.wrap (badId).putInt (data.length - 4, -100_000);
+	assertNotRead (tokensOnly, badId);
+
+	Path truncated = writeTemp (out -> out.write (data, 0, data.length / 2));
+	Grammar g = new Grammar ();
+	new JavaTokens (g);
+	JavaGrammarHelper.readRules (g, false, truncated.toUri ().toURL ());
+	assertSameGrammar (text, g);
+    }
+
+    private static void assertNotRead (Grammar expected, byte[] data) throws IOException {
+	Grammar g = new Grammar ();
+	new JavaTokens (g);
+	assert !CompiledGrammar.read (g, data, JavaGrammarHelper.getSourceHash ()) : "Broken data read, length: " + data.length;
+	assertSameGrammar (expected, g);
+    }
+
+    @Test
+    public void testWarmPredictCache () throws IOException {
+	Grammar grammar = new Grammar ();
+	JavaTokens javaTokens = new JavaTokens (grammar);
+	JavaGrammarHelper.readGrammarText (grammar, false);
+	Rule goalRule = JavaGrammarHelper.addGoalRule (grammar);
+	String s = "class C { int f (int a) { return a < 3 ? a * 2 : switch (a) { case 4 -> 1; default -> 2; }; } }";
+	PredictCache cold = new PredictCache (grammar);
+	ParseTreeNode expected = parse (grammar, javaTokens, goalRule, cold, s);
+	assert cold.getMisses () > 0 : "Expected some predicted groups to be computed";
+
+	ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+	cold.write (new DataOutputStream (bos), JavaGrammarHelper.getSourceHash ());
+	PredictCache warm = new PredictCache (grammar);
+	assert warm.read (new DataInputStream (new ByteArrayInputStream (bos.toByteArray ())),
+			  JavaGrammarHelper.getSourceHash ()) : "Predicted groups not read";
+	ParseTreeNode tree = parse (grammar, javaTokens, goalRule, warm, s);
+	assert warm.getMisses () == 0 : "Expected all predicted groups to be read, misses: " + warm.getMisses ();
+	assert expected.toString ().equals (tree.toString ()) : "Expected same tree";
+    }
+
+    @Test
+    public void testStalePredictCache () throws IOException {
+	Grammar grammar = new Grammar ();
+	JavaTokens javaTokens = new JavaTokens (grammar);
+	JavaGrammarHelper.readGrammarText (grammar, false);
+	Rule goalRule = JavaGrammarHelper.addGoalRule (grammar);
+	String s = "class C { int f (int a) { return a + 1; } }";
+	PredictCache cold = new PredictCache (grammar);
+	ParseTreeNode expected = parse (grammar, javaTokens, goalRule, cold, s);
+
+	Path current = writeTemp (out -> cold.write (out, JavaGrammarHelper.getSourceHash ()));
+	PredictCache warm = JavaGrammarHelper.createPredictCache (grammar, current.toUri ().toURL ());
+	parse (grammar, javaTokens, goalRule, warm, s);
+	assert warm.getMisses () == 0 : "Predicted groups with matching hash not used";
+
+	Path stale = writeTemp (out -> cold.write (out, "old grammar"));
+	PredictCache fallback = JavaGrammarHelper.createPredictCache (grammar, stale.toUri ().toURL ());
+	ParseTreeNode tree = parse (grammar, javaTokens, goalRule, fallback, s);
+	assert fallback.getMisses () == cold.getMisses () : "Stale predicted groups used";
+	assert expected.toString ().equals (tree.toString ()) : "Expected same tree";
+    }
+
+    private interface Writer {
+	void write (DataOutputStream out) throws IOException;
+    }
+
+    private static Path writeTemp (Writer writer) throws IOException {
+	Path p = Files.createTempFile ("compiled", ".bin");
+	p.toFile ().deleteOnExit ();
+	try (DataOutputStream out = new DataOutputStream (Files.newOutputStream (p))) {
+	    writer.write (out);
+	}
+	return p;
+    }
+
+    private static void assertSameGrammar (Grammar expected, Grammar actual) {
+	assert expected.getMaxTokenId () == actual.getMaxTokenId () : "Wrong number of tokens";
+	for (int i = 1; i < expected.getMaxTokenId (); i++)
+	    assert expected.getToken (i).equals (actual.getToken (i)) &&
+		expected.getToken (i).getName ().equals (actual.getToken (i).getName ()) : "Different token: " + i;
+	assert expected.getMaxRuleGroupId () == actual.getMaxRuleGroupId () : "Wrong number of rule groups";
+	for (int i = 1; i < -expected.getMaxRuleGroupId (); i++)
+	    assert expected.getRuleGroupName (-i).equals (actual.getRuleGroupName (-i)) : "Different rule group: " + i;
+	assert expected.getNumberOfRules () == actual.getNumberOfRules () : "Wrong number of rules";
+	for (int i = 1; i <= expected.getNumberOfRules (); i++)
+	    assert expected.getRule (-i).toString ().equals (actual.getRule (-i).toString ()) : "Different rule: " + i;
+    }
+
+    private static ParseTreeNode parse (Grammar grammar, JavaTokens javaTokens, Rule goalRule,
+					PredictCache predictCache, String s) {
+	CompilerDiagnosticCollector diagnostics = new CompilerDiagnosticCollector ();
+	Path path = Paths.get ("TestCompiledGrammar");
+	CharBufferLexer lexer = new CharBufferLexer (grammar, javaTokens, CharBuffer.wrap (s), path, diagnostics);
+	Parser parser = new Parser (grammar, path, predictCache, lexer, diagnostics);
+	ParseTreeNode tree = parser.parse (goalRule);
+	assert !diagnostics.hasError () : "Got parse errors";
+	return tree;
+    }
+}
@@ -0,0 +1,71 @@
+package org.khelekore.parjac2.javacompiler.parse;
+
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.khelekore.parjac2.javacompiler.DirAndPath;
+import org.khelekore.parjac2.javacompiler.SyntaxTreeBuilder;
+import org.khelekore.parjac2.javacompiler.TestParserHelper;
+import org.khelekore.parjac2.javacompiler.syntaxtree.SyntaxTreeNode;
+import org.khelekore.parjac2.parser.Grammar;
+import org.khelekore.parjac2.parser.Parser;
+import org.khelekore.parjac2.parsetree.ParseTreeNode;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/** Parse and build syntax trees for deeply nested input on a thread with a small stack */
+public class TestDeepNesting {
+
+    private Grammar g;
+
+    @BeforeClass
+    public void createLRParser () {
+	g = TestParserHelper.getJavaGrammarFromFile ("CompilationUnit", false);
+    }
+
+    @Test
+    public void testLongConcatenation () throws InterruptedException {
+	StringBuilder sb = new StringBuilder ("class C { String s = \"a0\"");
+	for (int i = 1; i < 5000; i++)
+	    sb.append (" + \"a").append (i).append ("\"");
+	sb.append ("; }");
+	buildWithSmallStack (sb.toString ());
+    }
+
+    @Test
+    public void testNestedTernaries () throws InterruptedException {
+	String e = "0";
+	for (int i = 0; i < 2000; i++)
+	    e = "b ? " + i + " : (" + e + ")";
+	buildWithSmallStack ("class C { int f (boolean b) { return " + e + "; } }");
+    }
+
+    /** Build the tree both from the parse tree and in the parser, the way the compiler does it */
+    private void buildWithSmallStack (String s) throws InterruptedException {
+	runWithSmallStack (() -> TestParserHelper.syntaxTree (g, s, new CompilerDiagnosticCollector ()));
+	runWithSmallStack (() -> {
+		CompilerDiagnosticCollector diagnostics = new CompilerDiagnosticCollector ();
+		Parser parser = TestParserHelper.getParser (g, s, null, diagnostics);
+		SyntaxTreeBuilder stb = new SyntaxTreeBuilder (diagnostics, TestParserHelper.getTokens (), g);
+		parser.setNodeFactory (stb.getNodeFactory (new DirAndPath (Paths.get (""), Paths.get ("TestDeepNesting"))));
+		ParseTreeNode tree = TestParserHelper.parse (parser);
+		assert tree instanceof SyntaxTreeNode : "Expected a syntax tree: " + tree;
+		assert !diagnostics.hasError () : "Got errors: " + TestParserHelper.getParseOutput (diagnostics);
+	    });
+    }
+
+    private void runWithSmallStack (Runnable r) throws InterruptedException {
+	AtomicReference<Throwable> error = new AtomicReference<> ();
+	Thread t = new Thread (null, () -> {
+		try {
+		    r.run ();
+		} catch (Throwable e) {
+		    error.set (e);
+		}
+	    }, "deep", 256 * 1024);
+	t.start ();
+	t.join ();
+	assert error.get () == null : "Failed to build tree: " + error.get ();
+    }
+}
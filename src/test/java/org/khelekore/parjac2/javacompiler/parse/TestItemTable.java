@@ -0,0 +1,39 @@
+package org.khelekore.parjac2.javacompiler.parse;
+
+import org.khelekore.parjac2.javacompiler.TestParserHelper;
+import org.khelekore.parjac2.parser.Grammar;
+import org.khelekore.parjac2.parser.ItemTable;
+import org.khelekore.parjac2.parser.PredictCache;
+import org.khelekore.parjac2.parser.Rule;
+import org.testng.annotations.Test;
+
+/** Check that the item table agrees with the rules for every dotted rule of the java grammar */
+public class TestItemTable {
+
+    @Test
+    public void testAllDottedRules () {
+	Grammar g = TestParserHelper.getJavaGrammarFromFile ("CompilationUnit", true);
+	checkTable (g, new ItemTable (g));
+	checkTable (g, new PredictCache (g).getItemTable ());
+    }
+
+    private void checkTable (Grammar g, ItemTable items) {
+	int numRules = 0;
+	for (Rule r : g.getRules ()) {
+	    if (r == null)
+		continue;
+	    numRules++;
+	    assert r.size () < 0xff : "Rule too long for rulePos: " + r;
+	    for (int dot = 0; dot <= r.size (); dot++) {
+		int rulePos = r.getId () << 8 | dot;
+		String where = r.toReadableString (g) + ", dot: " + dot;
+		int expected = dot < r.size () ? r.get (dot) : 0;
+		assert items.next (rulePos) == expected : "Wrong next: " + items.next (rulePos) + " for: " + where;
+		assert items.isComplete (rulePos) == (dot == r.size ()) : "Wrong isComplete for: " + where;
+		assert items.isLast (rulePos) == (dot == r.size () - 1) : "Wrong isLast for: " + where;
+		assert items.ruleGroup (rulePos) == r.getGroupId () : "Wrong rule group for: " + where;
+	    }
+	}
+	assert numRules == g.getNumberOfRules () : "Wrong number of rules: " + numRules;
+    }
+}
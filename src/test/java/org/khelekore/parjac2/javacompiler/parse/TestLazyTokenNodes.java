@@ -0,0 +1,172 @@
+package org.khelekore.parjac2.javacompiler.parse;
+
+import java.nio.CharBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.khelekore.parjac2.javacompiler.CharBufferLexer;
+import org.khelekore.parjac2.javacompiler.TestParserHelper;
+import org.khelekore.parjac2.parser.Grammar;
+import org.khelekore.parjac2.parser.Lexer;
+import org.khelekore.parjac2.parser.ParsePosition;
+import org.khelekore.parjac2.parser.Parser;
+import org.khelekore.parjac2.parser.PredictCache;
+import org.khelekore.parjac2.parser.Token;
+import org.khelekore.parjac2.parsetree.ParseTreeNode;
+import org.khelekore.parjac2.parsetree.TokenNode;
+import org.khelekore.parjac2.parsetree.WildcardNode;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/** The parser only keeps the value of tokens that have values and creates the other token
+ *  nodes when the tree is built. Check that the token nodes in the tree are the ones we get
+ *  by taking the value of every scanned token from the lexer.
+ */
+public class TestLazyTokenNodes {
+
+    private Grammar g;
+
+    @BeforeClass
+    public void createLRParser () {
+	g = TestParserHelper.getJavaGrammarFromFile ("CompilationUnit", false);
+    }
+
+    @Test
+    public void testValuesAndPositions () {
+	List<TokenNode> leaves =
+	    testSameTokens ("package a.b;\nimport java.util.*;\n" +
+			    "class C<T> { int v = 1; long l = 2L; float f = 3.0f; double d = 4.0;\n" +
+			    "  char c = 'x'; String s = \"s\\n\"; List<List<T>> l = null; int i = a >> 2 >>> b;\n" +
+			    "  void f () { var x = s.length (); x++; } }", 0);
+	assert leaves.stream ().noneMatch (n -> n instanceof WildcardNode) : "Unexpected wildcards";
+    }
+
+    @Test
+    public void testWildcardAtEnd () {
+	assertWildcards (testSameTokens ("import Foo", 1), 1);
+    }
+
+    @Test
+    public void testWildcardInside () {
+	// The token after the missing ';' is pushed back and scanned again
+	assertWildcards (testSameTokens ("class C { int a = 1\n  int b; }", 1), 1);
+	assertWildcards (testSameTokens ("class C { void f () { a = b c = d; } }", 1), 1);
+    }
+
+    private static void assertWildcards (List<TokenNode> leaves, int expected) {
+	long wildcards = leaves.stream ().filter (n -> n instanceof WildcardNode).count ();
+	assert wildcards == expected : "Wrong number of wildcards: " + wildcards + " in " + leaves;
+    }
+
+    /** Parse the text and check the token nodes of the tree against the scanned tokens
+     * @return the token nodes of the tree
+     */
+    private List<TokenNode> testSameTokens (String s, int expectedErrors) {
+	CompilerDiagnosticCollector diagnostics = new CompilerDiagnosticCollector ();
+	Path path = Paths.get ("TestLazyTokenNodes");
+	CharBufferLexer lexer = new CharBufferLexer (g, TestParserHelper.getTokens (), CharBuffer.wrap (s), path, diagnostics);
+	RecordingLexer recorder = new RecordingLexer (lexer);
+	Parser parser = new Parser (g, path, new PredictCache (g), recorder, diagnostics);
+	ParseTreeNode tree = TestParserHelper.parse (parser);
+	assert tree != null : "No tree built for: " + s;
+	assert diagnostics.errorCount () == expectedErrors :
+	    "Wrong number of errors: " + TestParserHelper.getParseOutput (diagnostics);
+
+	List<TokenNode> leaves = new ArrayList<> ();
+	collectTokens (tree, leaves);
+	int scanned = 0;
+	for (TokenNode n : leaves) {
+	    assert scanned < recorder.values.size () : "More tokens in the tree than scanned: " + n;
+	    TokenNode value = recorder.values.get (scanned);
+	    if (n instanceof WildcardNode) {
+		// A wildcard is at the position of the unexpected token, that is scanned again
+		assert n.position ().equals (value.position ()) :
+		    "Wrong wildcard position: " + n.position () + ", expected: " + value.position ();
+		continue;
+	    }
+	    TokenNode expected = lexer.toCorrectType (value, n.token ());
+	    assert n.getClass () == expected.getClass () && n.token () == expected.token () :
+		"Different token: " + n + ", expected: " + expected;
+	    assert n.position ().equals (expected.position ()) :
+		"Different position for: " + n + ": " + n.position () + ", expected: " + expected.position ();
+	    assert n.getId ().equals (expected.getId ()) && equal (n.getValue (), expected.getValue ()) :
+		"Different value: " + n.getValue () + ", expected: " + expected.getValue ();
+	    scanned++;
+	}
+	assert scanned == recorder.values.size () : "Scanned tokens missing from the tree: " +
+	    recorder.values.subList (scanned, recorder.values.size ());
+	return leaves;
+    }
+
+    private static boolean equal (Object a, Object b) {
+	return a == null ? b == null : a.equals (b);
+    }
+
+    private static void collectTokens (ParseTreeNode n, List<TokenNode> tokens) {
+	if (n instanceof TokenNode t)
+	    tokens.add (t);
+	else
+	    n.visitChildNodes (c -> collectTokens (c, tokens));
+    }
+
+    /** Takes the value of every scanned token, the way the parser did before it created nodes lazily */
+    private static class RecordingLexer implements Lexer {
+	private final Lexer lexer;
+	private final List<TokenNode> values = new ArrayList<> ();
+
+	public RecordingLexer (Lexer lexer) {
+	    this.lexer = lexer;
+	}
+
+	@Override public boolean hasMoreTokens () {
+	    return lexer.hasMoreTokens ();
+	}
+
+	@Override public BitSet nextToken (BitSet wantedTokens) {
+	    BitSet tokens = lexer.nextToken (wantedTokens);
+	    if (!tokens.isEmpty ())
+		values.add (lexer.getCurrentValue ());
+	    return tokens;
+	}
+
+	@Override public TokenNode getCurrentValue () {
+	    return lexer.getCurrentValue ();
+	}
+
+	@Override public boolean hasCurrentValue () {
+	    return lexer.hasCurrentValue ();
+	}
+
+	@Override public TokenNode toCorrectType (TokenNode n, Token wantedActualToken) {
+	    return lexer.toCorrectType (n, wantedActualToken);
+	}
+
+	@Override public ParsePosition getParsePosition () {
+	    return lexer.getParsePosition ();
+	}
+
+	@Override public int getLineNumber () {
+	    return lexer.getLineNumber ();
+	}
+
+	@Override public int getTokenColumn () {
+	    return lexer.getTokenColumn ();
+	}
+
+	@Override public int getTokenStartPos () {
+	    return lexer.getTokenStartPos ();
+	}
+
+	@Override public int getTokenEndPos () {
+	    return lexer.getTokenEndPos ();
+	}
+
+	@Override public String getError () {
+	    return lexer.getError ();
+	}
+    }
+}
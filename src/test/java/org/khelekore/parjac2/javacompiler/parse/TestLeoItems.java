@@ -0,0 +1,109 @@
+package org.khelekore.parjac2.javacompiler.parse;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.khelekore.parjac2.javacompiler.TestParserHelper;
+import org.khelekore.parjac2.parser.Grammar;
+import org.khelekore.parjac2.parser.Parser;
+import org.khelekore.parjac2.parsetree.ParseTreeNode;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/** Parse long right recursive input with and without Leo items and check that we get the same result */
+public class TestLeoItems {
+
+    private Grammar g;
+
+    @BeforeClass
+    public void createLRParser () {
+	g = TestParserHelper.getJavaGrammarFromFile ("CompilationUnit", false);
+    }
+
+    @Test
+    public void testElseIfChain () throws InterruptedException {
+	StringBuilder sb = new StringBuilder ("class C { void f () { if (a0) b (0);");
+	for (int i = 1; i < 500; i++)
+	    sb.append (" else if (a").append (i).append (") b (").append (i).append (");");
+	sb.append (" else c (); } }");
+	testSameParse (sb.toString (), true);
+    }
+
+    @Test
+    public void testChainedAssignment () throws InterruptedException {
+	StringBuilder sb = new StringBuilder ("class C { void f () { a0");
+	for (int i = 1; i < 500; i++)
+	    sb.append (" = a").append (i);
+	sb.append ("; } }");
+	testSameParse (sb.toString (), true);
+    }
+
+    @Test
+    public void testConditionalChain () throws InterruptedException {
+	StringBuilder sb = new StringBuilder ("class C { int f () { return");
+	for (int i = 0; i < 500; i++)
+	    sb.append (" a").append (i).append (" ? ").append (i).append (" :");
+	sb.append (" 500; } }");
+	testSameParse (sb.toString (), true);
+    }
+
+    @Test
+    public void testLambdaChain () throws InterruptedException {
+	StringBuilder sb = new StringBuilder ("class C { Object o =");
+	for (int i = 0; i < 300; i++)
+	    sb.append (" a").append (i).append (" ->");
+	sb.append (" 0; }");
+	testSameParse (sb.toString (), true);
+    }
+
+    @Test
+    public void testErrors () throws InterruptedException {
+	StringBuilder sb = new StringBuilder ("class C { void f () { if (a0) b (0);");
+	for (int i = 1; i < 200; i++)
+	    sb.append (" else if (a").append (i).append (") b (").append (i == 100 ? "" : i).append (";");
+	sb.append (" else c (); } }");
+	testSameParse (sb.toString (), false);
+
+	sb = new StringBuilder ("class C { int f () { a0");
+	for (int i = 1; i < 200; i++)
+	    sb.append (" = a").append (i);
+	sb.append (" = ; return a0 ? 1 : a1 ? 2 : a3 ? : 4; } }");
+	testSameParse (sb.toString (), false);
+    }
+
+    private void testSameParse (String s, boolean valid) throws InterruptedException {
+	CompilerDiagnosticCollector leoDiagnostics = new CompilerDiagnosticCollector ();
+	Parser leoParser = TestParserHelper.getParser (g, s, null, leoDiagnostics);
+	String leoTree = parseToString (leoParser);
+	CompilerDiagnosticCollector plainDiagnostics = new CompilerDiagnosticCollector ();
+	Parser plainParser = TestParserHelper.getParser (g, s, null, plainDiagnostics);
+	plainParser.setUseLeoItems (false);
+	String plainTree = parseToString (plainParser);
+
+	assert valid == !leoDiagnostics.hasError () : "Unexpected parse result: " + TestParserHelper.getParseOutput (leoDiagnostics);
+	String leoOutput = TestParserHelper.getParseOutput (leoDiagnostics);
+	String plainOutput = TestParserHelper.getParseOutput (plainDiagnostics);
+	assert leoOutput.equals (plainOutput) : "Different errors: " + leoOutput + " vs " + plainOutput;
+	assert leoTree.equals (plainTree) : "Different trees: " + leoTree + " vs " + plainTree;
+	assert leoParser.getStateCount () < plainParser.getStateCount () :
+	    "Leo items not used: " + leoParser.getStateCount () + " vs " + plainParser.getStateCount ();
+    }
+
+    /** The trees are deep, so build and print them on a thread with a large stack */
+    private String parseToString (Parser parser) throws InterruptedException {
+	AtomicReference<String> result = new AtomicReference<> ();
+	AtomicReference<Throwable> error = new AtomicReference<> ();
+	Thread t = new Thread (null, () -> {
+		try {
+		    ParseTreeNode tree = TestParserHelper.parse (parser);
+		    result.set (String.valueOf (tree));
+		} catch (Throwable e) {
+		    error.set (e);
+		}
+	    }, "leo", 256 * 1024 * 1024);
+	t.start ();
+	t.join ();
+	assert error.get () == null : "Failed to parse: " + error.get ();
+	return result.get ();
+    }
+}
@@ -0,0 +1,120 @@
+package org.khelekore.parjac2.javacompiler.parse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.khelekore.parjac2.javacompiler.DirAndPath;
+import org.khelekore.parjac2.javacompiler.SyntaxTreeBuilder;
+import org.khelekore.parjac2.javacompiler.TestParserHelper;
+import org.khelekore.parjac2.parser.Grammar;
+import org.khelekore.parjac2.parser.Parser;
+import org.khelekore.parjac2.parser.Rule;
+import org.khelekore.parjac2.parsetree.ParseTreeNode;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/** Build syntax trees both from a parse tree and directly in the parser and check that
+ *  we get the same nodes with the same positions.
+ */
+public class TestNodeFactory {
+
+    private Grammar g;
+
+    @BeforeClass
+    public void createLRParser () {
+	g = TestParserHelper.getJavaGrammarFromFile ("CompilationUnit", false);
+    }
+
+    @Test
+    public void testNoEmptyRules () {
+	// The parser does not handle empty rules, so the position of a rule node, the token at
+	// the origin of its state, is always its first token
+	for (Rule r : g.getRules ())
+	    assert r == null || r.size () > 0 : "Found empty rule: " + r.toReadableString (g);
+    }
+
+    @Test
+    public void testPositionsFromOrigin () {
+	// nodes that start with other nodes, at the start of the input and after other nodes
+	testSameTree ("package foo;");
+	testSameTree ("import java.util.List;");
+	testSameTree ("class A { }");
+	testSameTree ("class A { ; }\n\n  @Deprecated\n  final class B { int a; }");
+	testSameTree ("class A { int[] a = {}, b = {{}}; void f () { a.b.c (); new int[0] [0].length++; } }");
+    }
+
+    @Test
+    public void testDeclarations () {
+	testSameTree ("package foo.bar;\nimport java.util.*;\nimport static java.lang.Math.abs;\n" +
+		      "class A<T extends Comparable<T>> { private final List<Map<String, T>> l = new ArrayList<> (); " +
+		      "int[][] a = {{1, 2}, {}}; A (T t) { super (); } }");
+	testSameTree ("record R (int a, String b) implements I { R { if (a < 0) throw new IllegalArgumentException (); } }");
+	testSameTree ("enum E { A, B (1) { void f () {} }; E () {} E (int i) {} }\nenum F { }");
+	testSameTree ("@interface Ann { int value () default 3; String[] names () default {}; }");
+	testSameTree ("interface I { default void f () { } static <T> T g (T t) { return t; } }");
+    }
+
+    @Test
+    public void testStatementsAndExpressions () {
+	testSameTree ("class C { void f () { int a = b + c * d - e / f % g; boolean x = a < b && c > d || !e; " +
+		      "a = b < c ? d : e > f ? g : h; a += b -= c; x = (a) < b; y = (A) b; z = (A<B>) c; " +
+		      "w = a instanceof B bb && bb.c (); v = a.<T>f (b, c).g [1]++; } }");
+	testSameTree ("class C { Object o = (a, b) -> a + b; Runnable r = () -> { }; " +
+		      "Function<A, B> f = A::b; Supplier<C> s = C::new; int i = a >> 2 >>> b << 3; }");
+	testSameTree ("class C { void f () { if (a) b (); else if (c) d (); else { } " +
+		      "for (;;) ; for (A a : as) while (b) do c (); while (d); " +
+		      "try (var r = open ()) { x (); } catch (A | B e) { } finally { z (); } " +
+		      "label: synchronized (this) { break label; } switch (a) { case 1: b (); default: } " +
+		      "int i = switch (a) { case 1, 2 -> 3; default -> { yield 4; } }; } }");
+    }
+
+    @Test
+    public void testSources () throws IOException {
+	List<Path> files;
+	try (Stream<Path> s = Files.list (Paths.get ("src/main/java/org/khelekore/parjac2/parser"))) {
+	    files = s.filter (p -> p.toString ().endsWith (".java")).sorted ().toList ();
+	}
+	assert !files.isEmpty () : "No sources found";
+	for (Path p : files)
+	    testSameTree (Files.readString (p));
+    }
+
+    private void testSameTree (String s) {
+	DirAndPath dirAndPath = new DirAndPath (Paths.get (""), Paths.get ("TestNodeFactory"));
+	CompilerDiagnosticCollector diagnostics = new CompilerDiagnosticCollector ();
+	ParseTreeNode tree = TestParserHelper.parse (TestParserHelper.getParser (g, s, null, diagnostics));
+	assert tree != null && !diagnostics.hasError () : "Parse failed: " + TestParserHelper.getParseOutput (diagnostics);
+	CompilerDiagnosticCollector builtDiagnostics = new CompilerDiagnosticCollector ();
+	SyntaxTreeBuilder stb = new SyntaxTreeBuilder (builtDiagnostics, TestParserHelper.getTokens (), g);
+	String built = dump (stb.build (dirAndPath, tree));
+
+	CompilerDiagnosticCollector factoryDiagnostics = new CompilerDiagnosticCollector ();
+	Parser parser = TestParserHelper.getParser (g, s, null, factoryDiagnostics);
+	stb = new SyntaxTreeBuilder (factoryDiagnostics, TestParserHelper.getTokens (), g);
+	parser.setNodeFactory (stb.getNodeFactory (dirAndPath));
+	String created = dump (TestParserHelper.parse (parser));
+
+	String builtOutput = TestParserHelper.getParseOutput (builtDiagnostics);
+	String factoryOutput = TestParserHelper.getParseOutput (factoryDiagnostics);
+	assert builtOutput.equals (factoryOutput) : "Different diagnostics: " + builtOutput + " vs " + factoryOutput;
+	assert built.equals (created) : "Different trees for: " + s + "\n" + built + "\nvs\n" + created;
+    }
+
+    /** One line per node with its depth, type, position and content */
+    private static String dump (ParseTreeNode n) {
+	StringBuilder sb = new StringBuilder ();
+	dump (sb, n, 0);
+	return sb.toString ();
+    }
+
+    private static void dump (StringBuilder sb, ParseTreeNode n, int depth) {
+	sb.append (depth).append (' ').append (n.getClass ().getSimpleName ()).append (' ')
+	    .append (n.position ()).append (' ').append (n).append ('\n');
+	n.visitChildNodes (c -> dump (sb, c, depth + 1));
+    }
+}
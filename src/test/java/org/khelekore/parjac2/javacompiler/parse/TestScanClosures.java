@@ -0,0 +1,68 @@
+package org.khelekore.parjac2.javacompiler.parse;
+
+import org.khelekore.parjac2.CompilerDiagnosticCollector;
+import org.khelekore.parjac2.javacompiler.TestParserHelper;
+import org.khelekore.parjac2.parser.Grammar;
+import org.khelekore.parjac2.parsetree.ParseTreeNode;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/** Parse with and without the deterministic scan closures and check that we get the same result */
+public class TestScanClosures {
+
+    private Grammar g;
+
+    @BeforeClass
+    public void createLRParser () {
+	g = TestParserHelper.getJavaGrammarFromFile ("CompilationUnit", false);
+    }
+
+    @Test
+    public void testDeclarations () {
+	testSameParse ("package foo.bar;\nimport java.util.*;\nimport static java.lang.Math.abs;\n" +
+		       "class A<T extends Comparable<T>> { private final List<Map<String, T>> l = new ArrayList<> (); " +
+		       "int[][] a = {{1, 2}, {3}}; A (T t) { super (); } }", true);
+	testSameParse ("record R (int a, String b) implements I { R { if (a < 0) throw new IllegalArgumentException (); } }", true);
+	testSameParse ("enum E { A, B (1) { void f () {} }; E () {} E (int i) {} }", true);
+	testSameParse ("@interface Ann { int value () default 3; String[] names () default {}; }", true);
+    }
+
+    @Test
+    public void testExpressions () {
+	testSameParse ("class C { void f () { int a = b + c * d - e / f % g; boolean x = a < b && c > d || !e; " +
+		       "a = b < c ? d : e > f ? g : h; a += b -= c; x = (a) < b; y = (A) b; z = (A<B>) c; " +
+		       "w = a instanceof B bb && bb.c (); v = a.<T>f (b, c).g [1]++; } }", true);
+	testSameParse ("class C { Object o = (a, b) -> a + b; Runnable r = () -> { return; }; " +
+		       "Function<A, B> f = A::b; Supplier<C> s = C::new; int i = a >> 2 >>> b << 3; }", true);
+	testSameParse ("class C { int f (int i) { return switch (i) { case 1, 2 -> 3; default -> { yield 4; } }; } }", true);
+    }
+
+    @Test
+    public void testStatements () {
+	testSameParse ("class C { void f () { if (a) b (); else if (c) d (); else if (e) { f (); } else g (); " +
+		       "for (int i = 0; i < 10; i++) for (A a : as) while (b) do c (); while (d); " +
+		       "try (var r = open ()) { x (); } catch (A | B e) { y (); } finally { z (); } " +
+		       "label: synchronized (this) { break label; } switch (a) { case 1: b (); default: c (); } } }", true);
+    }
+
+    @Test
+    public void testErrors () {
+	testSameParse ("class C { void f () { int a = ; b (; } }", false);
+	testSameParse ("class C { void f () { a = b c; } int }", false);
+    }
+
+    private void testSameParse (String s, boolean valid) {
+	CompilerDiagnosticCollector closureDiagnostics = new CompilerDiagnosticCollector ();
+	ParseTreeNode closureTree = TestParserHelper.parse (g, s, null, closureDiagnostics, true);
+	CompilerDiagnosticCollector plainDiagnostics = new CompilerDiagnosticCollector ();
+	ParseTreeNode plainTree = TestParserHelper.parse (g, s, null, plainDiagnostics, false);
+	assert valid == !closureDiagnostics.hasError () : "Unexpected parse result: " + TestParserHelper.getParseOutput (closureDiagnostics);
+	assert closureDiagnostics.errorCount () == plainDiagnostics.errorCount () :
+	    "Different number of errors: " + closureDiagnostics.errorCount () + " vs " + plainDiagnostics.errorCount ();
+	String closureOutput = TestParserHelper.getParseOutput (closureDiagnostics);
+	String plainOutput = TestParserHelper.getParseOutput (plainDiagnostics);
+	assert closureOutput.equals (plainOutput) : "Different errors: " + closureOutput + " vs " + plainOutput;
+	assert String.valueOf (closureTree).equals (String.valueOf (plainTree)) :
+	    "Different trees: " + closureTree + " vs " + plainTree;
+    }
+}